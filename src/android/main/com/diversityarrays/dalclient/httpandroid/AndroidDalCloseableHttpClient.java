@@ -38,7 +38,8 @@ import com.diversityarrays.dalclient.http.DalRequest;
 public class AndroidDalCloseableHttpClient implements DalCloseableHttpClient, Closeable {
 
 	private CloseableHttpClient client;
-    private final List<HttpCookie> httpCookies = new ArrayList<>();
+    // The cookies are only converted when asked for
+    private volatile CookieStore cookieStore;
 
 	public AndroidDalCloseableHttpClient(CloseableHttpClient client) {
 		this.client = client;
@@ -46,7 +47,14 @@ public class AndroidDalCloseableHttpClient implements DalCloseableHttpClient, Cl
 
 	@Override
 	public List<HttpCookie> getHttpCookies() {
-	    return httpCookies;
+		List<HttpCookie> list = new ArrayList<>();
+		CookieStore store = cookieStore;
+        if (store != null) {
+            for (Cookie cookie : store.getCookies()) {
+                list.add(new HttpCookie(cookie.getName(), cookie.getValue()));
+            }
+        }
+	    return list;
 	}
 
 	@Override
@@ -61,16 +69,7 @@ public class AndroidDalCloseableHttpClient implements DalCloseableHttpClient, Cl
 
 		HttpClientContext context = HttpClientContext.create();
 		CloseableHttpResponse response = client.execute(androidRequest.httpRequest, context);
-		CookieStore cookieStore = context.getCookieStore();
-
-		List<HttpCookie> list = new ArrayList<>();
-        if (cookieStore != null) {
-            for (Cookie cookie : cookieStore.getCookies()) {
-                list.add(new HttpCookie(cookie.getName(), cookie.getValue()));
-            }
-        }
-        httpCookies.clear();
-        httpCookies.addAll(list);
+		cookieStore = context.getCookieStore();
 
         return new AndroidDalCloseableResponse(response);
 	}
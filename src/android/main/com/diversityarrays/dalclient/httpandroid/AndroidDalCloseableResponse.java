@@ -18,6 +18,7 @@
 package com.diversityarrays.dalclient.httpandroid;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -31,6 +32,8 @@ public class AndroidDalCloseableResponse implements DalCloseableHttpResponse {
 
 	CloseableHttpResponse response;
 
+	private DalHeader[] allHeaders;
+
 	public AndroidDalCloseableResponse(CloseableHttpResponse response) {
 		this.response = response;
 	}
@@ -42,13 +45,22 @@ public class AndroidDalCloseableResponse implements DalCloseableHttpResponse {
 
 	@Override
 	public DalHeader[] getAllHeaders() {
-		Header[] headers = response.getAllHeaders();
-		DalHeader[] result = new DalHeader[headers.length];
-		for (int i = headers.length; --i >= 0; ) {
-			Header h = headers[i];
-			result[i] = new DalHeader(h.getName(), h.getValue());
+		if (allHeaders == null) {
+			Header[] headers = response.getAllHeaders();
+			DalHeader[] result = new DalHeader[headers.length];
+			for (int i = headers.length; --i >= 0; ) {
+				Header h = headers[i];
+				result[i] = new DalHeader(h.getName(), h.getValue());
+			}
+			allHeaders = result;
 		}
-		return result;
+		return allHeaders;
+	}
+
+	@Override
+	public String getFirstHeaderValue(String name) {
+		Header h = response.getFirstHeader(name);
+		return h == null ? null : h.getValue();
 	}
 
 	@Override
@@ -66,4 +78,10 @@ public class AndroidDalCloseableResponse implements DalCloseableHttpResponse {
 		HttpEntity entity = response.getEntity();
 		return entity != null ? EntityUtils.toString(entity) : null;
 	}
+
+	@Override
+	public InputStream getEntityContent() throws IOException {
+		HttpEntity entity = response.getEntity();
+		return entity != null ? entity.getContent() : null;
+	}
 }
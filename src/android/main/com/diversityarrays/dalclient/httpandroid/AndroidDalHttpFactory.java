@@ -20,6 +20,7 @@ package com.diversityarrays.dalclient.httpandroid;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +46,7 @@ import com.diversityarrays.dalclient.DalUtil;
 import com.diversityarrays.dalclient.HttpResponseInfo;
 import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
 import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalFileUpload;
 import com.diversityarrays.dalclient.http.DalHttpFactory;
 import com.diversityarrays.dalclient.http.DalRequest;
 import com.diversityarrays.dalclient.http.DalResponseHandler;
@@ -66,7 +68,8 @@ public class AndroidDalHttpFactory implements DalHttpFactory {
 
 	@Override
 	public DalCloseableHttpClient createCloseableHttpClient(SSLContext context) {
-		HttpClientBuilder builder = HttpClients.custom();
+		// DALClient decodes compressed responses itself so that it can count the bytes.
+		HttpClientBuilder builder = HttpClients.custom().disableContentCompression();
 		builder.setSslcontext(context);
 		return new AndroidDalCloseableHttpClient(builder.build());
 	}
@@ -99,7 +102,8 @@ public class AndroidDalHttpFactory implements DalHttpFactory {
 			builder.addTextBody(pair.a, pair.b);
 		}
 		
-		builder.addPart("uploadfile", new FileBody(fileForUpload))
+		DalFileUpload upload = new DalFileUpload(fileForUpload);
+		builder.addPart("uploadfile", new FileUploadBody(upload))
 				.addTextBody("rand_num", rand_num)
 				.addTextBody("url", url);
 
@@ -112,7 +116,7 @@ public class AndroidDalHttpFactory implements DalHttpFactory {
 		HttpPost post = new HttpPost(url);
 		post.setEntity(entity);
 
-		return new AndroidDalRequest(post);
+		return new AndroidDalRequest(post, upload);
 	}
 
 
@@ -161,7 +165,7 @@ public class AndroidDalHttpFactory implements DalHttpFactory {
 					result.httpErrorReason = response.getReasonPhrase();
 				}
 
-				result.serverResponse = response.getEntityAsString();
+				result.serverResponse = DalUtil.readEntityAsString(response, result);
 
 				return result;
 			}
@@ -169,4 +173,26 @@ public class AndroidDalHttpFactory implements DalHttpFactory {
 		
 	}
 
+	/**
+	 * Sends the file from memory-mapped regions (see DalFileUpload)
+	 * instead of through a FileInputStream.
+	 */
+	static private class FileUploadBody extends FileBody {
+		private final DalFileUpload upload;
+
+		FileUploadBody(DalFileUpload upload) {
+			super(upload.getFile());
+			this.upload = upload;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			upload.writeTo(out);
+		}
+
+		@Override
+		public long getContentLength() {
+			return upload.getLength();
+		}
+	}
 }
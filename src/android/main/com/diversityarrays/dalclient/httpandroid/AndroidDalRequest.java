@@ -20,17 +20,27 @@ package com.diversityarrays.dalclient.httpandroid;
 import java.net.URI;
 
 import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.client.config.RequestConfig;
+import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 
+import com.diversityarrays.dalclient.http.DalFileUpload;
 import com.diversityarrays.dalclient.http.DalHeader;
 import com.diversityarrays.dalclient.http.DalRequest;
 
 public class AndroidDalRequest implements DalRequest {
 
 	HttpUriRequest httpRequest;
+
+	private final DalFileUpload fileUpload;
 	
 	public AndroidDalRequest(HttpUriRequest httpGet) {
-		httpRequest = httpGet;
+		this(httpGet, null);
+	}
+
+	public AndroidDalRequest(HttpUriRequest httpRequest, DalFileUpload fileUpload) {
+		this.httpRequest = httpRequest;
+		this.fileUpload = fileUpload;
 	}
 	
 	@Override
@@ -52,4 +62,38 @@ public class AndroidDalRequest implements DalRequest {
 	}
 
 
+	@Override
+	public void setHeader(String name, String value) {
+		httpRequest.setHeader(name, value);
+	}
+
+	@Override
+	public void abort() {
+		httpRequest.abort();
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis) {
+		if (httpRequest instanceof HttpRequestBase) {
+			HttpRequestBase base = (HttpRequestBase) httpRequest;
+			RequestConfig.Builder builder = base.getConfig() == null
+					? RequestConfig.custom()
+					: RequestConfig.copy(base.getConfig());
+			if (connectTimeoutMillis > 0) {
+				// Also limit the wait for a connection from the pool
+				builder.setConnectTimeout(connectTimeoutMillis)
+					.setConnectionRequestTimeout(connectTimeoutMillis);
+			}
+			if (socketTimeoutMillis > 0) {
+				builder.setSocketTimeout(socketTimeoutMillis);
+			}
+			base.setConfig(builder.build());
+		}
+	}
+
+	@Override
+	public DalFileUpload getFileUpload() {
+		return fileUpload;
+	}
+
 }
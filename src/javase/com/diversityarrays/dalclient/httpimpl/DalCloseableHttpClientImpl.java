@@ -41,20 +41,40 @@ import com.diversityarrays.dalclient.http.DalRequest;
 public class DalCloseableHttpClientImpl implements DalCloseableHttpClient {
 
 	private CloseableHttpClient client;
-	private final List<HttpCookie> httpCookies = new ArrayList<>();
+	private final boolean closeClient;
+	// The cookies are only converted when asked for
+	private volatile CookieStore cookieStore;
 
 	public DalCloseableHttpClientImpl(CloseableHttpClient client) {
+		this(client, true);
+	}
+
+	/**
+	 * @param client
+	 * @param closeClient false if the client uses a connection manager which is shared with other clients
+	 */
+	public DalCloseableHttpClientImpl(CloseableHttpClient client, boolean closeClient) {
 		this.client = client;
+		this.closeClient = closeClient;
 	}
 
 	@Override
 	public void close() throws IOException {
-		client.close();
+		if (closeClient) {
+			client.close();
+		}
 	}
 
 	@Override
 	public List<HttpCookie> getHttpCookies() {
-	    return Collections.unmodifiableList(httpCookies);
+        List<HttpCookie> list = new ArrayList<>();
+        CookieStore store = cookieStore;
+        if (store != null) {
+            for (Cookie cookie : store.getCookies()) {
+                list.add(new HttpCookie(cookie.getName(), cookie.getValue()));
+            }
+        }
+	    return Collections.unmodifiableList(list);
 	}
 
 	@Override
@@ -64,15 +84,7 @@ public class DalCloseableHttpClientImpl implements DalCloseableHttpClient {
 		HttpClientContext context = HttpClientContext.create();
         CloseableHttpResponse response = client.execute(requestImpl.httpRequest, context);
 
-        CookieStore cookieStore = context.getCookieStore();
-        List<HttpCookie> list = new ArrayList<>();
-        if (cookieStore != null) {
-            for (Cookie cookie : cookieStore.getCookies()) {
-                list.add(new HttpCookie(cookie.getName(), cookie.getValue()));
-            }
-        }
-        httpCookies.clear();
-        httpCookies.addAll(list);
+        cookieStore = context.getCookieStore();
 
 		return new DalCloseableResponseImpl(response);
 	}
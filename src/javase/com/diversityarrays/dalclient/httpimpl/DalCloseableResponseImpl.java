@@ -18,6 +18,7 @@
 package com.diversityarrays.dalclient.httpimpl;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -36,6 +37,8 @@ public class DalCloseableResponseImpl implements DalCloseableHttpResponse {
 
 	private CloseableHttpResponse response;
 
+	private DalHeader[] allHeaders;
+
 	public DalCloseableResponseImpl(CloseableHttpResponse response) {
 		this.response = response;
 	}
@@ -51,13 +54,22 @@ public class DalCloseableResponseImpl implements DalCloseableHttpResponse {
 
 	@Override
 	public DalHeader[] getAllHeaders() {
-		Header[] headers = response.getAllHeaders();
-		DalHeader[] result = new DalHeader[headers.length];
-		for (int i = headers.length; --i >= 0; ) {
-			Header h = headers[i];
-			result[i] = new DalHeader(h.getName(), h.getValue());
+		if (allHeaders == null) {
+			Header[] headers = response.getAllHeaders();
+			DalHeader[] result = new DalHeader[headers.length];
+			for (int i = headers.length; --i >= 0; ) {
+				Header h = headers[i];
+				result[i] = new DalHeader(h.getName(), h.getValue());
+			}
+			allHeaders = result;
 		}
-		return result;
+		return allHeaders;
+	}
+
+	@Override
+	public String getFirstHeaderValue(String name) {
+		Header h = response.getFirstHeader(name);
+		return h == null ? null : h.getValue();
 	}
 
 	@Override
@@ -75,4 +87,10 @@ public class DalCloseableResponseImpl implements DalCloseableHttpResponse {
 		HttpEntity entity = response.getEntity();
 		return entity != null ? EntityUtils.toString(entity) : null;
 	}
+
+	@Override
+	public InputStream getEntityContent() throws IOException {
+		HttpEntity entity = response.getEntity();
+		return entity != null ? entity.getContent() : null;
+	}
 }
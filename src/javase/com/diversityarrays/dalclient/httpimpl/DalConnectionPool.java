@@ -0,0 +1,288 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpimpl;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import com.diversityarrays.dalclient.DalUtil;
+
+/**
+ * <p>
+ * Provides a pool of HTTP connections which may be shared by the DalCloseableHttpClient
+ * instances of any number of DALClients so that keep-alive connections are re-used
+ * across logins and the number of open sockets is bounded by the pool limits rather
+ * than by the number of client objects.
+ * <p>
+ * A background thread periodically closes expired connections and those which have
+ * been idle for longer than <code>idleTimeoutMillis</code>.
+ * <p>
+ * Usage:
+ * <pre>
+ * DalConnectionPool pool = new DalConnectionPool()
+ *     .setMaxTotal(100)
+ *     .setDefaultMaxPerRoute(20);
+ * DalHttpFactory factory = new DalHttpFactoryImpl(pool);
+ * DALClient client1 = new DefaultDALClient(dalurl, factory);
+ * DALClient client2 = new DefaultDALClient(dalurl, factory);
+ *    :
+ * pool.close();
+ * </pre>
+ * Alternatively, set the System property
+ * <code>com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl.USE_SHARED_POOL=true</code>
+ * to make every DalHttpFactoryImpl use the instance returned by <code>getSharedInstance()</code>.
+ * <p>
+ * Note that the SSLContext used for https connections is the one supplied to the
+ * constructor of the pool; the SSLContext passed to
+ * <code>DalHttpFactory.createCloseableHttpClient()</code> is not used for pooled clients.
+ * @author brian
+ */
+public class DalConnectionPool implements Closeable {
+
+	static public final int DEFAULT_MAX_TOTAL = 50;
+	static public final int DEFAULT_MAX_PER_ROUTE = 10;
+	static public final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+	static public final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+	static public final long DEFAULT_EVICTION_INTERVAL_MILLIS = 5 * 1000;
+
+	static private DalConnectionPool sharedInstance;
+
+	/**
+	 * Return the pool which is shared by all DalHttpFactoryImpl instances
+	 * created using the no-argument constructor when the USE_SHARED_POOL
+	 * System property is set. The pool is created on first use.
+	 * @return a DalConnectionPool
+	 */
+	static synchronized public DalConnectionPool getSharedInstance() {
+		if (sharedInstance == null) {
+			sharedInstance = new DalConnectionPool();
+		}
+		return sharedInstance;
+	}
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+	private volatile boolean closed;
+
+	private final Thread evictor;
+
+	private final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			// Server didn't say so use our own limit rather than "forever".
+			return duration > 0 ? duration : keepAliveMillis;
+		}
+	};
+
+	/**
+	 * Create a pool which uses DalUtil.getSharedTrustingSSLContext() for https connections.
+	 */
+	public DalConnectionPool() {
+		this(DalUtil.getSharedTrustingSSLContext(), DEFAULT_EVICTION_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Create a pool which uses the supplied SSLContext for https connections.
+	 * @param sslContext
+	 */
+	public DalConnectionPool(SSLContext sslContext) {
+		this(sslContext, DEFAULT_EVICTION_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Create a pool which uses the supplied SSLContext for https connections
+	 * and checks for idle and expired connections every <code>evictionIntervalMillis</code>.
+	 * @param sslContext
+	 * @param evictionIntervalMillis
+	 */
+	public DalConnectionPool(SSLContext sslContext, final long evictionIntervalMillis) {
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory()) //$NON-NLS-1$
+				.register("https", new SSLConnectionSocketFactory(sslContext)) //$NON-NLS-1$
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(registry);
+		connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+
+		evictor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (! closed) {
+					try {
+						Thread.sleep(evictionIntervalMillis);
+					} catch (InterruptedException e) {
+						break;
+					}
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+		}, DalConnectionPool.class.getSimpleName() + "-evictor"); //$NON-NLS-1$
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Set the maximum number of connections in the pool.
+	 * @param max
+	 * @return this DalConnectionPool
+	 */
+	public DalConnectionPool setMaxTotal(int max) {
+		connectionManager.setMaxTotal(max);
+		return this;
+	}
+
+	public int getMaxTotal() {
+		return connectionManager.getMaxTotal();
+	}
+
+	/**
+	 * Set the maximum number of connections for each route (i.e. DAL server).
+	 * @param max
+	 * @return this DalConnectionPool
+	 */
+	public DalConnectionPool setDefaultMaxPerRoute(int max) {
+		connectionManager.setDefaultMaxPerRoute(max);
+		return this;
+	}
+
+	public int getDefaultMaxPerRoute() {
+		return connectionManager.getDefaultMaxPerRoute();
+	}
+
+	/**
+	 * Set the maximum number of connections to the server of the given URL.
+	 * @param url e.g. the baseUrl of a DALClient
+	 * @param max
+	 * @return this DalConnectionPool
+	 */
+	public DalConnectionPool setMaxPerRoute(String url, int max) {
+		connectionManager.setMaxPerRoute(createRoute(url), max);
+		return this;
+	}
+
+	/**
+	 * Set the time after which unused connections are closed by the background evictor.
+	 * @param millis
+	 * @return this DalConnectionPool
+	 */
+	public DalConnectionPool setIdleTimeoutMillis(long millis) {
+		this.idleTimeoutMillis = millis;
+		return this;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * Set how long a connection may be kept alive when the server
+	 * does not provide a <code>Keep-Alive</code> timeout.
+	 * @param millis
+	 * @return this DalConnectionPool
+	 */
+	public DalConnectionPool setKeepAliveMillis(long millis) {
+		this.keepAliveMillis = millis;
+		return this;
+	}
+
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+
+	/**
+	 * Return a summary of the current pool usage.
+	 * @return a String
+	 */
+	public String getStatistics() {
+		PoolStats stats = connectionManager.getTotalStats();
+		return "leased=" + stats.getLeased() //$NON-NLS-1$
+				+ ", available=" + stats.getAvailable() //$NON-NLS-1$
+				+ ", pending=" + stats.getPending() //$NON-NLS-1$
+				+ ", max=" + stats.getMax(); //$NON-NLS-1$
+	}
+
+	public int getLeasedCount() {
+		return connectionManager.getTotalStats().getLeased();
+	}
+
+	public int getAvailableCount() {
+		return connectionManager.getTotalStats().getAvailable();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stop the evictor and close all of the connections in the pool.
+	 * Clients which are still using the pool will fail on their next request.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictor.interrupt();
+		connectionManager.shutdown();
+		synchronized (DalConnectionPool.class) {
+			if (sharedInstance == this) {
+				sharedInstance = null;
+			}
+		}
+	}
+
+	HttpClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+		return keepAliveStrategy;
+	}
+
+	static private HttpRoute createRoute(String url) {
+		URI uri = URI.create(url);
+		String scheme = uri.getScheme();
+		boolean secure = "https".equalsIgnoreCase(scheme); //$NON-NLS-1$
+		int port = uri.getPort();
+		if (port < 0) {
+			port = secure ? 443 : 80;
+		}
+		return new HttpRoute(new HttpHost(uri.getHost(), port, scheme), null, secure);
+	}
+}
@@ -20,6 +20,7 @@ package com.diversityarrays.dalclient.httpimpl;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +45,7 @@ import com.diversityarrays.dalclient.DalUtil;
 import com.diversityarrays.dalclient.HttpResponseInfo;
 import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
 import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalFileUpload;
 import com.diversityarrays.dalclient.http.DalHttpFactory;
 import com.diversityarrays.dalclient.http.DalRequest;
 import com.diversityarrays.dalclient.http.DalResponseHandler;
@@ -51,11 +53,38 @@ import com.diversityarrays.dalclient.util.Pair;
 
 /**
  * Provide an implementation of DalHttpFactory for use with standard apache http libraries.
+ * <p>
+ * If a DalConnectionPool is provided then all of the DalCloseableHttpClient instances
+ * created by this factory share the connections in that pool. The no-argument constructor
+ * uses <code>DalConnectionPool.getSharedInstance()</code> if the System property<pre>
+ * com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl.USE_SHARED_POOL=true
+ * </pre>
+ * is set, otherwise each DalCloseableHttpClient has its own connections.
  * @author brian
  *
  */
 public class DalHttpFactoryImpl implements DalHttpFactory {
 
+	static public final String USE_SHARED_POOL_PROPERTY = DalHttpFactoryImpl.class.getName() + ".USE_SHARED_POOL"; //$NON-NLS-1$
+
+	private final DalConnectionPool connectionPool;
+
+	public DalHttpFactoryImpl() {
+		this(Boolean.getBoolean(USE_SHARED_POOL_PROPERTY) ? DalConnectionPool.getSharedInstance() : null);
+	}
+
+	/**
+	 * Create a factory whose clients share the connections in the pool.
+	 * @param connectionPool may be null in which case each client has its own connections
+	 */
+	public DalHttpFactoryImpl(DalConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+
+	public DalConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
 	@Override
 	public DalRequest createHttpGet(String url) {
 		HttpGet httpGet = new HttpGet(url);
@@ -71,9 +100,18 @@ public class DalHttpFactoryImpl implements DalHttpFactory {
 
 	@Override
 	public DalCloseableHttpClient createCloseableHttpClient(SSLContext context) {
-		HttpClientBuilder builder = HttpClients.custom();
-		builder.setSslcontext(context);
-		return new DalCloseableHttpClientImpl(builder.build());
+		// DALClient decodes compressed responses itself so that it can count the bytes.
+		HttpClientBuilder builder = HttpClients.custom().disableContentCompression();
+		if (connectionPool == null) {
+			builder.setSslcontext(context);
+			return new DalCloseableHttpClientImpl(builder.build());
+		}
+
+		// The SSLContext was given to the pool when it was created.
+		builder.setConnectionManager(connectionPool.getConnectionManager())
+			.setKeepAliveStrategy(connectionPool.getKeepAliveStrategy());
+		// Closing the client would shut down the shared pool.
+		return new DalCloseableHttpClientImpl(builder.build(), false);
 	}
 
 	@Override
@@ -104,7 +142,8 @@ public class DalHttpFactoryImpl implements DalHttpFactory {
 			builder.addTextBody(pair.a, pair.b);
 		}
 		
-		builder.addPart("uploadfile", new FileBody(fileForUpload))
+		DalFileUpload upload = new DalFileUpload(fileForUpload);
+		builder.addPart("uploadfile", new FileUploadBody(upload))
 				.addTextBody("rand_num", rand_num)
 				.addTextBody("url", url);
 
@@ -117,7 +156,7 @@ public class DalHttpFactoryImpl implements DalHttpFactory {
 		HttpPost post = new HttpPost(url);
 		post.setEntity(entity);
 
-		return new DalRequestImpl(post);
+		return new DalRequestImpl(post, upload);
 	}
 
 
@@ -166,7 +205,7 @@ public class DalHttpFactoryImpl implements DalHttpFactory {
 					result.httpErrorReason = response.getReasonPhrase();
 				}
 
-				result.serverResponse = response.getEntityAsString();
+				result.serverResponse = DalUtil.readEntityAsString(response, result);
 
 				return result;
 			}
@@ -174,4 +213,26 @@ public class DalHttpFactoryImpl implements DalHttpFactory {
 		
 	}
 
+	/**
+	 * Sends the file from memory-mapped regions (see DalFileUpload)
+	 * instead of through a FileInputStream.
+	 */
+	static private class FileUploadBody extends FileBody {
+		private final DalFileUpload upload;
+
+		FileUploadBody(DalFileUpload upload) {
+			super(upload.getFile());
+			this.upload = upload;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			upload.writeTo(out);
+		}
+
+		@Override
+		public long getContentLength() {
+			return upload.getLength();
+		}
+	}
 }
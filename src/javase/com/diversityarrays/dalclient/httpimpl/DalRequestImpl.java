@@ -20,8 +20,11 @@ package com.diversityarrays.dalclient.httpimpl;
 import java.net.URI;
 
 import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 
+import com.diversityarrays.dalclient.http.DalFileUpload;
 import com.diversityarrays.dalclient.http.DalHeader;
 import com.diversityarrays.dalclient.http.DalRequest;
 
@@ -33,9 +36,16 @@ import com.diversityarrays.dalclient.http.DalRequest;
 public class DalRequestImpl implements DalRequest {
 
 	HttpUriRequest httpRequest;
+
+	private final DalFileUpload fileUpload;
 	
 	public DalRequestImpl(HttpUriRequest httpGet) {
-		httpRequest = httpGet;
+		this(httpGet, null);
+	}
+
+	public DalRequestImpl(HttpUriRequest httpRequest, DalFileUpload fileUpload) {
+		this.httpRequest = httpRequest;
+		this.fileUpload = fileUpload;
 	}
 	
 	@Override
@@ -56,4 +66,38 @@ public class DalRequestImpl implements DalRequest {
 		return result;
 	}
 
+	@Override
+	public void setHeader(String name, String value) {
+		httpRequest.setHeader(name, value);
+	}
+
+	@Override
+	public void abort() {
+		httpRequest.abort();
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis) {
+		if (httpRequest instanceof HttpRequestBase) {
+			HttpRequestBase base = (HttpRequestBase) httpRequest;
+			RequestConfig.Builder builder = base.getConfig() == null
+					? RequestConfig.custom()
+					: RequestConfig.copy(base.getConfig());
+			if (connectTimeoutMillis > 0) {
+				// Also limit the wait for a connection from the pool
+				builder.setConnectTimeout(connectTimeoutMillis)
+					.setConnectionRequestTimeout(connectTimeoutMillis);
+			}
+			if (socketTimeoutMillis > 0) {
+				builder.setSocketTimeout(socketTimeoutMillis);
+			}
+			base.setConfig(builder.build());
+		}
+	}
+
+	@Override
+	public DalFileUpload getFileUpload() {
+		return fileUpload;
+	}
+
 }
@@ -0,0 +1,178 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.diversityarrays.dalclient.http.DalFileUpload;
+
+/**
+ * Publishes a multipart body whose file part is taken directly from
+ * memory-mapped regions of the file; the HttpClient writes those
+ * buffers to the socket without them being copied onto the heap.
+ * Each subscription reads the file afresh so the body may be resent.
+ * @author brian
+ * @since 5.2.0
+ */
+class FileUploadPublisher implements Flow.Publisher<ByteBuffer> {
+
+	private final byte[] head;
+	private final DalFileUpload upload;
+	private final byte[] tail;
+
+	FileUploadPublisher(byte[] head, DalFileUpload upload, byte[] tail) {
+		this.head = head;
+		this.upload = upload;
+		this.tail = tail;
+	}
+
+	long contentLength() {
+		return head.length + upload.getLength() + tail.length;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		subscriber.onSubscribe(new Subscription(subscriber));
+	}
+
+	private enum Stage {
+		HEAD, FILE, TAIL
+	}
+
+	private class Subscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+
+		// Only used by the thread which is draining
+		private Stage stage = Stage.HEAD;
+		private FileChannel channel;
+		private long size;
+		private long position;
+		private ByteBuffer region;
+		private boolean done;
+
+		Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancelled = true;
+				subscriber.onError(new IllegalArgumentException("request(" + n + ")")); //$NON-NLS-1$ //$NON-NLS-2$
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				next = current + n;
+				if (next < 0) {
+					next = Long.MAX_VALUE;
+				}
+			} while (! demand.compareAndSet(current, next));
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				if (cancelled && ! done) {
+					done = true;
+					close();
+				}
+				while (! done && ! cancelled && demand.get() > 0) {
+					ByteBuffer next;
+					try {
+						next = next();
+					}
+					catch (IOException e) {
+						done = true;
+						close();
+						subscriber.onError(e);
+						break;
+					}
+					if (next == null) {
+						done = true;
+						close();
+						upload.finished();
+						subscriber.onComplete();
+						break;
+					}
+					demand.decrementAndGet();
+					subscriber.onNext(next);
+				}
+			} while (wip.decrementAndGet() != 0);
+		}
+
+		private ByteBuffer next() throws IOException {
+			switch (stage) {
+			case HEAD:
+				stage = Stage.FILE;
+				channel = FileChannel.open(upload.getFile().toPath(), StandardOpenOption.READ);
+				size = channel.size();
+				return ByteBuffer.wrap(head);
+			case FILE:
+				if ((region == null || ! region.hasRemaining()) && position < size) {
+					region = DalFileUpload.map(channel, position, size);
+					position += region.capacity();
+				}
+				if (region != null && region.hasRemaining()) {
+					ByteBuffer slice = DalFileUpload.nextSlice(region);
+					upload.addBytesSent(slice.remaining());
+					return slice;
+				}
+				close();
+				stage = Stage.TAIL;
+				return ByteBuffer.wrap(tail);
+			case TAIL:
+			default:
+				return null;
+			}
+		}
+
+		private void close() {
+			region = null;
+			if (channel != null) {
+				try {
+					channel.close();
+				}
+				catch (IOException ignore) {
+				}
+				channel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import com.diversityarrays.dalclient.http.DalAsyncCallback;
+import com.diversityarrays.dalclient.http.DalAsyncHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalRequest;
+import com.diversityarrays.dalclient.http.DalResponseHandler;
+
+/**
+ * Provide an implementation of DalCloseableHttpClient for use with java.net.http.
+ * Each instance has its own HttpClient (and hence its own connections and cookies)
+ * so that the session of one DALClient is not visible to another.
+ * <p>
+ * <code>executeAsync()</code> uses <code>HttpClient.sendAsync()</code> so no thread
+ * waits while the request is in flight.
+ * @author brian
+ *
+ */
+public class JdkDalCloseableHttpClient implements DalCloseableHttpClient, DalAsyncHttpClient {
+
+	/** Collects the whole body so that the DalResponseHandler never blocks a transport thread */
+	static private final HttpResponse.BodyHandler<InputStream> BUFFERED_BODY = new HttpResponse.BodyHandler<InputStream>() {
+		@Override
+		public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo responseInfo) {
+			return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+					bytes -> new ByteArrayInputStream(bytes));
+		}
+	};
+
+	/** HttpClient.shutdown() (Java 21+) or null */
+	static private final Method SHUTDOWN_METHOD = findShutdownMethod();
+
+	static private Method findShutdownMethod() {
+		try {
+			return HttpClient.class.getMethod("shutdown"); //$NON-NLS-1$
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private final HttpClient client;
+	private final CookieManager cookieManager;
+
+	public JdkDalCloseableHttpClient(HttpClient client, CookieManager cookieManager) {
+		this.client = client;
+		this.cookieManager = cookieManager;
+	}
+
+	public HttpClient getHttpClient() {
+		return client;
+	}
+
+	/**
+	 * Clear the cookies so the session can no longer be used.
+	 * On Java 21 or later this also calls <code>HttpClient.shutdown()</code>, which
+	 * lets requests in flight finish and then closes the connections.
+	 * Before Java 21 the HttpClient has no way to be closed: its connections and
+	 * selector thread are only released when it is garbage collected, some time
+	 * after the last reference to it (and to this object) is dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		cookieManager.getCookieStore().removeAll();
+		if (SHUTDOWN_METHOD != null) {
+			try {
+				SHUTDOWN_METHOD.invoke(client);
+			}
+			catch (IllegalAccessException | InvocationTargetException e) {
+				throw new IOException("HttpClient.shutdown() failed", e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	@Override
+	public List<HttpCookie> getHttpCookies() {
+		return Collections.unmodifiableList(new ArrayList<>(cookieManager.getCookieStore().getCookies()));
+	}
+
+	@Override
+	public DalCloseableHttpResponse execute(DalRequest request) throws IOException {
+		JdkDalRequest jdkRequest = (JdkDalRequest) request;
+		if (jdkRequest.isAborted()) {
+			throw new IOException("Request aborted"); //$NON-NLS-1$
+		}
+		// sendAsync() so that JdkDalRequest.abort() can cancel the exchange
+		CompletableFuture<HttpResponse<InputStream>> future = client.sendAsync(jdkRequest.build(),
+				HttpResponse.BodyHandlers.ofInputStream());
+		jdkRequest.setInFlight(future);
+		try {
+			HttpResponse<InputStream> response = future.get();
+			jdkRequest.setResponseBody(response.body());
+			return new JdkDalCloseableResponse(response);
+		} catch (CancellationException e) {
+			throw new IOException("Request aborted"); //$NON-NLS-1$
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			InterruptedIOException iioe = new InterruptedIOException(e.getMessage());
+			iioe.initCause(e);
+			throw iioe;
+		}
+	}
+
+	@Override
+	public <T> void executeAsync(DalRequest request, DalResponseHandler<T> handler, DalAsyncCallback<T> callback) {
+		JdkDalRequest jdkRequest = (JdkDalRequest) request;
+		if (jdkRequest.isAborted()) {
+			callback.failed(new IOException("Request aborted")); //$NON-NLS-1$
+			return;
+		}
+		CompletableFuture<HttpResponse<InputStream>> future = client.sendAsync(jdkRequest.build(), BUFFERED_BODY);
+		jdkRequest.setInFlight(future);
+		future.whenComplete((response, error) -> {
+			if (error != null) {
+				callback.failed(toIOException(error));
+				return;
+			}
+			T result;
+			JdkDalCloseableResponse r = new JdkDalCloseableResponse(response);
+			try {
+				result = handler.handleResponse(r);
+			}
+			catch (IOException e) {
+				callback.failed(e);
+				return;
+			}
+			catch (RuntimeException e) {
+				callback.failed(new IOException(e));
+				return;
+			}
+			finally {
+				try { r.close(); }
+				catch (IOException ignore) { }
+			}
+			callback.completed(result);
+		});
+	}
+
+	static private IOException toIOException(Throwable error) {
+		Throwable cause = error;
+		if (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof CancellationException) {
+			return new IOException("Request aborted"); //$NON-NLS-1$
+		}
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(cause);
+	}
+}
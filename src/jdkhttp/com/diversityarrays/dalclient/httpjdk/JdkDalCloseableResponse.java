@@ -0,0 +1,129 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalHeader;
+
+/**
+ * Provide an implementation of DalCloseableHttpResponse for use with java.net.http.
+ * @author brian
+ *
+ */
+public class JdkDalCloseableResponse implements DalCloseableHttpResponse {
+
+	private final HttpResponse<InputStream> response;
+
+	private DalHeader[] allHeaders;
+
+	public JdkDalCloseableResponse(HttpResponse<InputStream> response) {
+		this.response = response;
+	}
+
+	public HttpResponse<InputStream> getHttpResponse() {
+		return response;
+	}
+
+	@Override
+	public void close() throws IOException {
+		response.body().close();
+	}
+
+	@Override
+	public DalHeader[] getAllHeaders() {
+		if (allHeaders == null) {
+			List<DalHeader> result = new ArrayList<>();
+			for (Map.Entry<String, List<String>> entry : response.headers().map().entrySet()) {
+				String name = entry.getKey();
+				if (name.startsWith(":")) { //$NON-NLS-1$
+					// HTTP/2 pseudo-header
+					continue;
+				}
+				for (String value : entry.getValue()) {
+					result.add(new DalHeader(name, value));
+				}
+			}
+			allHeaders = result.toArray(new DalHeader[result.size()]);
+		}
+		return allHeaders;
+	}
+
+	@Override
+	public String getFirstHeaderValue(String name) {
+		return response.headers().firstValue(name).orElse(null);
+	}
+
+	@Override
+	public int getStatusCode() {
+		return response.statusCode();
+	}
+
+	/**
+	 * HTTP/2 does not transmit a reason phrase so the standard one for the status code is returned.
+	 */
+	@Override
+	public String getReasonPhrase() {
+		return JdkDalHttpFactory.getReasonPhrase(response.statusCode());
+	}
+
+	@Override
+	public String getEntityAsString() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		InputStream in = response.body();
+		int n;
+		while (-1 != (n = in.read(buffer))) {
+			baos.write(buffer, 0, n);
+		}
+		return baos.toString(getContentCharset().name());
+	}
+
+	@Override
+	public InputStream getEntityContent() throws IOException {
+		return response.body();
+	}
+
+	private Charset getContentCharset() {
+		// Same default as the apache EntityUtils.toString()
+		Charset result = StandardCharsets.ISO_8859_1;
+		String contentType = response.headers().firstValue("Content-Type").orElse(null); //$NON-NLS-1$
+		if (contentType != null) {
+			for (String part : contentType.split(";")) { //$NON-NLS-1$
+				String p = part.trim();
+				if (p.regionMatches(true, 0, "charset=", 0, 8)) { //$NON-NLS-1$
+					try {
+						result = Charset.forName(p.substring(8).replace("\"", "")); //$NON-NLS-1$ //$NON-NLS-2$
+					} catch (IllegalArgumentException ignore) {
+					}
+					break;
+				}
+			}
+		}
+		return result;
+	}
+}
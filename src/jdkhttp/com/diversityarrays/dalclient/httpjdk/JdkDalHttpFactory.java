@@ -0,0 +1,274 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.collections15.Factory;
+
+import com.diversityarrays.dalclient.DalUtil;
+import com.diversityarrays.dalclient.HttpResponseInfo;
+import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalFileUpload;
+import com.diversityarrays.dalclient.http.DalHttpFactory;
+import com.diversityarrays.dalclient.http.DalRequest;
+import com.diversityarrays.dalclient.http.DalResponseHandler;
+import com.diversityarrays.dalclient.util.Pair;
+
+/**
+ * Provide an implementation of DalHttpFactory using the <code>java.net.http.HttpClient</code>
+ * (Java 11 and later). HTTP/2 is requested for every client; servers which only support
+ * HTTP/1.1 are handled transparently. With HTTP/2 the concurrent requests of a
+ * DALClient are multiplexed over a single connection.
+ * @author brian
+ *
+ */
+public class JdkDalHttpFactory implements DalHttpFactory {
+
+	private static final String UPLOAD_PART_NAME = "uploadfile"; //$NON-NLS-1$
+	private static final String CRLF = "\r\n"; //$NON-NLS-1$
+
+	@Override
+	public DalCloseableHttpClient createCloseableHttpClient(SSLContext context) {
+		CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+		HttpClient client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.sslContext(context)
+				.cookieHandler(cookieManager)
+				.build();
+		return new JdkDalCloseableHttpClient(client, cookieManager);
+	}
+
+	@Override
+	public DalResponseHandler<String> createBasicResponseHandler() {
+		return new JdkDalResponseHandler();
+	}
+
+	@Override
+	public DalResponseHandler<HttpResponseInfo> createResponseHandler() {
+
+		return new DalResponseHandler<HttpResponseInfo>() {
+			@Override
+			public HttpResponseInfo handleResponse(DalCloseableHttpResponse response) throws IOException {
+
+				HttpResponseInfo result = new HttpResponseInfo();
+
+				result.headers = response.getAllHeaders();
+				result.httpStatusCode = response.getStatusCode();
+
+				if (DalUtil.isHttpStatusCodeOk(result.httpStatusCode)) {
+					// All is well with the world!
+				}
+				else {
+					result.httpErrorReason = response.getReasonPhrase();
+				}
+
+				result.serverResponse = DalUtil.readEntityAsString(response, result);
+
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public DalRequest createHttpGet(String url) {
+		URI uri = URI.create(url);
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+				.header("Cache-Control", "no-cache") //$NON-NLS-1$ //$NON-NLS-2$
+				.GET();
+		return new JdkDalRequest(uri, builder);
+	}
+
+	@Override
+	public DalRequest createHttpPost(String url, List<Pair<String,String>> pairs, Charset charset) {
+		StringBuilder sb = new StringBuilder();
+		for (Pair<String,String> p : pairs) {
+			if (sb.length() > 0) {
+				sb.append('&');
+			}
+			sb.append(URLEncoder.encode(p.a, charset));
+			sb.append('=');
+			if (p.b != null) {
+				sb.append(URLEncoder.encode(p.b, charset));
+			}
+		}
+
+		URI uri = URI.create(url);
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+				.header("Content-Type", "application/x-www-form-urlencoded; charset=" + charset.name()) //$NON-NLS-1$ //$NON-NLS-2$
+				.POST(BodyPublishers.ofString(sb.toString(), charset));
+		return new JdkDalRequest(uri, builder);
+	}
+
+	@Override
+	public DalRequest createForUpload(String url, List<Pair<String,String>> pairs,
+			String rand_num, String namesInOrder, String signature,
+			final File fileForUpload)
+	{
+		final Multipart multipart = new Multipart();
+		for (Pair<String,String> pair : pairs) {
+			multipart.addText(pair.a, pair.b);
+		}
+		final byte[] head = multipart.startFile(UPLOAD_PART_NAME, fileForUpload.getName());
+
+		multipart.addText("rand_num", rand_num) //$NON-NLS-1$
+			.addText("url", url) //$NON-NLS-1$
+			.addText("param_order", namesInOrder) //$NON-NLS-1$
+			.addText("signature", signature); //$NON-NLS-1$
+		final byte[] tail = multipart.finish();
+
+		DalFileUpload upload = new DalFileUpload(fileForUpload);
+		FileUploadPublisher fileUploadPublisher = new FileUploadPublisher(head, upload, tail);
+		BodyPublisher publisher = BodyPublishers.fromPublisher(fileUploadPublisher, fileUploadPublisher.contentLength());
+
+		return createMultipartPost(url, multipart.boundary, publisher, upload);
+	}
+
+	@Override
+	public DalRequest createForUpload(String url, List<Pair<String,String>> pairs,
+			String rand_num, String namesInOrder, String signature,
+			final Factory<InputStream> factory)
+	{
+		final Multipart multipart = new Multipart();
+		final byte[] head = multipart.startFile(UPLOAD_PART_NAME, UPLOAD_PART_NAME);
+
+		multipart.addText("rand_num", rand_num) //$NON-NLS-1$
+			.addText("url", url); //$NON-NLS-1$
+		for (Pair<String,String> pair : pairs) {
+			multipart.addText(pair.a, pair.b);
+		}
+		multipart.addText("param_order", namesInOrder) //$NON-NLS-1$
+			.addText("signature", signature); //$NON-NLS-1$
+		final byte[] tail = multipart.finish();
+
+		// Length is unknown so this will be sent chunked (as for the apache InputStreamBody).
+		BodyPublisher publisher = BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+			@Override
+			public InputStream get() {
+				return new SequenceInputStream(Collections.enumeration(List.of(
+						new ByteArrayInputStream(head),
+						factory.create(),
+						new ByteArrayInputStream(tail))));
+			}
+		});
+
+		return createMultipartPost(url, multipart.boundary, publisher, null);
+	}
+
+	private DalRequest createMultipartPost(String url, String boundary, BodyPublisher publisher, DalFileUpload upload) {
+		URI uri = URI.create(url);
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+				.header("Content-Type", "multipart/form-data; boundary=" + boundary) //$NON-NLS-1$ //$NON-NLS-2$
+				.POST(publisher);
+		return new JdkDalRequest(uri, builder, upload);
+	}
+
+	/**
+	 * Accumulates the bytes of a multipart/form-data body. Text parts are
+	 * buffered; the content of the file part is supplied separately so that
+	 * it can be streamed.
+	 */
+	static private class Multipart {
+		final String boundary = "----DalClientBoundary" + UUID.randomUUID().toString().replace("-", ""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		private final StringBuilder sb = new StringBuilder();
+
+		Multipart addText(String name, String value) {
+			sb.append("--").append(boundary).append(CRLF) //$NON-NLS-1$
+				.append("Content-Disposition: form-data; name=\"").append(name).append('"').append(CRLF) //$NON-NLS-1$
+				.append("Content-Type: text/plain; charset=UTF-8").append(CRLF) //$NON-NLS-1$
+				.append(CRLF)
+				.append(value == null ? "" : value).append(CRLF); //$NON-NLS-1$
+			return this;
+		}
+
+		/**
+		 * Return the bytes accumulated so far followed by the headers for the file part.
+		 */
+		byte[] startFile(String name, String filename) {
+			sb.append("--").append(boundary).append(CRLF) //$NON-NLS-1$
+				.append("Content-Disposition: form-data; name=\"").append(name) //$NON-NLS-1$
+				.append("\"; filename=\"").append(filename).append('"').append(CRLF) //$NON-NLS-1$
+				.append("Content-Type: application/octet-stream").append(CRLF) //$NON-NLS-1$
+				.append(CRLF);
+			byte[] result = sb.toString().getBytes(StandardCharsets.UTF_8);
+			sb.setLength(0);
+			sb.append(CRLF);
+			return result;
+		}
+
+		/**
+		 * Return the bytes accumulated since startFile() followed by the closing boundary.
+		 */
+		byte[] finish() {
+			sb.append("--").append(boundary).append("--").append(CRLF); //$NON-NLS-1$ //$NON-NLS-2$
+			return sb.toString().getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	static String getReasonPhrase(int statusCode) {
+		switch (statusCode) {
+		case 200: return "OK"; //$NON-NLS-1$
+		case 201: return "Created"; //$NON-NLS-1$
+		case 204: return "No Content"; //$NON-NLS-1$
+		case 206: return "Partial Content"; //$NON-NLS-1$
+		case 301: return "Moved Permanently"; //$NON-NLS-1$
+		case 302: return "Found"; //$NON-NLS-1$
+		case 304: return "Not Modified"; //$NON-NLS-1$
+		case 400: return "Bad Request"; //$NON-NLS-1$
+		case 401: return "Unauthorized"; //$NON-NLS-1$
+		case 403: return "Forbidden"; //$NON-NLS-1$
+		case 404: return "Not Found"; //$NON-NLS-1$
+		case 405: return "Method Not Allowed"; //$NON-NLS-1$
+		case 408: return "Request Timeout"; //$NON-NLS-1$
+		case 409: return "Conflict"; //$NON-NLS-1$
+		case 410: return "Gone"; //$NON-NLS-1$
+		case 413: return "Payload Too Large"; //$NON-NLS-1$
+		case 416: return "Range Not Satisfiable"; //$NON-NLS-1$
+		case 429: return "Too Many Requests"; //$NON-NLS-1$
+		case 500: return "Internal Server Error"; //$NON-NLS-1$
+		case 501: return "Not Implemented"; //$NON-NLS-1$
+		case 502: return "Bad Gateway"; //$NON-NLS-1$
+		case 503: return "Service Unavailable"; //$NON-NLS-1$
+		case 504: return "Gateway Timeout"; //$NON-NLS-1$
+		default:
+			return "HTTP " + statusCode; //$NON-NLS-1$
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.diversityarrays.dalclient.http.DalFileUpload;
+import com.diversityarrays.dalclient.http.DalHeader;
+import com.diversityarrays.dalclient.http.DalRequest;
+
+/**
+ * Provide an implementation of DalRequest for use with java.net.http.
+ * The HttpRequest is built when the request is executed.
+ * @author brian
+ *
+ */
+public class JdkDalRequest implements DalRequest {
+
+	private final URI uri;
+	private final HttpRequest.Builder builder;
+	private final DalFileUpload fileUpload;
+
+	private volatile boolean aborted;
+	private volatile Future<?> inFlight;
+	private volatile InputStream responseBody;
+
+	public JdkDalRequest(URI uri, HttpRequest.Builder builder) {
+		this(uri, builder, null);
+	}
+
+	public JdkDalRequest(URI uri, HttpRequest.Builder builder, DalFileUpload fileUpload) {
+		this.uri = uri;
+		this.builder = builder;
+		this.fileUpload = fileUpload;
+	}
+
+	HttpRequest build() {
+		return builder.build();
+	}
+
+	@Override
+	public URI getURI() {
+		return uri;
+	}
+
+	@Override
+	public DalHeader[] getAllHeaders() {
+		List<DalHeader> result = new ArrayList<>();
+		for (Map.Entry<String, List<String>> entry : builder.copy().build().headers().map().entrySet()) {
+			for (String value : entry.getValue()) {
+				result.add(new DalHeader(entry.getKey(), value));
+			}
+		}
+		return result.toArray(new DalHeader[result.size()]);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		builder.setHeader(name, value);
+	}
+
+	@Override
+	public void abort() {
+		aborted = true;
+		Future<?> f = inFlight;
+		if (f != null) {
+			f.cancel(true);
+		}
+		InputStream body = responseBody;
+		if (body != null) {
+			try { body.close(); }
+			catch (IOException ignore) { }
+		}
+	}
+
+	/**
+	 * The connect timeout is a property of the HttpClient so only the
+	 * socket timeout is applied, as the time allowed for the response headers.
+	 */
+	@Override
+	public void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis) {
+		if (socketTimeoutMillis > 0) {
+			builder.timeout(Duration.ofMillis(socketTimeoutMillis));
+		}
+	}
+
+	boolean isAborted() {
+		return aborted;
+	}
+
+	void setInFlight(Future<?> future) {
+		inFlight = future;
+		if (aborted) {
+			future.cancel(true);
+		}
+	}
+
+	void setResponseBody(InputStream body) {
+		responseBody = body;
+		if (aborted) {
+			abort();
+		}
+	}
+
+	@Override
+	public DalFileUpload getFileUpload() {
+		return fileUpload;
+	}
+}
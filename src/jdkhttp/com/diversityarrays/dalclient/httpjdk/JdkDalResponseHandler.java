@@ -0,0 +1,42 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+import java.io.IOException;
+
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalResponseHandler;
+
+/**
+ * Provide the equivalent of the apache BasicResponseHandler: the entity is
+ * returned as a String for successful responses and an IOException is thrown otherwise.
+ * @author brian
+ *
+ */
+public class JdkDalResponseHandler implements DalResponseHandler<String> {
+
+	@Override
+	public String handleResponse(DalCloseableHttpResponse response) throws IOException {
+		int statusCode = response.getStatusCode();
+		if (statusCode >= 300) {
+			throw new IOException("HTTP " + statusCode + ": " + response.getReasonPhrase()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return response.getEntityAsString();
+	}
+
+}
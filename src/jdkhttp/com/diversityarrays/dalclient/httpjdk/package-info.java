@@ -0,0 +1,29 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.httpjdk;
+
+/**
+ * Provides implementation of the interfaces in <code>com.diversityarrays.dalclient.http</code>
+ * using the <code>java.net.http.HttpClient</code> of Java 11 and later.
+ * HTTP/2 is negotiated with servers which support it so concurrent requests from a
+ * session share a single multiplexed connection.
+ * <p>
+ * Select it by setting the System property:<pre>
+ * com.diversityarrays.dalclient.DefaultDALClient.HTTP_FACTORY_CLASS_NAME=com.diversityarrays.dalclient.httpjdk.JdkDalHttpFactory
+ * </pre>
+ */
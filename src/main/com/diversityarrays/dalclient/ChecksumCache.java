@@ -0,0 +1,208 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the MD5 checksums of uploaded files so that uploading an unchanged
+ * file again does not read it all to compute the checksum. An entry is only used
+ * if the file still has the same size and modification time.
+ * <p>
+ * If a cache file is given, each new checksum is appended to it as a line of<pre>
+ * md5 TAB size TAB lastModified TAB canonicalPath
+ * </pre>
+ * and the entries are loaded when the cache is first used; later lines take precedence.
+ * Use <code>DefaultDALClient.setChecksumCache()</code> to apply the cache to uploads.
+ * @author brian
+ * @since 5.2.0
+ */
+public class ChecksumCache {
+
+	static private final Charset UTF_8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	static private class Entry {
+		final String md5;
+		final long size;
+		final long lastModified;
+
+		Entry(String md5, long size, long lastModified) {
+			this.md5 = md5;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final File cacheFile;
+
+	// A lock rather than a monitor as the cache file is read and written while holding it
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// All guarded by lock
+	private Map<String,Entry> entryByPath;
+	private long hitCount;
+	private long missCount;
+
+	/**
+	 * Create a cache which is only held in memory.
+	 */
+	public ChecksumCache() {
+		this(null);
+	}
+
+	/**
+	 * @param cacheFile where the checksums are kept; may be null
+	 */
+	public ChecksumCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Return the MD5 checksum of the file, computing it only if the file is
+	 * not in the cache or has changed since it was cached.
+	 * @param file
+	 * @return the MD5 checksum as a String of hexadecimal characters
+	 * @throws IOException
+	 */
+	public String getMD5checksum(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		if (lastModified == 0) {
+			throw new FileNotFoundException(path);
+		}
+
+		lock.lock();
+		try {
+			Entry entry = getEntries().get(path);
+			if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+				++hitCount;
+				return entry.md5;
+			}
+			++missCount;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		String md5 = DalUtil.computeMD5checksum(file);
+		if (file.length() != size || file.lastModified() != lastModified) {
+			// Changed while we were reading it
+			return md5;
+		}
+
+		lock.lock();
+		try {
+			getEntries().put(path, new Entry(md5, size, lastModified));
+			if (cacheFile != null) {
+				try (Writer w = new OutputStreamWriter(new FileOutputStream(cacheFile, true), UTF_8)) {
+					w.write(md5 + '\t' + size + '\t' + lastModified + '\t' + path + '\n');
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		return md5;
+	}
+
+	// Caller must hold lock
+	private Map<String,Entry> getEntries() throws IOException {
+		if (entryByPath == null) {
+			entryByPath = new HashMap<>();
+			if (cacheFile != null && cacheFile.exists()) {
+				try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), UTF_8))) {
+					String line;
+					while (null != (line = br.readLine())) {
+						String[] parts = line.split("\t", 4); //$NON-NLS-1$
+						if (parts.length == 4) {
+							try {
+								entryByPath.put(parts[3],
+										new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+							}
+							catch (NumberFormatException ignore) {
+								// A partly written line
+							}
+						}
+					}
+				}
+			}
+		}
+		return entryByPath;
+	}
+
+	/**
+	 * Forget all of the checksums, including those in the cache file.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			entryByPath = new HashMap<>();
+			if (cacheFile != null) {
+				cacheFile.delete();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		lock.lock();
+		try {
+			return hitCount;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMissCount() {
+		lock.lock();
+		try {
+			return missCount;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ChecksumCache[" + (cacheFile == null ? "memory" : cacheFile.getPath()) //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", hits=" + getHitCount() //$NON-NLS-1$
+				+ ", misses=" + getMissCount() //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -23,6 +23,7 @@ import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Provide a mechanism to build DAL command urls using templates which are "/" delimited
@@ -51,6 +52,7 @@ public class CommandBuilder implements QueryBuilder {
 	private Map<String,String> parameters = new HashMap<String,String>();
 	private Map<OperationKeyword,String> methodParams = new LinkedHashMap<OperationKeyword,String>();
 	private final DALClient dalClient;
+	private RequestOptions requestOptions;
 
 	/**
 	 * Construct a new CommandBuilder using the specified template.
@@ -175,7 +177,32 @@ public class CommandBuilder implements QueryBuilder {
 			throw new DalMissingParameterException("DALClient was not supplied in constructor");
 		}
 		String cmd = build();
-		return dalClient.performQuery(cmd);
+		return dalClient.performQuery(cmd, requestOptions);
+	}
+
+	@Override
+	public QueryBuilder setRequestOptions(RequestOptions options) {
+		this.requestOptions = options;
+		return this;
+	}
+
+	@Override
+	public Future<DalResponse> executeAsync(DalResponseCallback callback) throws DalMissingParameterException {
+		if (dalClient==null) {
+			throw new DalMissingParameterException("DALClient was not supplied in constructor");
+		}
+		String cmd = build();
+		return dalClient.performQueryAsync(cmd, requestOptions, callback);
+	}
+
+	@Override
+	public boolean visitResults(DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException, DalMissingParameterException {
+		if (dalClient==null) {
+			throw new DalMissingParameterException("DALClient was not supplied in constructor");
+		}
+		String cmd = build();
+		return dalClient.visitQueryResults(cmd, requestOptions, visitor, wantedTagNames);
 	}
 
 }
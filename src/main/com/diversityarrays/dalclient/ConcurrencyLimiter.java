@@ -0,0 +1,337 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to one DAL server and adjusts the
+ * limit automatically using AIMD (additive increase, multiplicative decrease):
+ * <ul>
+ * <li>while response times stay within <code>rttTolerance</code> times the
+ * smallest recently observed response time, and the limit is actually being used,
+ * the limit grows by 1/limit for each response (about 1 per round trip);</li>
+ * <li>when a response is slower than that, or the request fails with an
+ * IOException or an overload status (429, 503, 504), the limit is multiplied
+ * by <code>backoffRatio</code>.</li>
+ * </ul>
+ * This keeps the load near the point where the server's latency starts to rise.
+ * <p>
+ * Requests beyond the limit wait for up to <code>maxWaitMillis</code> and are then refused
+ * with a DalConcurrencyLimitException; set it to zero to fail fast.
+ * <p>
+ * Use <code>forBaseUrl()</code> so that all of the clients for a server share the same limiter.
+ * @author brian
+ * @since 5.2.0
+ */
+public class ConcurrencyLimiter {
+
+	static public final int DEFAULT_INITIAL_LIMIT = 10;
+	static public final int DEFAULT_MIN_LIMIT = 1;
+	static public final int DEFAULT_MAX_LIMIT = 200;
+	static public final double DEFAULT_BACKOFF_RATIO = 0.9;
+	static public final double DEFAULT_RTT_TOLERANCE = 2.0;
+	static public final long DEFAULT_MAX_WAIT_MILLIS = 60000;
+	/**
+	 * The smallest response time is forgotten after this many responses so
+	 * that the limiter adapts when the server's baseline changes.
+	 */
+	static public final int MIN_RTT_WINDOW = 500;
+
+	static private final long RTT_FLOOR_MILLIS = 5;
+
+	static private final ConcurrentMap<String,ConcurrencyLimiter> LIMITER_BY_BASE_URL = new ConcurrentHashMap<>();
+
+	/**
+	 * Return the limiter shared by all clients of the DAL server at <code>baseUrl</code>.
+	 * @param baseUrl
+	 * @return a ConcurrencyLimiter
+	 */
+	static public ConcurrencyLimiter forBaseUrl(String baseUrl) {
+		ConcurrencyLimiter result = LIMITER_BY_BASE_URL.get(baseUrl);
+		if (result == null) {
+			ConcurrencyLimiter tmp = new ConcurrencyLimiter(baseUrl);
+			result = LIMITER_BY_BASE_URL.putIfAbsent(baseUrl, tmp);
+			if (result == null) {
+				result = tmp;
+			}
+		}
+		return result;
+	}
+
+	private final String name;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition permitAvailable = lock.newCondition();
+
+	// All guarded by lock
+	private double limit = DEFAULT_INITIAL_LIMIT;
+	private int minLimit = DEFAULT_MIN_LIMIT;
+	private int maxLimit = DEFAULT_MAX_LIMIT;
+	private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+	private double rttTolerance = DEFAULT_RTT_TOLERANCE;
+	private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+	private int inFlight;
+	private int waiting;
+	private long minRttMillis = -1;
+	private int responsesSinceMinRtt;
+	private long lastDecreaseMillis;
+
+	private final AtomicLong acquiredCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong decreaseCount = new AtomicLong();
+
+	public ConcurrencyLimiter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ConcurrencyLimiter setLimits(int initial, int min, int max) {
+		if (min < 1 || max < min || initial < min || initial > max) {
+			throw new IllegalArgumentException("Require 1 <= min <= initial <= max"); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			this.minLimit = min;
+			this.maxLimit = max;
+			this.limit = initial;
+			permitAvailable.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public ConcurrencyLimiter setBackoffRatio(double ratio) {
+		if (ratio <= 0 || ratio >= 1) {
+			throw new IllegalArgumentException("ratio must be in (0, 1): " + ratio); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			this.backoffRatio = ratio;
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public ConcurrencyLimiter setRttTolerance(double tolerance) {
+		if (tolerance < 1) {
+			throw new IllegalArgumentException("tolerance must be >= 1: " + tolerance); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			this.rttTolerance = tolerance;
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @param millis how long a request may wait for a permit; zero to fail fast
+	 * @return this ConcurrencyLimiter
+	 */
+	public ConcurrencyLimiter setMaxWaitMillis(long millis) {
+		lock.lock();
+		try {
+			this.maxWaitMillis = Math.max(0, millis);
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Wait for permission to send a request. Every successful call must be
+	 * followed by a call to <code>release()</code>.
+	 * @throws DalConcurrencyLimitException if no permit became available in time
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire() throws DalConcurrencyLimitException, InterruptedIOException {
+		acquire(0);
+	}
+
+	/**
+	 * Wait for permission to send a request but not beyond <code>deadline</code>.
+	 * Every successful call must be followed by a call to <code>release()</code>.
+	 * @param deadline the time by which the request must complete or zero if none
+	 * @throws DalConcurrencyLimitException if no permit became available in time
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(long deadline) throws DalConcurrencyLimitException, InterruptedIOException {
+		lock.lock();
+		try {
+			long waitMillis = maxWaitMillis;
+			if (deadline > 0) {
+				waitMillis = Math.min(waitMillis, deadline - System.currentTimeMillis());
+			}
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			++waiting;
+			try {
+				while (inFlight >= (int) limit) {
+					if (remainingNanos <= 0) {
+						rejectedCount.incrementAndGet();
+						throw new DalConcurrencyLimitException(
+								"Concurrency limit reached for " + name + ": " + (int) limit, //$NON-NLS-1$ //$NON-NLS-2$
+								(int) limit);
+					}
+					remainingNanos = permitAvailable.awaitNanos(remainingNanos);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + name); //$NON-NLS-1$
+			}
+			finally {
+				--waiting;
+			}
+			++inFlight;
+			acquiredCount.incrementAndGet();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the permit obtained by <code>acquire()</code> and adjust the limit.
+	 * @param rttMillis the response time or -1 if not known
+	 * @param overloaded true if the request failed or the server reported overload
+	 */
+	public void release(long rttMillis, boolean overloaded) {
+		lock.lock();
+		try {
+			boolean wasSaturated = inFlight * 2 >= (int) limit;
+			--inFlight;
+
+			if (rttMillis >= 0) {
+				if (minRttMillis < 0 || rttMillis < minRttMillis || ++responsesSinceMinRtt > MIN_RTT_WINDOW) {
+					minRttMillis = rttMillis;
+					responsesSinceMinRtt = 0;
+				}
+			}
+
+			// Very small baselines would make ordinary jitter look like queueing
+			boolean tooSlow = rttMillis >= 0
+					&& rttMillis > Math.max(minRttMillis, RTT_FLOOR_MILLIS) * rttTolerance;
+			if (overloaded || tooSlow) {
+				// Only decrease once per round trip as all of the requests
+				// in flight are likely to see the same congestion.
+				long now = System.currentTimeMillis();
+				if (now - lastDecreaseMillis >= Math.max(rttMillis, minRttMillis)) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+					lastDecreaseMillis = now;
+					decreaseCount.incrementAndGet();
+				}
+			}
+			else if (wasSaturated) {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+			permitAvailable.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the HTTP status code indicates that the server is overloaded
+	 */
+	static public boolean isOverloadStatus(int httpStatusCode) {
+		return httpStatusCode == 429 || httpStatusCode == 503 || httpStatusCode == 504;
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting() {
+		lock.lock();
+		try {
+			return waiting;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMinRttMillis() {
+		lock.lock();
+		try {
+			return minRttMillis;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getDecreaseCount() {
+		return decreaseCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConcurrencyLimiter[" + name //$NON-NLS-1$
+				+ ", limit=" + getLimit() //$NON-NLS-1$
+				+ ", inFlight=" + getInFlight() //$NON-NLS-1$
+				+ ", waiting=" + getWaiting() //$NON-NLS-1$
+				+ ", minRttMillis=" + getMinRttMillis() //$NON-NLS-1$
+				+ ", acquired=" + getAcquiredCount() //$NON-NLS-1$
+				+ ", rejected=" + getRejectedCount() //$NON-NLS-1$
+				+ ", decreases=" + getDecreaseCount() //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.net.HttpCookie;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections15.Factory;
 import org.apache.commons.logging.Log;
@@ -231,6 +232,15 @@ public interface DALClient {
 	 */
 	static final String ATTR_XML = "xml"; //$NON-NLS-1$
 
+	/**
+	 * This is the tag name for the record which contains the URL of the
+	 * file produced by DAL <code>export/<i>&lt;entity&gt;</i></code> operations.
+	 * The URL is the value of the attribute named for the format of the
+	 * file (e.g. <code>"csv"</code>). This constant is <code>"OutputFile"</code>.
+	 * @since 5.2.0
+	 */
+	static final String TAG_OUTPUT_FILE = "OutputFile"; //$NON-NLS-1$
+
 	/**
 	 * Return the base URL for the DAL server.
 	 *
@@ -359,6 +369,20 @@ public interface DALClient {
 	DalResponse performQuery(String command) throws IOException,
 			DalResponseException;
 
+	/**
+	 * Perform a simple query command with the timeouts and cancellation
+	 * handle specified in the RequestOptions.
+	 *
+	 * @param command
+	 * @param options may be null
+	 * @return the DalResponse for this query
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @since 5.2.0
+	 */
+	DalResponse performQuery(String command, RequestOptions options) throws IOException,
+			DalResponseException;
+
 	/**
 	 * Prepare to perform a query command using the Fluent programming style.
 	 * For example:
@@ -373,6 +397,72 @@ public interface DALClient {
 	 */
 	QueryBuilder prepareQuery(String command);
 
+	/**
+	 * Perform a simple query command without blocking the calling thread.
+	 * The request is performed using the client's executor (or, if the transport
+	 * supports it, without any thread waiting for the response) and the callback,
+	 * if supplied, is notified when the request completes.
+	 * For example:
+	 *
+	 * <pre>
+	 * Future&lt;DalResponse&gt; future = client.performQueryAsync(&quot;list/genus&quot;, null);
+	 *     :
+	 * DalResponse response = future.get();
+	 * </pre>
+	 *
+	 * @param command
+	 * @param callback may be null
+	 * @return a Future for the DalResponse
+	 * @since 5.2.0
+	 */
+	Future<DalResponse> performQueryAsync(String command, DalResponseCallback callback);
+
+	/**
+	 * Perform a simple query command without blocking the calling thread
+	 * using the timeouts and cancellation handle specified in the RequestOptions.
+	 * @param command
+	 * @param options may be null
+	 * @param callback may be null
+	 * @return a Future for the DalResponse
+	 * @since 5.2.0
+	 */
+	Future<DalResponse> performQueryAsync(String command, RequestOptions options, DalResponseCallback callback);
+
+	/**
+	 * Perform a simple query command and visit the result records while the
+	 * response is still being received. Unlike <code>performQuery()</code>
+	 * the response is never held in memory so this is the preferred way to
+	 * process very large results.
+	 * <p>
+	 * The records are visited in the order in which they appear in the response.
+	 * If no <code>wantedTagNames</code> are supplied then all of the records
+	 * are visited except for <i>RecordMeta</i> and <i>Pagination</i>.
+	 * @param command
+	 * @param visitor
+	 * @param wantedTagNames
+	 * @return true unless the visitor ever returned false
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @since 5.2.0
+	 */
+	boolean visitQueryResults(String command, DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException;
+
+	/**
+	 * As for <code>visitQueryResults(command, visitor, wantedTagNames)</code> but using
+	 * the timeouts and cancellation handle specified in the RequestOptions.
+	 * @param command
+	 * @param options may be null
+	 * @param visitor
+	 * @param wantedTagNames
+	 * @return true unless the visitor ever returned false
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @since 5.2.0
+	 */
+	boolean visitQueryResults(String command, RequestOptions options, DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException;
+
 	/**
 	 * Synonym for prepareQuery that is explicit that a GET will be used.
 	 * @param command
@@ -416,6 +506,35 @@ public interface DALClient {
 	DalResponse performUpdate(String command, Map<String, String> postParameters)
 			throws IOException, DalResponseException;
 
+	/**
+	 * Perform an UPDATE command with the timeouts and cancellation
+	 * handle specified in the RequestOptions.
+	 *
+	 * @param command
+	 * @param postParameters may be null
+	 * @param options may be null
+	 * @return a DalResponse instance
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @since 5.2.0
+	 */
+	DalResponse performUpdate(String command, Map<String, String> postParameters, RequestOptions options)
+			throws IOException, DalResponseException;
+
+	/**
+	 * Perform an UPDATE command without blocking the calling thread.
+	 * The request is performed using the client's executor and the callback,
+	 * if supplied, is notified when the request completes.
+	 *
+	 * @param command
+	 * @param postParameters may be null
+	 * @param callback may be null
+	 * @return a Future for the DalResponse
+	 * @since 5.2.0
+	 */
+	Future<DalResponse> performUpdateAsync(String command, Map<String, String> postParameters,
+			DalResponseCallback callback);
+
 	/**
 	 * Perform an UPDATE command using the Fluent programming style. For
 	 * example:
@@ -433,6 +552,24 @@ public interface DALClient {
 	 */
 	UpdateBuilder prepareUpdate(String command);
 
+	/**
+	 * Prepare an UPDATE command that will be performed many times with the same
+	 * parameter names. For example:
+	 *
+	 * <pre>
+	 * PreparedUpdate update = client.prepareRepeatedUpdate("update/genotype/_id", "GenotypeName", "GenotypeNote");
+	 * for (String[] row : rows) {
+	 *     DalResponse response = update.execute(row[0], row[1]);
+	 * }
+	 * </pre>
+	 *
+	 * @param command
+	 * @param parameterNames
+	 * @return a PreparedUpdate instance
+	 * @since 5.2.0
+	 */
+	PreparedUpdate prepareRepeatedUpdate(String command, String ... parameterNames);
+
 	// - - - - - - - - - - - - - - - - - - - -
 
 	/**
@@ -572,6 +709,72 @@ public interface DALClient {
 	DalResponse performExport(String command, Map<String, String> postParameters)
 			throws IOException, DalResponseException;
 
+	/**
+	 * Perform an EXPORT command and then visit the records in the file it
+	 * produces while that file is being downloaded. The file is never held
+	 * in memory and the visitor is called while the rest of it is still arriving.
+	 * The file is parsed as XML, JSON or CSV according to its Content-Type
+	 * (or the extension of its URL if the Content-Type is not specific).
+	 * CSV files are expected to have a heading line which provides the keys for the rowdata.
+	 * <p>
+	 * If the file is not yet available (HTTP 404) the request is repeated for a while.
+	 * @param command
+	 * @param postParameters
+	 * @param options may be null
+	 * @param visitor
+	 * @param wantedTagNames may be empty
+	 * @return true unless the visitor ever returned false
+	 * @throws IOException
+	 * @throws DalResponseException if the export fails or does not provide an OutputFile URL
+	 * @since 5.2.0
+	 */
+	boolean visitExportResults(String command, Map<String, String> postParameters, RequestOptions options,
+			DalResponseRecordVisitor visitor, String ... wantedTagNames)
+			throws IOException, DalResponseException;
+
+	/**
+	 * Download the file at the URL, such as one returned by an EXPORT command,
+	 * straight to a local file without holding it in memory. For example:
+	 *
+	 * <pre>
+	 * DownloadResult result = client.downloadToFile(exportUrl, new File("genotypes.csv"), true, listener, null);
+	 * </pre>
+	 *
+	 * If the connection fails after some of the content has arrived the rest
+	 * is requested using an HTTP Range header.
+	 *
+	 * @param url either an absolute URL or a command relative to the base URL
+	 * @param file where the content is written
+	 * @param resume if true then keep the bytes already in the file and only ask for the rest
+	 * @param listener may be null
+	 * @param options may be null
+	 * @return a DownloadResult
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws IllegalStateException if not logged in
+	 * @since 5.2.0
+	 */
+	DownloadResult downloadToFile(String url, File file, boolean resume, DownloadListener listener, RequestOptions options)
+			throws IOException, DalResponseException;
+
+	/**
+	 * Download the file at the URL using up to <code>connections</code> concurrent
+	 * requests, each for a different byte range which is written to the file at its offset.
+	 * If the server does not support Range requests the file is downloaded as a single stream.
+	 * @param url either an absolute URL or a command relative to the base URL
+	 * @param file where the content is written
+	 * @param connections the maximum number of concurrent requests
+	 * @param listener may be null, otherwise it must be thread-safe
+	 * @param options may be null
+	 * @return a DownloadResult
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws IllegalStateException if not logged in
+	 * @since 5.2.0
+	 */
+	DownloadResult downloadToFileInParallel(String url, File file, int connections, DownloadListener listener, RequestOptions options)
+			throws IOException, DalResponseException;
+
 	/**
 	 * Establish a log for the client.
 	 *
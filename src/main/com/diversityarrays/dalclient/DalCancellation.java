@@ -0,0 +1,79 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A handle which may be used from any thread to cancel the requests that
+ * were started with it (see <code>RequestOptions.setCancellation()</code>).
+ * Cancelling aborts the underlying HTTP request, which releases its connection,
+ * and the thread performing the request receives an InterruptedIOException.
+ * Requests started after <code>cancel()</code> fail immediately.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalCancellation {
+
+	/**
+	 * Implemented by the parties that can be cancelled.
+	 */
+	interface Cancellable {
+		void cancel();
+	}
+
+	private final List<Cancellable> cancellables = new ArrayList<>();
+	private boolean cancelled;
+
+	/**
+	 * Cancel all of the requests in progress with this handle and any that are started later.
+	 */
+	public void cancel() {
+		List<Cancellable> list;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			list = new ArrayList<>(cancellables);
+			cancellables.clear();
+		}
+		for (Cancellable c : list) {
+			c.cancel();
+		}
+	}
+
+	synchronized public boolean isCancelled() {
+		return cancelled;
+	}
+
+	void register(Cancellable c) {
+		synchronized (this) {
+			if (! cancelled) {
+				cancellables.add(c);
+				return;
+			}
+		}
+		c.cancel();
+	}
+
+	synchronized void unregister(Cancellable c) {
+		cancellables.remove(c);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is refused by the ConcurrencyLimiter because the
+ * DAL server is already handling as many requests as it can.
+ * Because it is an IOException the caller may treat it like any other
+ * transient communication failure.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalConcurrencyLimitException extends IOException {
+
+	private final int limit;
+
+	public DalConcurrencyLimitException(String message, int limit) {
+		super(message);
+		this.limit = limit;
+	}
+
+	/**
+	 * @return the concurrency limit in force when the request was refused
+	 */
+	public int getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.net.PasswordAuthentication;
+
+/**
+ * Provide an implementation of this to <code>DefaultDALClient.setCredentialsProvider()</code>
+ * so that the client can log in again when the server expires its session.
+ * <p>
+ * The method is called on the thread whose request found the session expired
+ * (or on a background thread for a proactive refresh) while other requests
+ * wait for the new login, so implementations should not block for long periods.
+ * @author brian
+ * @since 5.2.0
+ */
+public interface DalCredentialsProvider {
+
+	/**
+	 * @param baseUrl the DAL server
+	 * @param userName the user of the session being replaced
+	 * @return the credentials for the new login or null to let the request fail
+	 */
+	public PasswordAuthentication getCredentials(String baseUrl, String userName);
+}
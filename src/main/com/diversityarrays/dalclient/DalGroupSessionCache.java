@@ -0,0 +1,398 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.PasswordAuthentication;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.collections15.Factory;
+import org.apache.commons.logging.Log;
+
+import com.diversityarrays.dalclient.http.DalHttpFactory;
+
+/**
+ * <p>
+ * Keeps one logged-in DALClient for each group so that requests on behalf of
+ * different groups neither wait for a <code>switchGroup()</code> round trip
+ * nor change the group of a client which another thread is using.
+ * Requests for different groups run in parallel.
+ * <p>Usage:<pre>
+ * DalGroupSessionCache cache = new DalGroupSessionCache(baseUrl, username, password, 10);
+ * ...
+ * DalResponse response = cache.execute(groupId, new DalSessionPool.SessionTask&lt;DalResponse&gt;() {
+ *     public DalResponse run(DALClient client) throws IOException, DalResponseException {
+ *         return client.performQuery("list/trial/20/page/1");
+ *     }
+ * });
+ * ...
+ * cache.shutdown();
+ * </pre>
+ * The client for a group is created (logged in and switched to the group) by the
+ * first request for it; concurrent requests for the same group wait for that login.
+ * When there are more than <code>maxSessions</code> the least recently used is
+ * evicted and logged out as soon as no request is using it. That logout is done
+ * by a background thread so the request which caused it does not wait for it.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalGroupSessionCache {
+
+	static private class Entry {
+		final String groupId;
+		final FutureTask<DALClient> future;
+		/** The number of requests using the client; guarded by the cache lock */
+		int leases;
+		boolean evicted;
+
+		Entry(String groupId, FutureTask<DALClient> future) {
+			this.groupId = groupId;
+			this.future = future;
+		}
+	}
+
+	private final Factory<? extends DALClient> clientFactory;
+	private final String username;
+	private final String password;
+	private final int maxSessions;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** In access order so that the first is the least recently used */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private boolean closed;
+
+	private final AtomicInteger hitCount = new AtomicInteger();
+	private final AtomicInteger loginCount = new AtomicInteger();
+	private final AtomicInteger evictionCount = new AtomicInteger();
+
+	/** Logs out evicted sessions; its thread stops when there is nothing to do */
+	private final ThreadPoolExecutor logoutExecutor;
+
+	private Log log;
+
+	/**
+	 * Create a cache of DefaultDALClients which share a DalHttpFactory and
+	 * log in again with the same credentials if the server expires their session.
+	 * @param baseUrl
+	 * @param username
+	 * @param password
+	 * @param maxSessions
+	 */
+	public DalGroupSessionCache(final String baseUrl, final String username, final String password, int maxSessions) {
+		this(new Factory<DALClient>() {
+			private final DalHttpFactory httpFactory = DefaultDALClient.createDalHttpFactory();
+			private final DalCredentialsProvider credentials = new DalCredentialsProvider() {
+				@Override
+				public PasswordAuthentication getCredentials(String url, String userName) {
+					return new PasswordAuthentication(username, password.toCharArray());
+				}
+			};
+			@Override
+			public DALClient create() {
+				return new DefaultDALClient(baseUrl, httpFactory).setCredentialsProvider(credentials);
+			}
+		}, username, password, maxSessions);
+	}
+
+	/**
+	 * @param clientFactory creates (and configures) each client
+	 * @param username
+	 * @param password
+	 * @param maxSessions the number of groups to keep a session for
+	 */
+	public DalGroupSessionCache(Factory<? extends DALClient> clientFactory, String username, String password, int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("maxSessions must be at least 1: " + maxSessions); //$NON-NLS-1$
+		}
+		this.clientFactory = clientFactory;
+		this.username = username;
+		this.password = password;
+		this.maxSessions = maxSessions;
+		this.logoutExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DalGroupSessionCache-logout"); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.logoutExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public void setLog(Log log) {
+		this.log = log;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * @return the groups which currently have a session, least recently used first
+	 */
+	public List<String> getGroupIds() {
+		lock.lock();
+		try {
+			return new ArrayList<>(entries.keySet());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests which used an existing session
+	 */
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of sessions created
+	 */
+	public int getLoginCount() {
+		return loginCount.get();
+	}
+
+	/**
+	 * @return the number of sessions evicted
+	 */
+	public int getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Run the task with the client for the group, logging in first if there is none.
+	 * @param groupId
+	 * @param task
+	 * @return the result of the task
+	 * @throws IOException
+	 * @throws DalException if the login or switch to the group failed or the task threw a DalResponseException
+	 * @throws IllegalStateException if the cache has been shut down
+	 */
+	public <T> T execute(String groupId, DalSessionPool.SessionTask<T> task) throws IOException, DalException {
+		List<Entry> toLogout = new ArrayList<>();
+		Entry entry = acquire(groupId, toLogout);
+		try {
+			for (Entry evicted : toLogout) {
+				logoutInBackground(evicted);
+			}
+			return task.run(getClient(entry));
+		}
+		finally {
+			if (release(entry)) {
+				logoutInBackground(entry);
+			}
+		}
+	}
+
+	private Entry acquire(final String groupId, List<Entry> toLogout) {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("DalGroupSessionCache has been shut down"); //$NON-NLS-1$
+			}
+			Entry entry = entries.get(groupId);
+			if (entry == null) {
+				entry = new Entry(groupId, new FutureTask<>(new Callable<DALClient>() {
+					@Override
+					public DALClient call() throws Exception {
+						return createClient(groupId);
+					}
+				}));
+				entries.put(groupId, entry);
+				Iterator<Entry> iter = entries.values().iterator();
+				while (entries.size() > maxSessions) {
+					Entry eldest = iter.next();
+					iter.remove();
+					eldest.evicted = true;
+					evictionCount.incrementAndGet();
+					if (eldest.leases == 0) {
+						toLogout.add(eldest);
+					}
+				}
+			}
+			else {
+				hitCount.incrementAndGet();
+			}
+			++entry.leases;
+			return entry;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return true if the entry has been evicted and is no longer in use
+	 */
+	private boolean release(Entry entry) {
+		lock.lock();
+		try {
+			return --entry.leases == 0 && entry.evicted;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private DALClient getClient(Entry entry) throws IOException, DalException {
+		// Only the first caller logs in; the others wait for it
+		entry.future.run();
+		try {
+			return entry.future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for login to group " + entry.groupId); //$NON-NLS-1$
+		}
+		catch (ExecutionException e) {
+			// Let the next request try again
+			lock.lock();
+			try {
+				if (entries.get(entry.groupId) == entry) {
+					entries.remove(entry.groupId);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof DalException) {
+				throw (DalException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private DALClient createClient(String groupId) throws IOException, DalException {
+		DALClient client = clientFactory.create();
+		client.login(username, password);
+		boolean ok = false;
+		try {
+			String err = client.switchGroup(groupId);
+			if (err != null) {
+				throw new DalLoginException(String.format("switchGroup(%s) failed: %s", groupId, err)); //$NON-NLS-1$
+			}
+			ok = true;
+		}
+		finally {
+			if (! ok) {
+				client.logout();
+			}
+		}
+		loginCount.incrementAndGet();
+		if (log != null) {
+			log.info("Logged in '" + username + "' for group " + groupId); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return client;
+	}
+
+	private void logoutInBackground(final Entry entry) {
+		try {
+			logoutExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					logout(entry);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			logout(entry);
+		}
+	}
+
+	private void logout(Entry entry) {
+		// No request is using it so the login has completed (or failed)
+		try {
+			entry.future.get().logout();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException ignore) {
+		}
+	}
+
+	/**
+	 * Log the group's session out now (if no request is using it) or when the last request using it completes.
+	 * @param groupId
+	 */
+	public void evict(String groupId) {
+		Entry entry;
+		lock.lock();
+		try {
+			entry = entries.remove(groupId);
+			if (entry == null) {
+				return;
+			}
+			entry.evicted = true;
+			evictionCount.incrementAndGet();
+			if (entry.leases > 0) {
+				entry = null;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		if (entry != null) {
+			logout(entry);
+		}
+	}
+
+	/**
+	 * Prevent further requests and log out all of the sessions.
+	 * Sessions in use are logged out when their requests complete.
+	 */
+	public void shutdown() {
+		List<String> groupIds;
+		lock.lock();
+		try {
+			closed = true;
+			groupIds = new ArrayList<>(entries.keySet());
+		}
+		finally {
+			lock.unlock();
+		}
+		for (String groupId : groupIds) {
+			evict(groupId);
+		}
+	}
+}
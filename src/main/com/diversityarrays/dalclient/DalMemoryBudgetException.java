@@ -0,0 +1,44 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request or response waits too long for space in the MemoryBudget.
+ * Because it is an IOException the caller may treat it like any other
+ * transient communication failure.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalMemoryBudgetException extends IOException {
+
+	private final long maxBytes;
+
+	public DalMemoryBudgetException(String message, long maxBytes) {
+		super(message);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the size of the budget when the request was refused
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+/**
+ * Provide an implementation of this to be notified when one of the
+ * <i>xxx</i>Async methods of DALClient, QueryBuilder or PostBuilder completes.
+ * <p>
+ * The methods are called on the thread which performed the request, or on a
+ * thread of the HTTP transport, so implementations should not block for long periods.
+ * @author brian
+ * @since 5.2.0
+ */
+public interface DalResponseCallback {
+
+	/**
+	 * Called when the request completed successfully.
+	 * @param response
+	 */
+	public void onResponse(DalResponse response);
+
+	/**
+	 * Called when the request failed or was cancelled.
+	 * The error is usually an IOException or a DalException
+	 * (a CancellationException if the Future was cancelled).
+	 * @param error
+	 */
+	public void onFailure(Throwable error);
+}
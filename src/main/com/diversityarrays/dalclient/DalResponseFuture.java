@@ -0,0 +1,108 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The Future returned by the <i>xxx</i>Async methods.
+ * When the task completes, the DalResponseCallback (if one was supplied)
+ * is notified of the outcome.
+ * @author brian
+ * @since 5.2.0
+ */
+class DalResponseFuture extends FutureTask<DalResponse> {
+
+	private final DalResponseCallback callback;
+
+	private final DalCancellation cancellation;
+
+	static private final Callable<DalResponse> NOT_RUN = new Callable<DalResponse>() {
+		@Override
+		public DalResponse call() throws Exception {
+			throw new IllegalStateException("Completed by complete() or fail()"); //$NON-NLS-1$
+		}
+	};
+
+	DalResponseFuture(Callable<DalResponse> callable, DalResponseCallback callback) {
+		this(callable, callback, null);
+	}
+
+	/**
+	 * @param cancellation if not null, cancelled when this Future is cancelled
+	 * so that the HTTP request in progress is aborted
+	 */
+	DalResponseFuture(Callable<DalResponse> callable, DalResponseCallback callback, DalCancellation cancellation) {
+		super(callable);
+		this.callback = callback;
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * For a request which is completed by <code>complete()</code> or <code>fail()</code>
+	 * rather than by running a task.
+	 */
+	DalResponseFuture(DalResponseCallback callback, DalCancellation cancellation) {
+		this(NOT_RUN, callback, cancellation);
+	}
+
+	void complete(DalResponse response) {
+		set(response);
+	}
+
+	void fail(Throwable error) {
+		setException(error);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (cancellation != null && ! isDone()) {
+			// Before the interrupt, so that the request it fails is known to be cancelled
+			// and is not taken as a sign that the server is overloaded
+			cancellation.cancel();
+		}
+		return super.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	protected void done() {
+		if (callback == null) {
+			return;
+		}
+
+		DalResponse response;
+		try {
+			response = get();
+		} catch (CancellationException e) {
+			callback.onFailure(e);
+			return;
+		} catch (ExecutionException e) {
+			callback.onFailure(e.getCause());
+			return;
+		} catch (InterruptedException e) {
+			// Can't happen because we are done.
+			Thread.currentThread().interrupt();
+			callback.onFailure(e);
+			return;
+		}
+		callback.onResponse(response);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+
+/**
+ * An immutable snapshot of the state of a logged-in DefaultDALClient.
+ * <p>
+ * The client replaces its snapshot atomically on login, <code>switchGroup()</code>
+ * and logout. Each request uses the snapshot that was current when it started
+ * for all of its attempts so that, for example, the write token used to sign
+ * an update always belongs to the connection on which it is sent.
+ * @author brian
+ * @since 5.2.0
+ */
+public final class DalSession {
+
+	private final DalCloseableHttpClient httpClient;
+	private final String userId;
+	private final String userName;
+	private final String writeToken;
+	private final String cookieHeader;
+	private final String groupId;
+	private final String groupName;
+	private final boolean inAdminGroup;
+	private final long loginMillis;
+
+	DalSession(DalCloseableHttpClient httpClient, String userId, String userName, String writeToken, String cookieHeader) {
+		this(httpClient, userId, userName, writeToken, cookieHeader, null, null, false, System.currentTimeMillis());
+	}
+
+	private DalSession(DalCloseableHttpClient httpClient, String userId, String userName, String writeToken, String cookieHeader,
+			String groupId, String groupName, boolean inAdminGroup, long loginMillis)
+	{
+		this.httpClient = httpClient;
+		this.userId = userId;
+		this.userName = userName;
+		this.writeToken = writeToken;
+		this.cookieHeader = cookieHeader;
+		this.groupId = groupId;
+		this.groupName = groupName;
+		this.inAdminGroup = inAdminGroup;
+		this.loginMillis = loginMillis;
+	}
+
+	/**
+	 * @param groupId
+	 * @param groupName
+	 * @param inAdminGroup
+	 * @return a copy of this DalSession for the group
+	 */
+	DalSession withGroup(String groupId, String groupName, boolean inAdminGroup) {
+		return new DalSession(httpClient, userId, userName, writeToken, cookieHeader,
+				groupId, groupName, inAdminGroup, loginMillis);
+	}
+
+	/**
+	 * @param other may be null
+	 * @return true if both are from the same login
+	 */
+	boolean isSameLogin(DalSession other) {
+		return other != null && other.httpClient == httpClient;
+	}
+
+	DalCloseableHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	String getCookieHeader() {
+		return cookieHeader;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getWriteToken() {
+		return writeToken;
+	}
+
+	/**
+	 * @return null if no group has been switched to
+	 */
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getGroupName() {
+		return groupName;
+	}
+
+	public boolean isInAdminGroup() {
+		return inAdminGroup;
+	}
+
+	/**
+	 * @return when the login which created this session was completed
+	 */
+	public long getLoginMillis() {
+		return loginMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "DalSession[user=" + userName //$NON-NLS-1$
+				+ "(" + userId + ")" //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", group=" + groupId //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections15.Factory;
+import org.apache.commons.logging.Log;
+
+import com.diversityarrays.dalclient.http.DalHttpFactory;
+
+/**
+ * <p>
+ * Provides a number of DALClients which are logged in with the same credentials
+ * and leases them to worker threads. Because each has its own DAL session the
+ * server does not serialise their requests so parallel work scales with the
+ * size of the pool.
+ * <p>Usage:<pre>
+ * DalSessionPool pool = new DalSessionPool(baseUrl, username, password, 8);
+ * pool.start();
+ * ...
+ * String name = pool.execute(new DalSessionPool.SessionTask&lt;String&gt;() {
+ *     public String run(DALClient client) throws IOException, DalResponseException {
+ *         return client.performQuery("get/genotype/1").getRecordFieldValue("Genotype", "GenotypeName");
+ *     }
+ * });
+ * ...
+ * pool.shutdown();
+ * </pre>
+ * Each client is created by the Factory and logged in with <code>DALClient.login()</code>
+ * so, for example, <code>setAutoSwitchGroupOnLogin()</code> applies as usual.
+ * <p>
+ * A client which has not been used for <code>validationIntervalMillis</code> is checked with
+ * <code>get/login/status</code> when it is borrowed. A client which fails the check or is passed to
+ * <code>invalidate()</code> is logged out and replaced by a new login in the background.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalSessionPool {
+
+	/**
+	 * The work done by <code>execute()</code> with a borrowed client.
+	 * @param <T>
+	 */
+	public interface SessionTask<T> {
+		T run(DALClient client) throws IOException, DalResponseException;
+	}
+
+	static public final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30000;
+
+	static private final String OP0_GET_LOGIN_STATUS = "get/login/status"; //$NON-NLS-1$
+
+	/** The first delay before a failed replacement login is tried again; it doubles each time */
+	static private final long RETRY_DELAY_MILLIS = 1000;
+	static private final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+	static private class PooledSession {
+		final DALClient client;
+		volatile long lastUsedMillis = System.currentTimeMillis();
+		/** True from <code>borrow()</code> until <code>release()</code> or <code>invalidate()</code> */
+		final AtomicBoolean leased = new AtomicBoolean();
+
+		PooledSession(DALClient client) {
+			this.client = client;
+		}
+	}
+
+	/** Put in the idle queue by <code>shutdown()</code> to wake the threads waiting in <code>borrow()</code> */
+	static private final PooledSession CLOSED = new PooledSession(null);
+
+	private final Factory<? extends DALClient> clientFactory;
+	private final String username;
+	private final String password;
+	private final int size;
+
+	private final LinkedBlockingQueue<PooledSession> idle = new LinkedBlockingQueue<>();
+	private final ConcurrentHashMap<DALClient, PooledSession> sessions = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor;
+
+	private volatile boolean started;
+	private volatile boolean closed;
+	private volatile long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+	private Log log;
+
+	private final AtomicInteger loginCount = new AtomicInteger();
+	private final AtomicInteger replacementCount = new AtomicInteger();
+
+	/**
+	 * Create a pool of DefaultDALClients which share a DalHttpFactory.
+	 * @param baseUrl
+	 * @param username
+	 * @param password
+	 * @param size
+	 */
+	public DalSessionPool(final String baseUrl, String username, String password, int size) {
+		this(new Factory<DALClient>() {
+			private final DalHttpFactory httpFactory = DefaultDALClient.createDalHttpFactory();
+			@Override
+			public DALClient create() {
+				return new DefaultDALClient(baseUrl, httpFactory);
+			}
+		}, username, password, size);
+	}
+
+	/**
+	 * @param clientFactory creates (and configures) each client
+	 * @param username
+	 * @param password
+	 * @param size the number of sessions
+	 */
+	public DalSessionPool(Factory<? extends DALClient> clientFactory, String username, String password, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1: " + size); //$NON-NLS-1$
+		}
+		this.clientFactory = clientFactory;
+		this.username = username;
+		this.password = password;
+		this.size = size;
+		this.executor = Executors.newScheduledThreadPool(size, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DalSessionPool-" + count.incrementAndGet()); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void setLog(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * @param millis a client idle for longer than this is validated when borrowed; 0 to always validate
+	 * @return this DalSessionPool
+	 */
+	public DalSessionPool setValidationIntervalMillis(long millis) {
+		this.validationIntervalMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getValidationIntervalMillis() {
+		return validationIntervalMillis;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of clients available to be borrowed
+	 */
+	public int getIdleCount() {
+		return closed ? 0 : idle.size();
+	}
+
+	/**
+	 * @return the number of successful logins, including those which replaced a client
+	 */
+	public int getLoginCount() {
+		return loginCount.get();
+	}
+
+	/**
+	 * @return the number of clients which have been replaced
+	 */
+	public int getReplacementCount() {
+		return replacementCount.get();
+	}
+
+	/**
+	 * Log in all of the sessions concurrently.
+	 * If any login fails then those which succeeded are logged out.
+	 * @throws IOException
+	 * @throws DalException if a login fails
+	 */
+	public void start() throws IOException, DalException {
+		if (closed) {
+			throw new IllegalStateException("DalSessionPool has been shut down"); //$NON-NLS-1$
+		}
+		if (started) {
+			throw new IllegalStateException("DalSessionPool already started"); //$NON-NLS-1$
+		}
+		started = true;
+
+		List<Future<DALClient>> futures = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			futures.add(executor.submit(new Callable<DALClient>() {
+				@Override
+				public DALClient call() throws Exception {
+					return createClient();
+				}
+			}));
+		}
+
+		List<DALClient> clients = new ArrayList<>(size);
+		Throwable failure = null;
+		for (Future<DALClient> f : futures) {
+			try {
+				clients.add(f.get());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+
+		if (failure != null) {
+			for (DALClient client : clients) {
+				client.logout();
+			}
+			shutdown();
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure instanceof DalException) {
+				throw (DalException) failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new IOException(failure);
+		}
+
+		for (DALClient client : clients) {
+			add(client);
+		}
+		logInfo("Started " + size + " sessions for '" + username + "'"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private DALClient createClient() throws IOException, DalException {
+		DALClient client = clientFactory.create();
+		client.login(username, password);
+		loginCount.incrementAndGet();
+		return client;
+	}
+
+	private void add(DALClient client) {
+		if (closed) {
+			client.logout();
+			return;
+		}
+		PooledSession session = new PooledSession(client);
+		sessions.put(client, session);
+		idle.offer(session);
+	}
+
+	/**
+	 * Wait for as long as it takes for a client.
+	 * @return a logged-in DALClient which must be passed to <code>release()</code> or <code>invalidate()</code>
+	 * @throws InterruptedException
+	 */
+	public DALClient borrow() throws InterruptedException {
+		return borrow(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param timeout
+	 * @param unit
+	 * @return a logged-in DALClient or null if none became available in time
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the pool has not been started or is shut down,
+	 * including while waiting
+	 */
+	public DALClient borrow(long timeout, TimeUnit unit) throws InterruptedException {
+		if (! started) {
+			throw new IllegalStateException("DalSessionPool not started"); //$NON-NLS-1$
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (deadline < System.nanoTime()) {
+			// overflow
+			deadline = Long.MAX_VALUE;
+		}
+		while (true) {
+			if (closed) {
+				throw new IllegalStateException("DalSessionPool has been shut down"); //$NON-NLS-1$
+			}
+			PooledSession session = idle.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			if (session == null) {
+				return null;
+			}
+			if (session == CLOSED) {
+				// Leave it for the other waiting threads
+				idle.offer(CLOSED);
+				throw new IllegalStateException("DalSessionPool has been shut down"); //$NON-NLS-1$
+			}
+			if (isValid(session)) {
+				session.leased.set(true);
+				return session.client;
+			}
+			replace(session);
+		}
+	}
+
+	private boolean isValid(PooledSession session) {
+		DALClient client = session.client;
+		if (! client.isLoggedIn()) {
+			return false;
+		}
+		if (System.currentTimeMillis() - session.lastUsedMillis < validationIntervalMillis) {
+			return true;
+		}
+		try {
+			DalResponse response = client.performQuery(OP0_GET_LOGIN_STATUS);
+			String status = response.getRecordFieldValue(DALClient.TAG_INFO, DALClient.ATTR_LOGIN_STATUS);
+			if ("1".equals(status)) { //$NON-NLS-1$
+				session.lastUsedMillis = System.currentTimeMillis();
+				return true;
+			}
+			logWarn("Session for '" + username + "' is no longer logged in"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		catch (IOException | DalResponseException e) {
+			logWarn("Validation failed for '" + username + "': " + e); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return false;
+	}
+
+	/**
+	 * Return a client to the pool.
+	 * @param client from <code>borrow()</code>
+	 * @throws IllegalArgumentException if the client is not from this pool
+	 * @throws IllegalStateException if the client has already been released or invalidated
+	 */
+	public void release(DALClient client) {
+		PooledSession session = getLeased(client);
+		if (closed) {
+			sessions.remove(client);
+			client.logout();
+			return;
+		}
+		session.lastUsedMillis = System.currentTimeMillis();
+		idle.offer(session);
+	}
+
+	/**
+	 * Use this instead of <code>release()</code> if the session has expired or
+	 * is otherwise unusable. It is logged out and replaced in the background.
+	 * @param client from <code>borrow()</code>
+	 * @throws IllegalArgumentException if the client is not from this pool
+	 * @throws IllegalStateException if the client has already been released or invalidated
+	 */
+	public void invalidate(DALClient client) {
+		replace(getLeased(client));
+	}
+
+	/**
+	 * @return the PooledSession for the client, which is no longer on loan
+	 */
+	private PooledSession getLeased(DALClient client) {
+		PooledSession session = sessions.get(client);
+		if (session == null) {
+			throw new IllegalArgumentException("Not from this DalSessionPool"); //$NON-NLS-1$
+		}
+		if (! session.leased.compareAndSet(true, false)) {
+			throw new IllegalStateException("Client has already been returned to the DalSessionPool"); //$NON-NLS-1$
+		}
+		return session;
+	}
+
+	private void replace(final PooledSession session) {
+		if (sessions.remove(session.client) == null) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					session.client.logout();
+					login(RETRY_DELAY_MILLIS);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// shut down: there is no replacement
+			session.client.logout();
+		}
+	}
+
+	private void login(final long retryDelayMillis) {
+		if (closed) {
+			return;
+		}
+		try {
+			add(createClient());
+			replacementCount.incrementAndGet();
+		}
+		catch (IOException | DalException | RuntimeException e) {
+			logWarn("Replacement login failed for '" + username + "', retrying in " //$NON-NLS-1$ //$NON-NLS-2$
+					+ retryDelayMillis + "ms: " + e); //$NON-NLS-1$
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					login(Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS));
+				}
+			}, retryDelayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Borrow a client, run the task and then release the client.
+	 * @param task
+	 * @return the result of the task
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws InterruptedException if interrupted while waiting for a client
+	 */
+	public <T> T execute(SessionTask<T> task) throws IOException, DalResponseException, InterruptedException {
+		DALClient client = borrow();
+		try {
+			return task.run(client);
+		}
+		finally {
+			release(client);
+		}
+	}
+
+	/**
+	 * Log out all of the idle sessions concurrently and wait for them to finish.
+	 * Sessions which are on loan are logged out when they are released.
+	 */
+	public void shutdown() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		List<Future<?>> futures = new ArrayList<>();
+		PooledSession session;
+		while (null != (session = idle.poll())) {
+			sessions.remove(session.client);
+			final DALClient client = session.client;
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					client.logout();
+				}
+			}));
+		}
+		idle.offer(CLOSED);
+
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e) {
+				logWarn("Logout failed: " + e.getCause()); //$NON-NLS-1$
+			}
+		}
+		executor.shutdown();
+		logInfo("Shut down sessions for '" + username + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void logInfo(Object msg) {
+		if (log != null) {
+			log.info(msg);
+		}
+	}
+
+	private void logWarn(Object msg) {
+		if (log != null) {
+			log.warn(msg);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * <p>
+ * Provides parsers which visit the records of a DAL response as the data is read
+ * from the input rather than after the whole response has been received.
+ * Memory use is therefore independent of the size of the response and
+ * the visitor is called while the remainder of the response is still arriving.
+ * <p>
+ * Unlike <code>DalResponse.visitResults()</code>, records are visited in the order
+ * in which they appear in the response. If no tag names are specified then every
+ * top-level record is visited except for <code>RecordMeta</code> and <code>Pagination</code>
+ * (because the <code>RecordMeta</code> may only arrive after the records it describes).
+ * <p>
+ * If the response contains a DAL <code>Error</code> a DalResponseException is thrown.
+ * @author brian
+ * @since 5.2.0
+ */
+@SuppressWarnings("nls")
+public class DalStreamParser {
+
+	private DalStreamParser() {
+	}
+
+	static private boolean isWanted(String tagName, Collection<String> wantedTagNames) {
+		if (wantedTagNames == null || wantedTagNames.isEmpty()) {
+			return ! DALClient.TAG_RECORD_META.equals(tagName) && ! DALClient.TAG_PAGINATION.equals(tagName);
+		}
+		return wantedTagNames.contains(tagName);
+	}
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// XML
+
+	/**
+	 * Thrown to terminate the SAX parse early.
+	 */
+	static private class StopParsing extends SAXException {
+		final DalResponseException error;
+		StopParsing(DalResponseException error) {
+			this.error = error;
+		}
+	}
+
+	static private class XmlRecordHandler extends DefaultHandler {
+
+		private final String requestUrl;
+		private final Collection<String> wantedTagNames;
+		private final DalResponseRecordVisitor visitor;
+		private final boolean wantEmptyRecords;
+
+		private int depth;
+		private int recordDepth = -1;
+		private DalResponseRecord record;
+
+		boolean result = true;
+
+		XmlRecordHandler(String requestUrl, Collection<String> wantedTagNames,
+				DalResponseRecordVisitor visitor, boolean wantEmptyRecords)
+		{
+			this.requestUrl = requestUrl;
+			this.wantedTagNames = wantedTagNames;
+			this.visitor = visitor;
+			this.wantEmptyRecords = wantEmptyRecords;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+		throws SAXException
+		{
+			++depth;
+			if (record != null) {
+				if (depth == recordDepth + 1) {
+					record.addNestedData(qName, asRowdata(attributes));
+				}
+				return;
+			}
+
+			if (DALClient.TAG_ERROR.equals(qName)) {
+				StringBuilder sb = new StringBuilder();
+				String sep = "";
+				int nAttributes = attributes.getLength();
+				for (int ai = 0; ai < nAttributes; ++ai) {
+					sb.append(sep).append(attributes.getQName(ai)).append('=').append(attributes.getValue(ai));
+					sep = ", ";
+				}
+				throw new StopParsing(new DalResponseException(sb.toString()));
+			}
+
+			boolean candidate = (wantedTagNames == null || wantedTagNames.isEmpty())
+					? depth == 2
+					: true;
+			if (candidate && isWanted(qName, wantedTagNames)) {
+				record = new DalResponseRecord(requestUrl, qName);
+				record.rowdata.putAll(asRowdata(attributes));
+				recordDepth = depth;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (record != null && depth == recordDepth) {
+				DalResponseRecord r = record;
+				record = null;
+				recordDepth = -1;
+				if (wantEmptyRecords || ! r.isEmpty()) {
+					if (! visitor.visitResponseRecord(r.tagName, r)) {
+						result = false;
+						throw new StopParsing(null);
+					}
+				}
+			}
+			--depth;
+		}
+
+		static private Map<String,String> asRowdata(Attributes attributes) {
+			int nAttributes = attributes.getLength();
+			Map<String,String> result = new LinkedHashMap<>(nAttributes);
+			for (int ai = 0; ai < nAttributes; ++ai) {
+				result.put(attributes.getQName(ai), attributes.getValue(ai));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Visit the records in an XML response while it is being read.
+	 * @param requestUrl
+	 * @param input is not closed by this method
+	 * @param wantedTagNames may be null or empty
+	 * @param visitor
+	 * @param wantEmptyRecords
+	 * @return true unless the visitor ever returns false
+	 * @throws IOException
+	 * @throws DalResponseException
+	 */
+	static public boolean visitXml(String requestUrl,
+			InputStream input,
+			Collection<String> wantedTagNames,
+			DalResponseRecordVisitor visitor,
+			boolean wantEmptyRecords)
+	throws IOException, DalResponseException
+	{
+		XmlRecordHandler handler = new XmlRecordHandler(requestUrl, wantedTagNames, visitor, wantEmptyRecords);
+		try {
+			createSAXParserFactory().newSAXParser().parse(new InputSource(input), handler);
+		} catch (StopParsing e) {
+			if (e.error != null) {
+				throw e.error;
+			}
+		} catch (SAXException e) {
+			throw new DalResponseFormatException(e);
+		} catch (ParserConfigurationException e) {
+			throw new DalResponseFormatException(e);
+		}
+		return handler.result;
+	}
+
+	/**
+	 * The response comes from the network so external entities and DTDs are
+	 * not loaded (this prevents XXE attacks) and entity expansion is limited.
+	 */
+	static private SAXParserFactory createSAXParserFactory() throws ParserConfigurationException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		setFeature(factory, "http://xml.org/sax/features/external-general-entities", false); //$NON-NLS-1$
+		setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false); //$NON-NLS-1$
+		setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false); //$NON-NLS-1$
+		return factory;
+	}
+
+	static private void setFeature(SAXParserFactory factory, String name, boolean value) throws ParserConfigurationException {
+		try {
+			factory.setFeature(name, value);
+		}
+		catch (SAXNotRecognizedException | SAXNotSupportedException e) {
+			// e.g. Android's parser, which does not load external entities in any case
+		}
+	}
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// JSON
+
+	/**
+	 * Visit the records in a JSON response while it is being read.
+	 * @param requestUrl
+	 * @param input is not closed by this method
+	 * @param wantedTagNames may be null or empty
+	 * @param visitor
+	 * @param wantEmptyRecords
+	 * @return true unless the visitor ever returns false
+	 * @throws IOException
+	 * @throws DalResponseException
+	 */
+	static public boolean visitJson(String requestUrl,
+			Reader input,
+			Collection<String> wantedTagNames,
+			DalResponseRecordVisitor visitor,
+			boolean wantEmptyRecords)
+	throws IOException, DalResponseException
+	{
+		JsonParser parser = new JsonParser();
+		JsonReader reader = new JsonReader(input);
+		try {
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				throw new DalResponseFormatException("input is not a JsonObject: " + reader.peek());
+			}
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+					reader.skipValue();
+					continue;
+				}
+
+				if (DALClient.TAG_ERROR.equals(key)) {
+					JsonElement errors = parser.parse(reader);
+					JsonObject wrapper = new JsonObject();
+					wrapper.add(key, errors);
+					throw new DalResponseException(
+							new DalUtil.JsonResultImpl(requestUrl, wrapper).getJsonlDalErrorMessage());
+				}
+
+				if (! isWanted(key, wantedTagNames)) {
+					reader.skipValue();
+					continue;
+				}
+
+				int count = 0;
+				reader.beginArray();
+				while (reader.hasNext()) {
+					JsonElement item = parser.parse(reader);
+					if (! item.isJsonObject()) {
+						throw new DalResponseFormatException(
+								String.format("unexpected type for '%s'[%d] :%s", //$NON-NLS-1$
+										key, count, item.getClass().getName()));
+					}
+					DalResponseRecord record = DalUtil.createFrom(requestUrl, key, (JsonObject) item);
+					if (wantEmptyRecords || ! record.isEmpty()) {
+						if (! visitor.visitResponseRecord(key, record)) {
+							return false;
+						}
+					}
+					++count;
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+		} catch (JsonParseException e) {
+			throw new DalResponseFormatException(e);
+		} catch (IllegalStateException e) {
+			// JsonReader reports structural problems this way
+			throw new DalResponseFormatException(e);
+		}
+		return true;
+	}
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// CSV
+
+	/**
+	 * Visit the lines of a CSV response while it is being read.
+	 * The records are provided in the same way as by CsvDalResponse using
+	 * the default headings prefix, column separator and quote character.
+	 * @param requestUrl
+	 * @param input is not closed by this method
+	 * @param useHeadings if true then the first line provides the keys for the rowdata
+	 * @param visitor
+	 * @return true unless the visitor ever returns false
+	 * @throws IOException
+	 */
+	static public boolean visitCsv(String requestUrl,
+			Reader input,
+			boolean useHeadings,
+			DalResponseRecordVisitor visitor)
+	throws IOException
+	{
+		final char columnSeparator = ',';
+		final char quoteCharacter = '"';
+
+		BufferedReader br = new BufferedReader(input);
+		String[] headings = null;
+		String line;
+		while (null != (line = br.readLine())) {
+			if (useHeadings && headings == null) {
+				Matcher m = Pattern.compile("^#(.*)$").matcher(line);
+				headings = DalUtil.splitCsvLine(m.matches() ? m.group(1) : line, columnSeparator, quoteCharacter);
+				continue;
+			}
+
+			DalResponseRecord rr = new DalResponseRecord(requestUrl, CsvDalResponse.TAGNAME_CSVDATA);
+			if (useHeadings) {
+				String[] fields = DalUtil.splitCsvLine(line, columnSeparator, quoteCharacter, headings);
+				int nFields = fields.length;
+				int maxidx = Math.max(nFields, headings.length);
+				for (int idx = 0; idx < maxidx; ++idx) {
+					String h = (idx < headings.length) ? headings[idx] : "column-" + idx;
+					String v = (idx < nFields) ? fields[idx] : null;
+					rr.rowdata.put(h, v);
+				}
+			}
+			else {
+				rr.rowdata.put(CsvDalResponse.FIELD_CSVLINE, line);
+			}
+
+			if (! visitor.visitResponseRecord(CsvDalResponse.TAGNAME_CSVDATA, rr)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
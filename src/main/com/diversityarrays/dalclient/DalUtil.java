@@ -17,6 +17,12 @@
 */
 package com.diversityarrays.dalclient;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,12 +32,9 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.math.BigInteger;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.security.DigestInputStream;
-import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -39,7 +42,6 @@ import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Formatter;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,9 +50,8 @@ import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import javax.xml.parsers.DocumentBuilder;
@@ -75,6 +76,7 @@ import org.xml.sax.SAXException;
 
 import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
 import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalEntityStream;
 import com.diversityarrays.dalclient.http.DalHeader;
 import com.diversityarrays.dalclient.http.DalRequest;
 import com.diversityarrays.dalclient.http.DalResponseHandler;
@@ -95,8 +97,6 @@ public class DalUtil {
 
 	private static final String DIGEST_MD5 = "MD5"; //$NON-NLS-1$
 
-    private static final String ALGORITHM_HMAC_SHA1 = "HmacSHA1"; //$NON-NLS-1$
-
     public static final String ENCODING_UTF_8 = "UTF-8"; //$NON-NLS-1$
 
     /**
@@ -205,6 +205,37 @@ public class DalUtil {
 		}
 	}
 
+	static public final int DEFAULT_SSL_SESSION_CACHE_SIZE = 100;
+	static public final int DEFAULT_SSL_SESSION_TIMEOUT_SECONDS = 3600;
+
+	/**
+	 * Return the SSLContext which is shared by default by all DALClients.
+	 * Because it is shared, its TLS session cache allows a new connection (e.g. after
+	 * logging in again) to resume an earlier session instead of performing a full handshake.
+	 * The cache holds up to DEFAULT_SSL_SESSION_CACHE_SIZE sessions for
+	 * DEFAULT_SSL_SESSION_TIMEOUT_SECONDS.
+	 * @return an SSLContext as created by <code>createTrustingSSLContext()</code>
+	 * @since 5.2.0
+	 */
+	static public SSLContext getSharedTrustingSSLContext() {
+		return SharedTrustingSSLContextHolder.INSTANCE;
+	}
+
+	// Created on first use without taking a monitor, which would pin a virtual thread's carrier.
+	static private class SharedTrustingSSLContextHolder {
+		static final SSLContext INSTANCE = createSharedTrustingSSLContext();
+	}
+
+	static private SSLContext createSharedTrustingSSLContext() {
+		SSLContext context = createTrustingSSLContext();
+		SSLSessionContext sessionContext = context.getClientSessionContext();
+		if (sessionContext != null) {
+			sessionContext.setSessionCacheSize(DEFAULT_SSL_SESSION_CACHE_SIZE);
+			sessionContext.setSessionTimeout(DEFAULT_SSL_SESSION_TIMEOUT_SECONDS);
+		}
+		return context;
+	}
+
 	/**
 	 * Convenience interface to URLEncoder.encode(input, "UTF-8").
 	 * @param input
@@ -337,47 +368,27 @@ public class DalUtil {
 	 * Calculate an RFC 2104 compliant HMAC signature.
 	 * @param key is the signing key
 	 * @param data is the data to be signed
-	 * @return the base64-encoded signature as a String
+	 * @return the hex-encoded signature as a String
+	 * @see RequestSigner#computeHmacSHA1(String, String)
 	 */
 	public static String computeHmacSHA1(String key, String data) {
-		try {
-			byte[] keyBytes = key.getBytes(cryptCharsetName);
-			SecretKeySpec signingKey = new SecretKeySpec(keyBytes, ALGORITHM_HMAC_SHA1);
-
-			Mac mac = Mac.getInstance(ALGORITHM_HMAC_SHA1);
-			mac.init(signingKey);
-
-			byte[] rawHmac = mac.doFinal(data.getBytes(cryptCharsetName));
-
-			byte[] hexBytes = new Hex().encode(rawHmac);
-
-			return new String(hexBytes, cryptCharsetName);
-
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException(e);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+		return RequestSigner.computeHmacSHA1(key, data);
 	}
 
 	/**
 	 * Generate a 64-bit random number.
 	 * @return the number as a String
+	 * @see RequestSigner#createRandomNumberString()
 	 */
 	static public String createRandomNumberString() {
-		SecureRandom random = new SecureRandom();
-
-		byte[] sixtyFourBits = new byte[8];
-		random.nextBytes(sixtyFourBits);
-		// Let's be positive about this :-)
-		sixtyFourBits[0] = (byte) (0x7f & sixtyFourBits[0]);
-
-		BigInteger bigint = new BigInteger(sixtyFourBits);
-		return bigint.toString();
+		return RequestSigner.createRandomNumberString();
 	}
 
+	/**
+	 * The size of the buffer used when computing checksums.
+	 */
+	static private final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * Computes the MD5 checksum of the bytes in the InputStream.
 	 * The input is close()d on exit.
@@ -385,32 +396,61 @@ public class DalUtil {
 	 * @return the MD5 checksum as a String of hexadecimal characters
 	 */
 	static public String computeMD5checksum(InputStream input) {
-		DigestInputStream dis = null;
-		Formatter formatter = null;
 		try {
-			MessageDigest md = MessageDigest.getInstance(DIGEST_MD5);
-			dis = new DigestInputStream(input, md);
-			while (-1 != dis.read())
-				;
-
-			byte[] digest = md.digest();
-			formatter = new Formatter();
-			for (byte b : digest) {
-				formatter.format("%02x", b); //$NON-NLS-1$
-			}
-			return formatter.toString();
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+			return spoolAndComputeMD5checksum(input, null);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			if (dis!=null) {
-				try { dis.close(); } catch (IOException ignore) { }
+		}
+	}
+
+	/**
+	 * Computes the MD5 checksum of the content of the file.
+	 * @param file
+	 * @return the MD5 checksum as a String of hexadecimal characters
+	 * @throws IOException
+	 * @since 5.2.0
+	 */
+	static public String computeMD5checksum(File file) throws IOException {
+		return spoolAndComputeMD5checksum(new FileInputStream(file), null);
+	}
+
+	/**
+	 * Copy the bytes in the InputStream to a file while computing their MD5 checksum
+	 * so that the content only needs to be produced once.
+	 * The input is close()d on exit.
+	 * @param input
+	 * @param spoolFile if null the bytes are not copied
+	 * @return the MD5 checksum as a String of hexadecimal characters
+	 * @throws IOException
+	 * @since 5.2.0
+	 */
+	static public String spoolAndComputeMD5checksum(InputStream input, File spoolFile) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(DIGEST_MD5);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		OutputStream spool = null;
+		try {
+			if (spoolFile != null) {
+				spool = new FileOutputStream(spoolFile);
+			}
+			byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+			int n;
+			while (-1 != (n = input.read(buffer))) {
+				md.update(buffer, 0, n);
+				if (spool != null) {
+					spool.write(buffer, 0, n);
+				}
 			}
-			if (formatter!=null) {
-				formatter.close();
+		} finally {
+			try { input.close(); } catch (IOException ignore) { }
+			if (spool != null) {
+				spool.close();
 			}
 		}
+		return Hex.encodeHexString(md.digest());
 	}
 
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
@@ -1077,6 +1117,31 @@ public class DalUtil {
 //        return result;
 //    }
 
+	/**
+	 * Find the URL of the file produced by an EXPORT command.
+	 * @param response from the EXPORT command
+	 * @return the first http or https URL in an <code>OutputFile</code> record or null
+	 * @throws DalResponseFormatException
+	 * @throws DalResponseException
+	 * @since 5.2.0
+	 */
+	static public String getExportFileUrl(DalResponse response) throws DalResponseFormatException, DalResponseException {
+		final String[] result = new String[1];
+		response.visitResults(new DalResponseRecordVisitor() {
+			@Override
+			public boolean visitResponseRecord(String resultTagName, DalResponseRecord data) {
+				for (String value : data.rowdata.values()) {
+					if (value != null && (value.startsWith("http:") || value.startsWith("https:"))) { //$NON-NLS-1$ //$NON-NLS-2$
+						result[0] = value;
+						return false;
+					}
+				}
+				return true;
+			}
+		}, DALClient.TAG_OUTPUT_FILE);
+		return result[0];
+	}
+
 	/**
 	 * Check if the input appears to be a DOCTYPE response.
 	 * @param input
@@ -1091,6 +1156,216 @@ public class DalUtil {
 		return httpStatusCode >= 200 && httpStatusCode < 300;
 	}
 
+	/**
+	 * Read the entity of the response as a String, decoding any gzip or deflate
+	 * Content-Encoding, and record the byte counts in <code>info</code>.
+	 * The charset is taken from the Content-Type header and defaults to ISO-8859-1.
+	 * @param response
+	 * @param info may be null
+	 * @return the entity content or null if there is no entity
+	 * @throws IOException
+	 * @since 5.2.0
+	 */
+	static public String readEntityAsString(DalCloseableHttpResponse response, HttpResponseInfo info)
+	throws IOException
+	{
+		DalEntityStream input = DalEntityStream.open(response);
+		if (input == null) {
+			return null;
+		}
+
+		String contentType = response.getFirstHeaderValue("Content-Type"); //$NON-NLS-1$
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while (-1 != (n = input.read(buffer))) {
+				baos.write(buffer, 0, n);
+			}
+			return baos.toString(getCharset(contentType, "ISO-8859-1")); //$NON-NLS-1$
+		}
+		finally {
+			input.close();
+			if (info != null) {
+				info.compressedByteCount = input.getCompressedByteCount();
+				info.uncompressedByteCount = input.getUncompressedByteCount();
+			}
+		}
+	}
+
+	/**
+	 * Read the entity of the response as a String like <code>readEntityAsString(response, info)</code>
+	 * but count the bytes against the MemoryBudget as they are received.
+	 * Each byte is counted twice, for itself and for the resulting String, whether the
+	 * response is held in memory or spilled.
+	 * If the budget has no room the rest of the response is written to a temporary file
+	 * which is then read once the budget has room for its bytes and the resulting String.
+	 * Use <code>DALClient.visitQueryResults()</code> or <code>downloadToFile()</code>
+	 * for responses which are too large for the budget.
+	 * @param response
+	 * @param info may be null
+	 * @param budget if null then the bytes are not counted
+	 * @param deadline the time by which the request must complete or zero if none
+	 * @return the entity content or null if there is no entity
+	 * @throws DalMemoryBudgetException if the response is larger than the budget's <code>maxResponseBytes</code>
+	 * 		or could not be read back into the budget
+	 * @throws IOException
+	 * @since 5.2.0
+	 */
+	static public String readEntityAsString(DalCloseableHttpResponse response, HttpResponseInfo info,
+			MemoryBudget budget, long deadline)
+	throws IOException
+	{
+		if (budget == null) {
+			return readEntityAsString(response, info);
+		}
+		DalEntityStream input = DalEntityStream.open(response);
+		if (input == null) {
+			return null;
+		}
+
+		String charsetName = getCharset(response.getFirstHeaderValue("Content-Type"), "ISO-8859-1"); //$NON-NLS-1$ //$NON-NLS-2$
+		long maxResponseBytes = budget.getMaxResponseBytes();
+
+		long reserved = 0;
+		long total = 0;
+		File spillFile = null;
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			OutputStream spill = null;
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while (-1 != (n = input.read(buffer))) {
+					total += n;
+					if (total > maxResponseBytes) {
+						// Stop reading rather than spill something that can never be held
+						budget.recordRejected();
+						throw new DalMemoryBudgetException("Response is larger than the " //$NON-NLS-1$
+								+ maxResponseBytes + " bytes allowed by " + budget.getName(), //$NON-NLS-1$
+								budget.getMaxBytes());
+					}
+					if (spill == null) {
+						// The bytes and the String made from them are both held when it is decoded
+						if (budget.tryReserve(2L * n)) {
+							reserved += 2L * n;
+							baos.write(buffer, 0, n);
+							continue;
+						}
+						// Divert to disk rather than wait while holding the connection
+						spillFile = File.createTempFile("dalclient-response", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+						spill = new BufferedOutputStream(new FileOutputStream(spillFile), DIGEST_BUFFER_SIZE);
+						baos.writeTo(spill);
+						baos = null;
+						budget.release(reserved);
+						reserved = 0;
+					}
+					spill.write(buffer, 0, n);
+				}
+			}
+			finally {
+				input.close();
+				if (spill != null) {
+					spill.close();
+				}
+				if (info != null) {
+					info.compressedByteCount = input.getCompressedByteCount();
+					info.uncompressedByteCount = input.getUncompressedByteCount();
+				}
+			}
+
+			if (spillFile == null) {
+				return baos.toString(charsetName);
+			}
+
+			long length = spillFile.length();
+			budget.recordSpill(length);
+			if (info != null) {
+				info.spilled = true;
+			}
+			// Both the bytes and the String made from them are held while it is decoded
+			long needed = 2 * length;
+			if (length > MAX_ARRAY_LENGTH || needed > budget.getMaxBytes()) {
+				budget.recordRejected();
+				throw new DalMemoryBudgetException("Spilled response of " + length //$NON-NLS-1$
+						+ " bytes cannot be read back within " + budget.getName(), //$NON-NLS-1$
+						budget.getMaxBytes());
+			}
+			budget.reserve(needed, deadline);
+			reserved = needed;
+			byte[] bytes = new byte[(int) length];
+			FileInputStream fis = new FileInputStream(spillFile);
+			try {
+				int pos = 0;
+				while (pos < bytes.length) {
+					int n = fis.read(bytes, pos, bytes.length - pos);
+					if (n < 0) {
+						throw new EOFException(spillFile.getPath());
+					}
+					pos += n;
+				}
+			}
+			finally {
+				fis.close();
+			}
+			return new String(bytes, charsetName);
+		}
+		finally {
+			budget.release(reserved);
+			if (spillFile != null) {
+				spillFile.delete();
+			}
+		}
+	}
+
+	/** The largest array that a JVM will reliably allocate */
+	static private final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	static private final Pattern NUMERIC_SEGMENT = Pattern.compile("^-?[0-9]+(\\.[0-9]+)?$"); //$NON-NLS-1$
+
+	/**
+	 * Return the DAL command with any query string removed and its numeric path
+	 * segments replaced by "_" so that, for example, <code>get/genus/12</code>
+	 * and <code>get/genus/345</code> both give <code>get/genus/_</code>.
+	 * This is used to group the statistics for similar requests.
+	 * @param command
+	 * @return the command template
+	 * @since 5.2.0
+	 */
+	static public String commandTemplateOf(String command) {
+		int pos = command.indexOf('?');
+		String path = pos < 0 ? command : command.substring(0, pos);
+		StringBuilder sb = new StringBuilder(path.length());
+		String sep = ""; //$NON-NLS-1$
+		for (String segment : path.split("/", -1)) { //$NON-NLS-1$
+			sb.append(sep).append(NUMERIC_SEGMENT.matcher(segment).matches() ? "_" : segment); //$NON-NLS-1$
+			sep = "/"; //$NON-NLS-1$
+		}
+		return sb.toString();
+	}
+
+	static private final Pattern CHARSET_PATTERN = Pattern.compile(
+			"(?i);\\s*charset\\s*=\\s*\"?([^\";\\s]+)"); //$NON-NLS-1$
+
+	/**
+	 * Return the name of the charset from the supplied Content-Type header value
+	 * or <code>defaultCharset</code> if none is specified.
+	 * @param contentType may be null
+	 * @param defaultCharset
+	 * @return charset name
+	 * @since 5.2.0
+	 */
+	public static String getCharset(String contentType, String defaultCharset) {
+		if (contentType != null) {
+			Matcher m = CHARSET_PATTERN.matcher(contentType);
+			if (m.find()) {
+				return m.group(1);
+			}
+		}
+		return defaultCharset;
+	}
+
 
 	static private enum SplitState {
 		LOOKING_FOR_SEPARATOR,
@@ -21,16 +21,52 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.HttpCookie;
+import java.net.MalformedURLException;
+import java.net.PasswordAuthentication;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.collections15.Closure;
@@ -40,7 +76,12 @@ import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import com.diversityarrays.dalclient.DalUtil.JsonResult;
+import com.diversityarrays.dalclient.http.DalAsyncCallback;
+import com.diversityarrays.dalclient.http.DalAsyncHttpClient;
 import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalEntityStream;
+import com.diversityarrays.dalclient.http.DalFileUpload;
 import com.diversityarrays.dalclient.http.DalHeader;
 import com.diversityarrays.dalclient.http.DalHttpFactory;
 import com.diversityarrays.dalclient.http.DalRequest;
@@ -58,6 +99,37 @@ import com.diversityarrays.dalclient.util.Pair;
  * By default no logging is performed but you can enable it by default by setting the System property:<pre>
  * com.diversityarrays.dalclient.WANT_LOGGING=true
  * </pre>
+ * <p>
+ * The HTTP implementation is chosen using the System property
+ * <code>com.diversityarrays.dalclient.DefaultDALClient.HTTP_FACTORY_CLASS_NAME</code>.
+ * The available implementations are:
+ * <ul>
+ * <li><code>com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl</code> (apache httpclient, the default)</li>
+ * <li><code>com.diversityarrays.dalclient.httpandroid.AndroidDalHttpFactory</code> (the default on Android)</li>
+ * <li><code>com.diversityarrays.dalclient.httpjdk.JdkDalHttpFactory</code> (java.net.http with HTTP/2, Java 11+)</li>
+ * </ul>
+ * <p>
+ * The <i>xxx</i>Async methods perform their requests using the ExecutorService provided
+ * by <code>setAsyncExecutor()</code> or, if none is provided, a shared pool of at most
+ * <code>ASYNC_THREADS_PROPERTY</code> (default 64) daemon threads.
+ * When the transport implements DalAsyncHttpClient (e.g. JdkDalHttpFactory) and no
+ * HedgePolicy, RequestScheduler, ConcurrencyLimiter or MemoryBudget is set,
+ * <code>performQueryAsync()</code> does not use a thread at all while the request is in flight.
+ * <p>
+ * Once logged in, a single client may be used by many threads at once. The state of the login
+ * (the HTTP client, write token, user and group) is held in an immutable DalSession which
+ * <code>login()</code>, <code>switchGroup()</code> and <code>logout()</code> replace atomically;
+ * each request uses the session that was current when it started. Threads which want
+ * different response types should use <code>RequestOptions.setResponseType()</code>
+ * rather than <code>setResponseType()</code>.
+ * The other settings (retry, hedging, limits, executors and so on) may also be changed
+ * while the client is shared; the change is seen by requests which start afterwards.
+ * <p>
+ * If the System property <code>com.diversityarrays.dalclient.DefaultDALClient.VIRTUAL_THREADS</code>
+ * is <code>true</code> and the runtime supports virtual threads (Java 21+) then the shared pool
+ * starts a virtual thread for each request and, unless <code>HTTP_FACTORY_CLASS_NAME</code> says
+ * otherwise, the java.net.http implementation is used because its blocking calls park the
+ * virtual thread instead of pinning its carrier.
  * @author brian
  *
  */
@@ -68,6 +140,9 @@ public class DefaultDALClient implements DALClient {
     private static final String MIME_APPLICATION_JSON = "application/json"; //$NON-NLS-1$
     private static final String MIME_TEXT_XML = "text/xml"; //$NON-NLS-1$
 	private static final String MIME_APPLICATION_XML = "application/xml"; //$NON-NLS-1$
+	private static final String MIME_TEXT_CSV = "text/csv"; //$NON-NLS-1$
+	private static final String MIME_TEXT_PLAIN = "text/plain"; //$NON-NLS-1$
+	private static final String MIME_APPLICATION_OCTET_STREAM = "application/octet-stream"; //$NON-NLS-1$
 
 	static private boolean contentTypeIsXML(String contentType) {
 		return contentType.startsWith(MIME_TEXT_XML) || contentType.startsWith(MIME_APPLICATION_XML);
@@ -81,40 +156,211 @@ public class DefaultDALClient implements DALClient {
 
 	private static final String OP0_LIST_GROUP = "list/group"; //$NON-NLS-1$
 
+	private static final String OP0_GET_VERSION = "get/version"; //$NON-NLS-1$
+
+	private static final String HEADER_COOKIE = "Cookie"; //$NON-NLS-1$
+
 	static public boolean DEBUG = Boolean.getBoolean(DefaultDALClient.class.getName()+".DEBUG"); //$NON-NLS-1$
 
-	private Log log;
+	static public final String ADAPTIVE_CONCURRENCY_PROPERTY = DefaultDALClient.class.getName() + ".ADAPTIVE_CONCURRENCY"; //$NON-NLS-1$
 
-	private DalCloseableHttpClient httpClient = null;
+	static public final String ACCEPT_COMPRESSED_PROPERTY = DefaultDALClient.class.getName() + ".ACCEPT_COMPRESSED"; //$NON-NLS-1$
 
-	private SessionExpiryOption sessionExpiryOption = SessionExpiryOption.AUTO_EXPIRE;
+	static public final String VIRTUAL_THREADS_PROPERTY = DefaultDALClient.class.getName() + ".VIRTUAL_THREADS"; //$NON-NLS-1$
 
-	private String userId;
+	/** The maximum number of threads in the shared pool used by the <i>xxx</i>Async methods */
+	static public final String ASYNC_THREADS_PROPERTY = DefaultDALClient.class.getName() + ".ASYNC_THREADS"; //$NON-NLS-1$
 
-	private String userName;
+	static private final int DEFAULT_ASYNC_THREADS = 64;
 
-	private final String baseUrl;
+	static private final String JDK_HTTP_FACTORY_CLASS_NAME = "com.diversityarrays.dalclient.httpjdk.JdkDalHttpFactory"; //$NON-NLS-1$
+
+	/**
+	 * Create an ExecutorService which starts a new virtual thread for each task.
+	 * Use this with <code>setAsyncExecutor()</code> to run thousands of concurrent
+	 * requests without a thread each.
+	 * @return null if the runtime does not support virtual threads
+	 * @since 5.2.0
+	 */
+	static public ExecutorService createVirtualThreadExecutor() {
+		try {
+			// Java 21+; found by reflection as this library still runs on Java 7
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); //$NON-NLS-1$
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			// e.g. preview features not enabled
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if virtual threads were asked for and the runtime supports them
+	 * @since 5.2.0
+	 */
+	static public boolean isVirtualThreadMode() {
+		return Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && VIRTUAL_THREADS_AVAILABLE;
+	}
+
+	static private final boolean VIRTUAL_THREADS_AVAILABLE = isVirtualThreadSupported();
+
+	static private boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); //$NON-NLS-1$
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Used for the keep-warm requests and to enforce request deadlines.
+	 */
+	static private ScheduledExecutorService getTimerScheduler() {
+		return TimerSchedulerHolder.INSTANCE;
+	}
+
+	static private ExecutorService getDefaultAsyncExecutor() {
+		return AsyncExecutorHolder.INSTANCE;
+	}
+
+	// Holder classes create the shared executors on first use without
+	// taking a monitor, which would pin a virtual thread's carrier.
+
+	static private class TimerSchedulerHolder {
+		static final ScheduledExecutorService INSTANCE = createTimerScheduler();
+	}
+
+	static private class AsyncExecutorHolder {
+		static final ExecutorService INSTANCE = createDefaultAsyncExecutor();
+	}
+
+	static private ScheduledExecutorService createTimerScheduler() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DALClient-timer"); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Deadlines are usually cancelled long before they expire
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	static private ExecutorService createDefaultAsyncExecutor() {
+		if (isVirtualThreadMode()) {
+			ExecutorService executor = createVirtualThreadExecutor();
+			if (executor != null) {
+				return executor;
+			}
+		}
+		int nThreads = Math.max(1, Integer.getInteger(ASYNC_THREADS_PROPERTY, DEFAULT_ASYNC_THREADS));
+		// Bounded; further tasks queue until a thread is free
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DALClient-async-" + count.incrementAndGet()); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
 
-	private String writeToken;
+	private volatile Log log;
 
-	private ResponseType responseType = ResponseType.XML;
+	/** Null when not logged in */
+	private final AtomicReference<DalSession> currentSession = new AtomicReference<>();
 
-	private String groupName;
+	private volatile SessionExpiryOption sessionExpiryOption = SessionExpiryOption.AUTO_EXPIRE;
 
-	private boolean inAdminGroup;
+	private final String baseUrl;
 
-	private boolean autoSwitchGroupOnLogin = false;
+	private volatile ResponseType responseType = ResponseType.XML;
 
-	private String groupId;
+	private volatile boolean autoSwitchGroupOnLogin = false;
 
 	private final DalHttpFactory dalHttpFactory;
 
+	private volatile ExecutorService asyncExecutor;
+
+	private volatile RetryPolicy retryPolicy;
+
+	private volatile HedgePolicy hedgePolicy;
+
+	private volatile ConcurrencyLimiter concurrencyLimiter;
+
+	private volatile SSLContext sslContext;
+
+	private volatile int prewarmConnections;
+
+	private volatile long keepWarmIntervalMillis;
+
+	private volatile RequestOptions defaultRequestOptions;
+
+	private volatile ReplicaSelector replicaSelector;
+
+	private volatile RequestScheduler requestScheduler;
+
+	private volatile ChecksumCache checksumCache;
+
+	private volatile MemoryBudget memoryBudget;
+
+	private volatile DalCredentialsProvider credentialsProvider;
+
+	private volatile long sessionRefreshMillis;
+
+	/** Held while a session is replaced so that concurrent callers share the new login */
+	private final ReentrantLock reloginLock = new ReentrantLock();
+
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+	private String primaryHost;
+
+	private volatile ScheduledFuture<?> healthCheckTask;
+
+	private volatile ScheduledFuture<?> keepWarmTask;
+
+	private volatile long lastRequestMillis;
+
+	private volatile boolean acceptCompressedResponses = ! "false".equalsIgnoreCase(System.getProperty(ACCEPT_COMPRESSED_PROPERTY)); //$NON-NLS-1$
+
 	public DefaultDALClient(String baseUrl) {
+		this(baseUrl, createDalHttpFactory());
+	}
+
+	/**
+	 * Create a client which uses the supplied DalHttpFactory instead of the one
+	 * determined from the <code>HTTP_FACTORY_CLASS_NAME</code> System property.
+	 * This allows a number of clients to share a factory (and, for example, its connection pool).
+	 * @param baseUrl
+	 * @param dalHttpFactory
+	 */
+	public DefaultDALClient(String baseUrl, DalHttpFactory dalHttpFactory) {
+		this.dalHttpFactory = dalHttpFactory;
+
 		String s = baseUrl;
 		if (! s.endsWith("/")) { //$NON-NLS-1$
 			s = s + "/"; //$NON-NLS-1$
 		}
 		this.baseUrl = s;
+		try {
+			this.primaryHost = new URL(this.baseUrl).getHost();
+		}
+		catch (MalformedURLException ignore) {
+		}
+
+		if (Boolean.getBoolean(ADAPTIVE_CONCURRENCY_PROPERTY)) {
+			this.concurrencyLimiter = ConcurrencyLimiter.forBaseUrl(this.baseUrl);
+		}
 
 		if (Boolean.getBoolean(DefaultDALClient.class.getName()+".WANT_LOGGING")) { //$NON-NLS-1$
 			try {
@@ -130,12 +376,30 @@ public class DefaultDALClient implements DALClient {
 			} catch (InvocationTargetException e) {
 			}
 		}
+	}
+
+	static private boolean isClassAvailable(String className) {
+		try {
+			Class.forName(className);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			// e.g. compiled for a later Java
+			return false;
+		}
+	}
 
-		String httpFactoryClassName = System.getProperty(this.getClass().getName()+".HTTP_FACTORY_CLASS_NAME"); //$NON-NLS-1$
+	static DalHttpFactory createDalHttpFactory() {
+		String httpFactoryClassName = System.getProperty(DefaultDALClient.class.getName()+".HTTP_FACTORY_CLASS_NAME"); //$NON-NLS-1$
 		if (httpFactoryClassName == null) {
 			if (System.getProperty("java.vm.name").equalsIgnoreCase("Dalvik")) { //$NON-NLS-1$ //$NON-NLS-2$
 				httpFactoryClassName = "com.diversityarrays.dalclient.httpandroid.AndroidDalHttpFactory"; //$NON-NLS-1$
 			}
+			else if (isVirtualThreadMode() && isClassAvailable(JDK_HTTP_FACTORY_CLASS_NAME)) {
+				// Apache httpclient synchronizes internally, which can pin virtual threads
+				httpFactoryClassName = JDK_HTTP_FACTORY_CLASS_NAME;
+			}
 			else {
 				httpFactoryClassName = "com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl"; //$NON-NLS-1$
 			}
@@ -148,7 +412,7 @@ public class DefaultDALClient implements DALClient {
 				        + httpFactoryClassName+"' does not implement " //$NON-NLS-1$
 				        + DalHttpFactory.class.getName());
 			}
-			dalHttpFactory = (DalHttpFactory) httpFactoryClass.newInstance();
+			return (DalHttpFactory) httpFactoryClass.newInstance();
 
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException(e);
@@ -157,7 +421,6 @@ public class DefaultDALClient implements DALClient {
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
-
 	}
 
 	@Override
@@ -167,10 +430,11 @@ public class DefaultDALClient implements DALClient {
 	 * @throws IllegalStateException if not logged in
 	 */
 	public List<HttpCookie> getHttpCookies() throws IllegalStateException {
-	    if (! isLoggedIn()) {
+	    DalSession session = currentSession.get();
+	    if (session == null) {
 	        throw new IllegalStateException("Not logged in");
 	    }
-	    return httpClient.getHttpCookies();
+	    return session.getHttpClient().getHttpCookies();
 	}
 
 	@Override
@@ -178,322 +442,2023 @@ public class DefaultDALClient implements DALClient {
 		this.log = log;
 	}
 
-	@Override
-	public String getBaseUrl() {
-		return this.baseUrl;
+	/**
+	 * Set the ExecutorService used by the <i>xxx</i>Async methods.
+	 * The client does not shut the executor down.
+	 * @param executor if null, a shared pool of daemon threads is used
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setAsyncExecutor(ExecutorService executor) {
+		this.asyncExecutor = executor;
+		return this;
 	}
 
-	@Override
-	public ResponseType getResponseType() {
-		return responseType;
+	public ExecutorService getAsyncExecutor() {
+		ExecutorService executor = asyncExecutor;
+		return executor != null ? executor : getDefaultAsyncExecutor();
 	}
 
-	@Override
-	public DALClient setResponseType(ResponseType responseType) {
-		if  (responseType.postValue==null) {
-			throw new IllegalArgumentException("Unsupported for setResponseType:"+responseType);
-		}
-		this.responseType = responseType;
+	/**
+	 * Set whether the server may send gzip or deflate compressed responses.
+	 * The default is true unless the System property<pre>
+	 * com.diversityarrays.dalclient.DefaultDALClient.ACCEPT_COMPRESSED=false
+	 * </pre>
+	 * is set. The <code>compressedByteCount</code> and <code>uncompressedByteCount</code>
+	 * of the HttpResponseInfo show the effect.
+	 * @param b
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setAcceptCompressedResponses(boolean b) {
+		this.acceptCompressedResponses = b;
 		return this;
 	}
 
-	@Override
-	public boolean getAutoSwitchGroupOnLogin() {
-		return autoSwitchGroupOnLogin;
+	public boolean getAcceptCompressedResponses() {
+		return acceptCompressedResponses;
 	}
 
-	@Override
-	public DALClient setAutoSwitchGroupOnLogin(boolean b) {
-		this.autoSwitchGroupOnLogin = b;
+	/**
+	 * Set the RetryPolicy used when a request fails with an IOException or
+	 * a transient HTTP error. Queries are always eligible for retry; update
+	 * and upload commands only if <code>PostBuilder.setRetrySafe(true)</code> was called
+	 * or their RequestOptions are retry-safe.
+	 * <p>
+	 * There is no RetryPolicy by default so a failed request is not repeated
+	 * unless one is set.
+	 * @param policy if null then requests are never retried
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setRetryPolicy(RetryPolicy policy) {
+		this.retryPolicy = policy;
 		return this;
 	}
 
-	@Override
-	public SessionExpiryOption getSessionExpiryOption() {
-		return sessionExpiryOption;
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
 	}
 
-	@Override
-	public void setSessionExpiryOption(SessionExpiryOption sessionExpiryOption) {
-		if (isLoggedIn()) {
-			// the DAL doesn't enforce this but it seems to make sense to me
-			throw new IllegalStateException("Can't change sessionExpiryOption while logged-in");
-		}
-		this.sessionExpiryOption = sessionExpiryOption;
+	/**
+	 * Enable hedging of <code>performQuery()</code> (and hence <code>QueryBuilder.execute()</code>).
+	 * The hedge requests are performed using the async executor.
+	 * @param policy if null (the default) then queries are not hedged
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setHedgePolicy(HedgePolicy policy) {
+		this.hedgePolicy = policy;
+		return this;
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			if (isLoggedIn()) {
-				logout();
-			}
-		}
-		finally {
-			super.finalize();
-		}
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
 	}
 
-	@Override
-	public String getUserId() {
-		return userId;
+	/**
+	 * Limit the number of concurrent requests to the DAL server. Normally
+	 * the limiter is shared by all clients for the same server, for example:<pre>
+	 * client.setConcurrencyLimiter(ConcurrencyLimiter.forBaseUrl(client.getBaseUrl()));
+	 * </pre>
+	 * This is done automatically if the System property<pre>
+	 * com.diversityarrays.dalclient.DefaultDALClient.ADAPTIVE_CONCURRENCY=true
+	 * </pre>
+	 * is set.
+	 * @param limiter if null then there is no limit
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+		this.concurrencyLimiter = limiter;
+		return this;
 	}
 
-	@Override
-	public String getUserName() {
-		return userName;
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
 	}
 
-	@Override
-	public String getWriteToken() {
-		return writeToken;
+	/**
+	 * Set the SSLContext used for the connections of subsequent logins.
+	 * By default <code>DalUtil.getSharedTrustingSSLContext()</code> is used so that
+	 * TLS sessions are resumed across logins and clients.
+	 * @param context if null then the default is used
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setSSLContext(SSLContext context) {
+		this.sslContext = context;
+		return this;
 	}
 
-	@Override
-	public boolean isLoggedIn() {
-		return httpClient!=null;
+	public SSLContext getSSLContext() {
+		SSLContext context = sslContext;
+		return context != null ? context : DalUtil.getSharedTrustingSSLContext();
 	}
 
-	@Override
-	public boolean isInAdminGroup() {
-		return inAdminGroup;
+	/**
+	 * Set the number of connections to open to the server immediately after login
+	 * so that the first requests do not pay for connection set-up.
+	 * Each connection is opened by a concurrent <code>get/version</code> request
+	 * so no more connections are opened than the transport allows for one server
+	 * (e.g. use a DalConnectionPool with DalHttpFactoryImpl).
+	 * @param n zero (the default) to disable
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setPrewarmConnections(int n) {
+		this.prewarmConnections = Math.max(0, n);
+		return this;
 	}
 
-	@Override
-	public String getGroupId() {
-		return groupId;
+	public int getPrewarmConnections() {
+		return prewarmConnections;
 	}
 
-	@Override
-	public String getGroupName() {
-		return groupName;
+	/**
+	 * While logged in, perform a <code>get/version</code> request whenever
+	 * the client has been idle for the interval so that the keep-alive
+	 * connections (and the server session) do not go cold.
+	 * The interval should be less than the server's keep-alive timeout.
+	 * Takes effect at the next login.
+	 * @param millis zero (the default) to disable
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setKeepWarmIntervalMillis(long millis) {
+		this.keepWarmIntervalMillis = Math.max(0, millis);
+		return this;
 	}
 
-	@Override
-	public void logout() {
-		try {
-			if (isLoggedIn()) {
-				String url = baseUrl + OP0_LOGOUT;
-				DalRequest httpGet = dalHttpFactory.createHttpGet(url);
-				DalResponseHandler<?> responseHandler = dalHttpFactory.createBasicResponseHandler();
-				DalUtil.doHttp(httpClient, httpGet, responseHandler);
-			}
-		} catch (IOException ignore) {
-		} finally {
-			userId = null;
-			userName = null;
-			groupId = null;
-			groupName = null;
-			writeToken = null;
+	public long getKeepWarmIntervalMillis() {
+		return keepWarmIntervalMillis;
+	}
 
-			if (httpClient!=null) {
-				try { httpClient.close(); } catch (IOException ignore) { }
-				httpClient = null;
-			}
+	/**
+	 * Set the timeouts which apply to requests that do not specify their own
+	 * (see <code>QueryBuilder.setRequestOptions()</code>).
+	 * Any cancellation in <code>options</code> is ignored.
+	 * @param options may be null for no limits
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setDefaultRequestOptions(RequestOptions options) {
+		this.defaultRequestOptions = options==null ? null : new RequestOptions(options).setCancellation(null);
+		return this;
+	}
 
-			logInfo("Logged out: "+baseUrl); //$NON-NLS-1$
-		}
+	public RequestOptions getDefaultRequestOptions() {
+		return defaultRequestOptions;
 	}
 
-	protected void logInfo(Object msg) {
-		if (log!=null) {
-			log.info(msg);
-		}
+	/**
+	 * Send GET queries to the replicas chosen by the ReplicaSelector.
+	 * Login, logout, switch group and all POST commands are still sent
+	 * to the primary (this client's base URL). The session cookies received
+	 * at login are sent with each query to a replica on another host,
+	 * so the replicas must share the primary's session store.
+	 * Health checks start at the next login.
+	 * @param selector null to send everything to the primary
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setReplicaSelector(ReplicaSelector selector) {
+		this.replicaSelector = selector;
+		return this;
 	}
 
-	protected void logWarn(Object msg) {
-		if (log!=null) {
-			log.warn(msg);
-		}
+	public ReplicaSelector getReplicaSelector() {
+		return replicaSelector;
 	}
 
-	protected boolean logIsDebugEnabled() {
-		return log!=null && log.isDebugEnabled();
+	/**
+	 * Use the ChecksumCache to find the MD5 checksums of uploaded files,
+	 * so that an unchanged file is not read just to compute its checksum.
+	 * The cache may be shared by several clients.
+	 * @param cache null to compute the checksum for every upload
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setChecksumCache(ChecksumCache cache) {
+		this.checksumCache = cache;
+		return this;
 	}
 
-	protected void logDebug(Object msg) {
-		if (log!=null) {
-			log.debug(msg);
-		}
+	public ChecksumCache getChecksumCache() {
+		return checksumCache;
 	}
 
-	@Override
-	public void login(String username, String password)
-	throws IOException, DalResponseException, DalLoginException
-	{
+	/**
+	 * Count the response content held in memory against the MemoryBudget.
+	 * New requests wait while the budget is exhausted and responses that do
+	 * not fit are diverted to a temporary file.
+	 * Streamed responses (<code>visitQueryResults()</code>) are not counted.
+	 * @param budget null to place no limit
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setMemoryBudget(MemoryBudget budget) {
+		this.memoryBudget = budget;
+		return this;
+	}
 
-		if (isLoggedIn()) {
-			throw new IllegalStateException("Already logged in");
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	private String computeUploadMD5(File upload) throws IOException {
+		if (! upload.isFile()) {
+			throw new FileNotFoundException(upload.getPath());
 		}
+		ChecksumCache cache = checksumCache;
+		return cache==null
+				? DalUtil.computeMD5checksum(upload)
+				: cache.getMD5checksum(upload);
+	}
 
-		String url = null;
+	/**
+	 * Copy the stream content to a temporary file, computing the checksum on the way,
+	 * so that the content is only read once for the checksum and each attempt can
+	 * then send it from the file.
+	 * @param streamFactory
+	 * @param md5 receives the checksum
+	 * @return the temporary file which the caller must delete
+	 * @throws IOException
+	 */
+	static private File spoolUpload(Factory<InputStream> streamFactory, String[] md5) throws IOException {
+		File spool = File.createTempFile("dalclient-upload", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+		boolean ok = false;
 		try {
-			url = new CommandBuilder(OP2_LOGIN)
-				.setParameter("_username", username) //$NON-NLS-1$
-				.setParameter("_sessionFlag", sessionExpiryOption.urlValue) //$NON-NLS-1$
-				.setPrefix(baseUrl)
-				.build();
-		} catch (DalMissingParameterException e) {
-			throw new RuntimeException(e);
+			md5[0] = DalUtil.spoolAndComputeMD5checksum(streamFactory.create(), spool);
+			ok = true;
+		}
+		finally {
+			if (! ok) {
+				spool.delete();
+			}
 		}
+		return spool;
+	}
 
-		String rand = DalUtil.createRandomNumberString();
-		String pwdUnameHash = DalUtil.computeHmacSHA1(password, username);
-		String randhash = DalUtil.computeHmacSHA1(pwdUnameHash, rand);
-		String signature = DalUtil.computeHmacSHA1(randhash, url);
+	/**
+	 * Queue each request attempt in the RequestScheduler, which orders them by
+	 * the priority given in their RequestOptions. The scheduler may be shared
+	 * by several clients.
+	 * @param scheduler null to send requests as soon as they are made
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setRequestScheduler(RequestScheduler scheduler) {
+		this.requestScheduler = scheduler;
+		return this;
+	}
 
-		DalRequest request = new HttpPostBuilder(dalHttpFactory, url, log)
-			.setResponseType(responseType)
-			.addParameter("rand_num", rand) //$NON-NLS-1$
-			.addParameter("url", url) //$NON-NLS-1$
-			.addParameter("signature", signature) //$NON-NLS-1$
-			.build();
+	public RequestScheduler getRequestScheduler() {
+		return requestScheduler;
+	}
 
-		DalResponseHandler<HttpResponseInfo> handler = dalHttpFactory.createResponseHandler();
-		DalCloseableHttpClient tmpClient = null;
+	/**
+	 * When a request finds that the server has expired the session (HTTP 401 with
+	 * an error such as "You need to login first"; other 401 errors are returned as usual)
+	 * log in again with credentials from the provider, switch to the same group
+	 * and replay the request. Concurrent requests which find the same session
+	 * expired all wait for a single new login.
+	 * @param provider null (the default) to let such requests fail
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setCredentialsProvider(DalCredentialsProvider provider) {
+		this.credentialsProvider = provider;
+		return this;
+	}
 
-		try {
-			tmpClient = dalHttpFactory.createCloseableHttpClient(DalUtil.createTrustingSSLContext());
+	public DalCredentialsProvider getCredentialsProvider() {
+		return credentialsProvider;
+	}
 
-			logInfo("performing login: "+url); //$NON-NLS-1$
-			Long[] elapsed = new Long[1];
-			HttpResponseInfo result = DalUtil.doHttp(tmpClient, request, handler, elapsed);
-			result.elapsedMillis = elapsed[0].longValue();
-			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+	/**
+	 * Log in again in the background once the session is this old so that
+	 * requests need not wait for a new login when the server expires it.
+	 * Requests continue to use the old session until the new one is ready.
+	 * Requires a DalCredentialsProvider.
+	 * @param millis zero (the default) to disable; should be a little less than the server's session lifetime
+	 * @return this DefaultDALClient
+	 */
+	public DefaultDALClient setSessionRefreshMillis(long millis) {
+		this.sessionRefreshMillis = Math.max(0, millis);
+		return this;
+	}
 
-			DalResponse response = buildDalResponse(url, result);
-			if (DEBUG) {
-				response.printOn(System.out);
-			}
+	public long getSessionRefreshMillis() {
+		return sessionRefreshMillis;
+	}
 
-			String errorMessage = response.getResponseErrorMessage();
-			if (errorMessage!=null) {
-				throw new DalLoginException(errorMessage);
+	private void prewarm(int nConnections) {
+		final String url = baseUrl + OP0_GET_VERSION;
+		List<Future<?>> futures = new ArrayList<>(nConnections);
+		for (int i = 0; i < nConnections; ++i) {
+			futures.add(getAsyncExecutor().submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return perform(createGetExchange(url), new Long[1]);
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e) {
+				logWarn("Pre-warm failed for "+url+": "+e.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		logDebug("Pre-warmed "+nConnections+" connections to "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * The task only holds a weak reference so that a client which is
+	 * never logged out can still be garbage collected.
+	 * The request blocks so it is not made on the timer thread, which must stay
+	 * free to enforce deadlines and trigger hedges; it is made on the async executor
+	 * and limited to one interval. No request is sent while the previous one is
+	 * still in progress.
+	 */
+	static private class KeepWarmTask implements Runnable {
+		private final WeakReference<DefaultDALClient> clientRef;
+		private final AtomicBoolean inProgress = new AtomicBoolean();
+
+		KeepWarmTask(DefaultDALClient client) {
+			clientRef = new WeakReference<>(client);
+		}
+
+		@Override
+		public void run() {
+			final DefaultDALClient client = clientRef.get();
+			if (client == null || ! client.isLoggedIn()) {
+				throw new CancellationException(); // stops the repetition
+			}
+			final long interval = client.keepWarmIntervalMillis;
+			if (System.currentTimeMillis() - client.lastRequestMillis < interval) {
+				return;
+			}
+			if (! inProgress.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				client.getAsyncExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							RequestOptions options = new RequestOptions().setTotalTimeoutMillis(interval);
+							client.perform(client.createGetExchange(client.baseUrl + OP0_GET_VERSION, options), new Long[1]);
+						}
+						catch (IOException e) {
+							client.logWarn("Keep-warm failed for "+client.baseUrl+": "+e); //$NON-NLS-1$ //$NON-NLS-2$
+						}
+						finally {
+							inProgress.set(false);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				inProgress.set(false);
+			}
+		}
+	}
+
+	private void startKeepWarm() {
+		long interval = keepWarmIntervalMillis;
+		if (interval > 0) {
+			keepWarmTask = getTimerScheduler().scheduleWithFixedDelay(new KeepWarmTask(this),
+					interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void stopKeepWarm() {
+		ScheduledFuture<?> task = keepWarmTask;
+		keepWarmTask = null;
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Sends <code>get/version</code> to each replica; as for KeepWarmTask
+	 * only a weak reference to the client is held and the requests are made
+	 * on the async executor, all replicas at once. Each check is limited to one
+	 * interval, including the time to connect. A replica whose previous check is
+	 * still in progress is not checked again.
+	 */
+	static private class HealthCheckTask implements Runnable {
+		private final WeakReference<DefaultDALClient> clientRef;
+		private final ReplicaSelector selector;
+		private final Set<ReplicaSelector.Replica> inProgress =
+				Collections.newSetFromMap(new ConcurrentHashMap<ReplicaSelector.Replica, Boolean>());
+
+		HealthCheckTask(DefaultDALClient client, ReplicaSelector selector) {
+			clientRef = new WeakReference<>(client);
+			this.selector = selector;
+		}
+
+		@Override
+		public void run() {
+			DefaultDALClient client = clientRef.get();
+			if (client == null || ! client.isLoggedIn() || client.replicaSelector != selector) {
+				throw new CancellationException(); // stops the repetition
+			}
+			long interval = selector.getHealthCheckIntervalMillis();
+			RequestOptions options = new RequestOptions()
+					.setConnectTimeoutMillis((int) Math.min(interval, Integer.MAX_VALUE))
+					.setTotalTimeoutMillis(interval);
+			for (ReplicaSelector.Replica replica : selector.getReplicas()) {
+				if (! inProgress.add(replica)) {
+					continue;
+				}
+				try {
+					client.getAsyncExecutor().execute(new HealthCheck(client, replica, options));
+				}
+				catch (RejectedExecutionException e) {
+					inProgress.remove(replica);
+				}
+			}
+		}
+
+		private class HealthCheck implements Runnable {
+			private final DefaultDALClient client;
+			private final ReplicaSelector.Replica replica;
+			private final RequestOptions options;
+
+			HealthCheck(DefaultDALClient client, ReplicaSelector.Replica replica, RequestOptions options) {
+				this.client = client;
+				this.replica = replica;
+				this.options = options;
+			}
+
+			@Override
+			public void run() {
+				String url = replica.baseUrl + OP0_GET_VERSION;
+				Long[] elapsed = new Long[1];
+				boolean failed = true;
+				try {
+					DalRequest request = client.dalHttpFactory.createHttpGet(url);
+					HttpResponseInfo result = client.perform(
+							client.singleRequestExchange(url, request).withOptions(options), elapsed);
+					failed = result.httpStatusCode != 200;
+				}
+				catch (IOException e) {
+					client.logWarn("Health check failed for "+replica.baseUrl+": "+e); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				finally {
+					inProgress.remove(replica);
+				}
+				selector.record(replica, elapsed[0]==null ? -1 : elapsed[0].longValue(), failed);
+			}
+		}
+	}
+
+	private void startHealthChecks() {
+		ReplicaSelector selector = replicaSelector;
+		if (selector != null && selector.getHealthCheckIntervalMillis() > 0) {
+			healthCheckTask = getTimerScheduler().scheduleWithFixedDelay(new HealthCheckTask(this, selector),
+					0, selector.getHealthCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void stopHealthChecks() {
+		ScheduledFuture<?> task = healthCheckTask;
+		healthCheckTask = null;
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Create the GET for a query, sending it to a replica if there is a ReplicaSelector.
+	 * The replica is released by <code>performAttempts()</code>.
+	 */
+	private DalRequest createQueryGet(Exchange<?> exchange, String urls) {
+		ReplicaSelector selector = replicaSelector;
+		ReplicaSelector.Replica replica = null;
+		if (selector != null && urls.startsWith(baseUrl)) {
+			replica = selector.acquire();
+		}
+		exchange.replica = replica;
+		if (replica == null) {
+			return dalHttpFactory.createHttpGet(urls);
+		}
+		DalRequest request = dalHttpFactory.createHttpGet(replica.baseUrl + urls.substring(baseUrl.length()));
+		String cookies = exchange.session==null ? null : exchange.session.getCookieHeader();
+		if (cookies != null && ! replica.host.equalsIgnoreCase(primaryHost)) {
+			// The cookie store only sends them to the primary's host
+			request.setHeader(HEADER_COOKIE, cookies);
+		}
+		return request;
+	}
+
+	private void releaseReplica(Exchange<?> exchange, Long[] elapsedMillis, boolean failed) {
+		ReplicaSelector.Replica replica = exchange.replica;
+		if (replica != null) {
+			exchange.replica = null;
+			ReplicaSelector selector = replicaSelector;
+			if (selector == null) {
+				replica.inFlight.decrementAndGet();
+			}
+			else if (exchange.cancelled) {
+				// Not the replica's fault
+				selector.abandon(replica);
+			}
+			else {
+				Long elapsed = elapsedMillis[0];
+				selector.release(replica, elapsed==null ? -1 : elapsed.longValue(), failed);
+			}
+		}
+	}
+
+	static private String toCookieHeader(List<HttpCookie> cookies) {
+		if (cookies == null || cookies.isEmpty()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (HttpCookie cookie : cookies) {
+			if (sb.length() > 0) {
+				sb.append("; "); //$NON-NLS-1$
+			}
+			sb.append(cookie.getName()).append('=').append(cookie.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * One HTTP exchange with the server which may be repeated under the RetryPolicy.
+	 * A new DalRequest is created for each attempt so that signed requests
+	 * receive a fresh rand_num and signature.
+	 */
+	private abstract class Exchange<T> implements DalCancellation.Cancellable {
+		final String url;
+		final boolean retrySafe;
+
+		private RequestOptions options;
+
+		/** The replica receiving the current attempt */
+		private ReplicaSelector.Replica replica;
+
+		private volatile DalRequest currentRequest;
+		private volatile boolean cancelled;
+		private volatile boolean deadlineExceeded;
+
+		/** When the whole exchange must be complete or zero */
+		long deadline;
+
+		/** Every attempt uses the session that was current when the exchange was created */
+		DalSession session;
+
+		/** Whether the exchange may be sent again with a new login if the session has expired */
+		boolean replayOnExpiry = true;
+
+		Exchange(String url, boolean retrySafe) {
+			this.url = url;
+			this.retrySafe = retrySafe;
+			this.session = currentSession.get();
+		}
+
+		Exchange<T> withOptions(RequestOptions options) {
+			this.options = options;
+			return this;
+		}
+
+		/**
+		 * Use this when the request was built (e.g. signed) before the exchange was created.
+		 * @param session
+		 * @return this Exchange
+		 */
+		Exchange<T> withSession(DalSession session) {
+			this.session = session;
+			return this;
+		}
+
+		/**
+		 * Use this when the request cannot be created again or must not cause a new login.
+		 * @return this Exchange
+		 */
+		Exchange<T> withoutReplay() {
+			this.replayOnExpiry = false;
+			return this;
+		}
+
+		/**
+		 * Abort the request in progress and prevent any further attempts.
+		 */
+		@Override
+		public void cancel() {
+			cancelled = true;
+			DalRequest r = currentRequest;
+			if (r != null) {
+				r.abort();
+			}
+		}
+
+		abstract DalRequest createRequest() throws IOException;
+
+		abstract DalResponseHandler<T> createHandler();
+
+		abstract int getStatusCode(T result);
+
+		/**
+		 * @param result
+		 * @return the response if the server returned an error, else null
+		 */
+		abstract HttpResponseInfo getErrorInfo(T result);
+
+		/**
+		 * Called when an attempt has received a response.
+		 * @param request
+		 * @param result
+		 */
+		void onResponse(DalRequest request, T result) {
+		}
+
+		/**
+		 * @return false if the response must not be compressed, e.g. so that Range offsets refer to the file
+		 */
+		boolean acceptCompressed() {
+			return true;
+		}
+
+		/**
+		 * @param error
+		 * @return false if the failed attempt may already have been observed by the caller
+		 */
+		boolean canRetryAfter(IOException error) {
+			return true;
+		}
+	}
+
+	/**
+	 * Does the same as the handler from <code>DalHttpFactory.createResponseHandler()</code>
+	 * but counts the content against a MemoryBudget.
+	 */
+	static private class BudgetedResponseHandler implements DalResponseHandler<HttpResponseInfo> {
+		private final MemoryBudget budget;
+		private final long deadline;
+
+		BudgetedResponseHandler(MemoryBudget budget, long deadline) {
+			this.budget = budget;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public HttpResponseInfo handleResponse(DalCloseableHttpResponse response) throws IOException {
+			HttpResponseInfo result = new HttpResponseInfo();
+
+			result.headers = response.getAllHeaders();
+			result.httpStatusCode = response.getStatusCode();
+			if (! DalUtil.isHttpStatusCodeOk(result.httpStatusCode)) {
+				result.httpErrorReason = response.getReasonPhrase();
+			}
+
+			result.serverResponse = DalUtil.readEntityAsString(response, result, budget, deadline);
+			return result;
+		}
+	}
+
+	private abstract class InfoExchange extends Exchange<HttpResponseInfo> {
+
+		InfoExchange(String url, boolean retrySafe) {
+			super(url, retrySafe);
+		}
+
+		@Override
+		DalResponseHandler<HttpResponseInfo> createHandler() {
+			MemoryBudget budget = memoryBudget;
+			if (budget == null) {
+				return dalHttpFactory.createResponseHandler();
+			}
+			return new BudgetedResponseHandler(budget, deadline);
+		}
+
+		@Override
+		int getStatusCode(HttpResponseInfo result) {
+			return result.httpStatusCode;
+		}
+
+		@Override
+		HttpResponseInfo getErrorInfo(HttpResponseInfo result) {
+			return result;
+		}
+
+		@Override
+		void onResponse(DalRequest request, HttpResponseInfo result) {
+			DalFileUpload upload = request.getFileUpload();
+			if (upload != null) {
+				result.uploadByteCount = upload.getBytesSent();
+				result.uploadBytesPerSecond = upload.getBytesPerSecond();
+				if (logIsDebugEnabled()) {
+					logDebug("Uploaded "+result.uploadByteCount+" bytes at " //$NON-NLS-1$ //$NON-NLS-2$
+							+Math.round(result.uploadBytesPerSecond)+" bytes/sec to "+url); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	private <T> T perform(final Exchange<T> exchange, Long[] elapsedMillis) throws IOException {
+		if (exchange.session == null) {
+			throw new IllegalStateException("Not logged in");
+		}
+		RequestOptions defaults = defaultRequestOptions;
+		RequestOptions options = exchange.options==null
+				? (defaults==null ? new RequestOptions() : defaults)
+				: exchange.options.withDefaults(defaults);
+
+		long deadline = 0;
+		ScheduledFuture<?> deadlineTask = null;
+		if (options.getTotalTimeoutMillis() > 0) {
+			deadline = System.currentTimeMillis() + options.getTotalTimeoutMillis();
+			exchange.deadline = deadline;
+			deadlineTask = getTimerScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					exchange.deadlineExceeded = true;
+					exchange.cancel();
+				}
+			}, options.getTotalTimeoutMillis(), TimeUnit.MILLISECONDS);
+		}
+		DalCancellation cancellation = options.getCancellation();
+		if (cancellation != null) {
+			cancellation.register(exchange);
+		}
+		refreshSessionIfDue(exchange.session);
+		try {
+			T result = performAttempts(exchange, options, deadline, elapsedMillis);
+			if (exchange.replayOnExpiry && isSessionExpired(exchange.getErrorInfo(result)) && ! exchange.cancelled) {
+				DalSession session = relogin(exchange.session);
+				if (session != null) {
+					logInfo("Session expired, replaying "+exchange.url); //$NON-NLS-1$
+					exchange.session = session;
+					result = performAttempts(exchange, options, deadline, elapsedMillis);
+				}
+			}
+			return result;
+		}
+		catch (IOException e) {
+			throw explainFailure(exchange, options, e);
+		}
+		finally {
+			if (deadlineTask != null) {
+				deadlineTask.cancel(false);
+			}
+			if (cancellation != null) {
+				cancellation.unregister(exchange);
+			}
+		}
+	}
+
+	/**
+	 * @return the error to report when the exchange failed with <code>e</code>
+	 */
+	static private IOException explainFailure(Exchange<?> exchange, RequestOptions options, IOException e) {
+		if (exchange.deadlineExceeded) {
+			SocketTimeoutException ste = new SocketTimeoutException(
+					"Total timeout of "+options.getTotalTimeoutMillis()+"ms exceeded: "+exchange.url); //$NON-NLS-1$ //$NON-NLS-2$
+			ste.initCause(e);
+			return ste;
+		}
+		if (exchange.cancelled && ! (e instanceof InterruptedIOException)) {
+			InterruptedIOException iioe = new InterruptedIOException("Request cancelled: "+exchange.url); //$NON-NLS-1$
+			iioe.initCause(e);
+			return iioe;
+		}
+		return e;
+	}
+
+	private <T> T performAttempts(Exchange<T> exchange, RequestOptions options, long deadline, Long[] elapsedMillis)
+	throws IOException
+	{
+		RetryPolicy policy = exchange.retrySafe ? retryPolicy : null;
+		int attempt = 0;
+		while (true) {
+			++attempt;
+			if (exchange.cancelled) {
+				throw new InterruptedIOException("Request cancelled: "+exchange.url); //$NON-NLS-1$
+			}
+			DalRequest request = exchange.createRequest();
+			int socketTimeout = options.getSocketTimeoutMillis();
+			if (deadline > 0) {
+				// Don't let a single read outlive the deadline
+				long remaining = Math.max(1, deadline - System.currentTimeMillis());
+				socketTimeout = (int) (socketTimeout==0 ? remaining : Math.min(socketTimeout, remaining));
+			}
+			if (socketTimeout > 0 || options.getConnectTimeoutMillis() > 0) {
+				request.setTimeouts(options.getConnectTimeoutMillis(), socketTimeout);
+			}
+			exchange.currentRequest = request;
+			if (exchange.cancelled) {
+				// cancel() may have missed the new request
+				request.abort();
+				throw new InterruptedIOException("Request cancelled: "+exchange.url); //$NON-NLS-1$
+			}
+			T result;
+			boolean replicaFailed = true;
+			try {
+				result = doScheduledHttp(exchange, request, options.getPriority(), deadline, elapsedMillis);
+				exchange.onResponse(request, result);
+				replicaFailed = exchange.getStatusCode(result) >= 500;
+			}
+			catch (IOException e) {
+				releaseReplica(exchange, elapsedMillis, true);
+				if (policy==null || exchange.cancelled) {
+					throw e;
+				}
+				long delay = policy.computeDelayMillis(attempt);
+				boolean beforeDeadline = deadline <= 0 || System.currentTimeMillis() + delay < deadline;
+				if (! beforeDeadline || ! policy.isRetryable(e) || ! exchange.canRetryAfter(e) || ! policy.acquireRetry(attempt)) {
+					policy.recordFailure();
+					throw e;
+				}
+				logWarn("Attempt#"+attempt+" failed ("+e+") for "+exchange.url); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				pauseBeforeRetry(delay);
+				continue;
+			}
+			finally {
+				releaseReplica(exchange, elapsedMillis, replicaFailed);
+			}
+
+			if (policy!=null) {
+				int statusCode = exchange.getStatusCode(result);
+				if (policy.isRetryable(statusCode)) {
+					long delay = policy.computeDelayMillis(attempt);
+					boolean beforeDeadline = deadline <= 0 || System.currentTimeMillis() + delay < deadline;
+					if (beforeDeadline && policy.acquireRetry(attempt)) {
+						logWarn("Attempt#"+attempt+" got HTTP code "+statusCode+" for "+exchange.url); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						pauseBeforeRetry(delay);
+						continue;
+					}
+					policy.recordFailure();
+				}
+				else {
+					policy.recordCompletion(attempt);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Send one attempt once the RequestScheduler and ConcurrencyLimiter (if any) allow it.
+	 */
+	private <T> T doScheduledHttp(Exchange<T> exchange, DalRequest request, RequestPriority priority,
+			long deadline, Long[] elapsedMillis)
+	throws IOException
+	{
+		MemoryBudget budget = memoryBudget;
+		if (budget != null) {
+			budget.awaitAdmission(deadline);
+		}
+		RequestScheduler scheduler = requestScheduler;
+		RequestPriority p = priority==null ? RequestPriority.NORMAL : priority;
+		String template = null;
+		if (scheduler != null) {
+			String command = exchange.url.startsWith(baseUrl) ? exchange.url.substring(baseUrl.length()) : exchange.url;
+			template = DalUtil.commandTemplateOf(command);
+			scheduler.acquire(p, template, deadline);
+		}
+		elapsedMillis[0] = null;
+		try {
+			ConcurrencyLimiter limiter = concurrencyLimiter;
+			if (limiter==null) {
+				return doHttp(exchange.session.getHttpClient(), request, exchange.createHandler(), elapsedMillis, exchange.acceptCompressed());
+			}
+			limiter.acquire(deadline);
+			elapsedMillis[0] = null;
+			boolean overloaded = true;
+			try {
+				T result = doHttp(exchange.session.getHttpClient(), request, exchange.createHandler(), elapsedMillis, exchange.acceptCompressed());
+				overloaded = ConcurrencyLimiter.isOverloadStatus(exchange.getStatusCode(result));
+				return result;
+			}
+			finally {
+				Long rtt = elapsedMillis[0];
+				if (exchange.cancelled) {
+					// Cancelled, past its deadline or a losing hedge: says nothing about the server
+					limiter.release(-1, false);
+				}
+				else {
+					limiter.release(rtt==null ? -1 : rtt.longValue(), overloaded);
+				}
+			}
+		}
+		finally {
+			if (scheduler != null) {
+				Long elapsed = elapsedMillis[0];
+				scheduler.release(p, template, elapsed==null ? -1 : elapsed.longValue());
+			}
+		}
+	}
+
+	static private boolean isRetrySafe(RequestOptions options) {
+		return options != null && options.isRetrySafe();
+	}
+
+	/**
+	 * @return an Exchange for a request that is never repeated
+	 */
+	private InfoExchange singleRequestExchange(String url, final DalRequest request) {
+		InfoExchange exchange = new InfoExchange(url, false) {
+			@Override
+			DalRequest createRequest() {
+				return request;
+			}
+		};
+		exchange.withoutReplay();
+		return exchange;
+	}
+
+	static private void pauseBeforeRetry(long millis) throws InterruptedIOException {
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry"); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private <T> T doHttp(DalCloseableHttpClient client, DalRequest request, DalResponseHandler<T> handler, Long[] elapsedMillis)
+	throws IOException
+	{
+		return doHttp(client, request, handler, elapsedMillis, true);
+	}
+
+	private <T> T doHttp(DalCloseableHttpClient client, DalRequest request, DalResponseHandler<T> handler, Long[] elapsedMillis,
+			boolean acceptCompressed)
+	throws IOException
+	{
+		if (acceptCompressed && acceptCompressedResponses) {
+			request.setHeader(DalEntityStream.HEADER_ACCEPT_ENCODING, DalEntityStream.ACCEPT_ENCODING);
+		}
+		lastRequestMillis = System.currentTimeMillis();
+		return DalUtil.doHttp(client, request, handler, elapsedMillis);
+	}
+
+	private Future<DalResponse> submitAsync(Callable<DalResponse> task, DalResponseCallback callback) {
+		return submitAsync(task, callback, null);
+	}
+
+	private Future<DalResponse> submitAsync(Callable<DalResponse> task, DalResponseCallback callback, DalCancellation cancellation) {
+		DalResponseFuture future = new DalResponseFuture(task, callback, cancellation);
+		getAsyncExecutor().execute(future);
+		return future;
+	}
+
+	@Override
+	public String getBaseUrl() {
+		return this.baseUrl;
+	}
+
+	@Override
+	public ResponseType getResponseType() {
+		return responseType;
+	}
+
+	/**
+	 * @param options may be null
+	 * @return the ResponseType from the options, else the default RequestOptions, else the client's
+	 */
+	private ResponseType responseTypeFor(RequestOptions options) {
+		if (options != null && options.getResponseType() != null) {
+			return options.getResponseType();
+		}
+		RequestOptions defaults = defaultRequestOptions;
+		if (defaults != null && defaults.getResponseType() != null) {
+			return defaults.getResponseType();
+		}
+		return responseType;
+	}
+
+	/**
+	 * This applies to every request that is made without a ResponseType in its RequestOptions,
+	 * including those already being prepared by other threads; use
+	 * <code>RequestOptions.setResponseType()</code> when threads want different types.
+	 */
+	@Override
+	public DALClient setResponseType(ResponseType responseType) {
+		if  (responseType.postValue==null) {
+			throw new IllegalArgumentException("Unsupported for setResponseType:"+responseType);
+		}
+		this.responseType = responseType;
+		return this;
+	}
+
+	@Override
+	public boolean getAutoSwitchGroupOnLogin() {
+		return autoSwitchGroupOnLogin;
+	}
+
+	@Override
+	public DALClient setAutoSwitchGroupOnLogin(boolean b) {
+		this.autoSwitchGroupOnLogin = b;
+		return this;
+	}
+
+	@Override
+	public SessionExpiryOption getSessionExpiryOption() {
+		return sessionExpiryOption;
+	}
+
+	@Override
+	public void setSessionExpiryOption(SessionExpiryOption sessionExpiryOption) {
+		if (isLoggedIn()) {
+			// the DAL doesn't enforce this but it seems to make sense to me
+			throw new IllegalStateException("Can't change sessionExpiryOption while logged-in");
+		}
+		this.sessionExpiryOption = sessionExpiryOption;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			if (isLoggedIn()) {
+				logout();
+			}
+		}
+		finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * @return the current session
+	 * @throws IllegalStateException if not logged in
+	 */
+	private DalSession requireSession() {
+		DalSession session = currentSession.get();
+		if (session == null) {
+			throw new IllegalStateException("Not logged in");
+		}
+		return session;
+	}
+
+	/**
+	 * The getters for the user and group each read the current session so,
+	 * if another thread may be calling <code>switchGroup()</code>, use this
+	 * to see values which are consistent with each other.
+	 * @return the current session or null if not logged in
+	 */
+	public DalSession getSession() {
+		return currentSession.get();
+	}
+
+	@Override
+	public String getUserId() {
+		DalSession session = currentSession.get();
+		return session==null ? null : session.getUserId();
+	}
+
+	@Override
+	public String getUserName() {
+		DalSession session = currentSession.get();
+		return session==null ? null : session.getUserName();
+	}
+
+	@Override
+	public String getWriteToken() {
+		DalSession session = currentSession.get();
+		return session==null ? null : session.getWriteToken();
+	}
+
+	@Override
+	public boolean isLoggedIn() {
+		return currentSession.get()!=null;
+	}
+
+	@Override
+	public boolean isInAdminGroup() {
+		DalSession session = currentSession.get();
+		return session!=null && session.isInAdminGroup();
+	}
+
+	@Override
+	public String getGroupId() {
+		DalSession session = currentSession.get();
+		return session==null ? null : session.getGroupId();
+	}
+
+	@Override
+	public String getGroupName() {
+		DalSession session = currentSession.get();
+		return session==null ? null : session.getGroupName();
+	}
+
+	/**
+	 * Requests which have already started complete (or fail) using
+	 * the session that they started with.
+	 */
+	@Override
+	public void logout() {
+		stopKeepWarm();
+		stopHealthChecks();
+		DalSession session = currentSession.getAndSet(null);
+		if (session == null) {
+			return;
+		}
+		logoutQuietly(session);
+	}
+
+	/**
+	 * Log the session out on the server and close its HTTP client.
+	 * @param session
+	 */
+	private void logoutQuietly(DalSession session) {
+		DalCloseableHttpClient httpClient = session.getHttpClient();
+		try {
+			String url = baseUrl + OP0_LOGOUT;
+			DalRequest httpGet = dalHttpFactory.createHttpGet(url);
+			DalResponseHandler<?> responseHandler = dalHttpFactory.createBasicResponseHandler();
+			DalUtil.doHttp(httpClient, httpGet, responseHandler);
+		} catch (IOException ignore) {
+		} finally {
+			try { httpClient.close(); } catch (IOException ignore) { }
+
+			logInfo("Logged out: "+baseUrl); //$NON-NLS-1$
+		}
+	}
+
+	protected void logInfo(Object msg) {
+		Log l = log;
+		if (l!=null) {
+			l.info(msg);
+		}
+	}
+
+	protected void logWarn(Object msg) {
+		Log l = log;
+		if (l!=null) {
+			l.warn(msg);
+		}
+	}
+
+	protected boolean logIsInfoEnabled() {
+		Log l = log;
+		return l!=null && l.isInfoEnabled();
+	}
+
+	protected boolean logIsDebugEnabled() {
+		Log l = log;
+		return l!=null && l.isDebugEnabled();
+	}
+
+	protected void logDebug(Object msg) {
+		Log l = log;
+		if (l!=null) {
+			l.debug(msg);
+		}
+	}
+
+	@Override
+	public void login(String username, String password)
+	throws IOException, DalResponseException, DalLoginException
+	{
+
+		if (isLoggedIn()) {
+			throw new IllegalStateException("Already logged in");
+		}
+
+		DalSession session = createSession(username, password);
+		if (! currentSession.compareAndSet(null, session)) {
+			// Another thread got there first
+			closeQuietly(session);
+			throw new IllegalStateException("Already logged in");
+		}
+		String userId = session.getUserId();
+		String writeToken = session.getWriteToken();
+
+		logInfo("Logged in as id="+userId+"("+username+") on "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		int nPrewarm = prewarmConnections;
+		if (nPrewarm > 0) {
+			prewarm(nPrewarm);
+		}
+		startKeepWarm();
+		startHealthChecks();
+
+		if (logIsDebugEnabled()) {
+			logDebug("  userId="+userId); //$NON-NLS-1$
+			logDebug("  writeToken="+writeToken); //$NON-NLS-1$
+		}
+
+		if (autoSwitchGroupOnLogin) {
+			DalResponse listGroupResponse = performQuery(OP0_LIST_GROUP);
+			DalResponseRecord record = listGroupResponse.getFirstRecord("SystemGroup"); //$NON-NLS-1$
+			String groupId = record.rowdata.get("SystemGroupId"); //$NON-NLS-1$
+
+			String err = switchGroup(groupId);
+			if (err != null) {
+			    throw new DalLoginException(
+			            String.format("switchGroup(%s) failed: %s", groupId, err));
+			}
+		}
+	}
+
+	/**
+	 * Log in without installing the session.
+	 * @param username
+	 * @param password
+	 * @return a new DalSession
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws DalLoginException
+	 */
+	private DalSession createSession(String username, String password)
+	throws IOException, DalResponseException, DalLoginException
+	{
+		String url = null;
+		try {
+			url = new CommandBuilder(OP2_LOGIN)
+				.setParameter("_username", username) //$NON-NLS-1$
+				.setParameter("_sessionFlag", sessionExpiryOption.urlValue) //$NON-NLS-1$
+				.setPrefix(baseUrl)
+				.build();
+		} catch (DalMissingParameterException e) {
+			throw new RuntimeException(e);
+		}
+
+		String rand = DalUtil.createRandomNumberString();
+		String pwdUnameHash = DalUtil.computeHmacSHA1(password, username);
+		String randhash = DalUtil.computeHmacSHA1(pwdUnameHash, rand);
+		String signature = DalUtil.computeHmacSHA1(randhash, url);
+
+		DalRequest request = new HttpPostBuilder(dalHttpFactory, url, log)
+			.setResponseType(responseTypeFor(null))
+			.addParameter("rand_num", rand) //$NON-NLS-1$
+			.addParameter("url", url) //$NON-NLS-1$
+			.addParameter("signature", signature) //$NON-NLS-1$
+			.build();
+
+		DalResponseHandler<HttpResponseInfo> handler = dalHttpFactory.createResponseHandler();
+		DalCloseableHttpClient tmpClient = null;
+
+		try {
+			tmpClient = dalHttpFactory.createCloseableHttpClient(getSSLContext());
+
+			logInfo("performing login: "+url); //$NON-NLS-1$
+			Long[] elapsed = new Long[1];
+			HttpResponseInfo result = doHttp(tmpClient, request, handler, elapsed);
+			result.elapsedMillis = elapsed[0].longValue();
+			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+
+			DalResponse response = buildDalResponse(url, result);
+			if (DEBUG) {
+				response.printOn(System.out);
 			}
 
-			this.userName = username;
-			this.userId = response.getRecordFieldValue(DALClient.TAG_USER, DALClient.ATTR_USER_ID);
-			this.writeToken = response.getRecordFieldValue(DALClient.TAG_WRITE_TOKEN, DALClient.ATTR_VALUE);
+			String errorMessage = response.getResponseErrorMessage();
+			if (errorMessage!=null) {
+				throw new DalLoginException(errorMessage);
+			}
 
-			logInfo("Logged in as id="+userId+"("+userName+") on "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			String userId = response.getRecordFieldValue(DALClient.TAG_USER, DALClient.ATTR_USER_ID);
+			String writeToken = response.getRecordFieldValue(DALClient.TAG_WRITE_TOKEN, DALClient.ATTR_VALUE);
 
+			DalSession session = new DalSession(tmpClient, userId, username, writeToken,
+					toCookieHeader(tmpClient.getHttpCookies()));
 			// Ok - if we get here, we are logged in.
-			httpClient = tmpClient;
 			tmpClient = null;
+			return session;
+		}
+		finally {
+			if (tmpClient!=null) {
+				logWarn("Login failed for '"+username+"' on "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$
+				try { tmpClient.close(); }
+				catch (IOException ignore) { }
+				tmpClient = null;
+			}
+		}
+	}
 
-			if (logIsDebugEnabled()) {
-				logDebug("  userId="+userId); //$NON-NLS-1$
-				logDebug("  writeToken="+writeToken); //$NON-NLS-1$
+	/**
+	 * Make sure that users of this code do not do a login or logout using
+	 * the performCommand() variants
+	 *
+	 * @param command
+	 * @throws DalResponseException if the command is a login or logout
+	 */
+	private void checkIfOkToPerform(String command) throws DalResponseException {
+
+		// We don't want user's doing this directly.
+		if (command.startsWith(LOGIN_PREFIX)) {
+			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
+			throw new DalResponseException(command+" can't be performed (use client.login(un,pw))");
+		}
+
+		// We don't want user's doing this directly.
+		if (command.startsWith(OP0_LOGOUT)) {
+			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
+			throw new DalResponseException(command+" can't be performed (use client.logout())");
+		}
+
+		// We don't want user's doing this without going through switchGroup()
+		if (command.startsWith(SWITCH_GROUP_PREFIX)) {
+			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
+			throw new DalResponseException("Please use DALClient.switchGroup(groupId) instead of '"+command+"'");
+		}
+	}
+
+	@Override
+	public PostBuilder preparePostQuery(String command) {
+		return new PostBuilderImpl(command);
+	}
+
+	@Override
+	public DalResponse performQuery(String command) throws IOException, DalResponseException {
+		return performQueryInternal(command, true, null);
+	}
+
+	@Override
+	public DalResponse performQuery(String command, RequestOptions options) throws IOException, DalResponseException {
+		return performQueryInternal(command, true, options);
+	}
+
+	@Override
+	public Future<DalResponse> performQueryAsync(final String command, DalResponseCallback callback) {
+		return performQueryAsync(command, null, callback);
+	}
+
+	@Override
+	public Future<DalResponse> performQueryAsync(final String command, RequestOptions options, DalResponseCallback callback) {
+		final RequestOptions asyncOptions = withCancellation(options);
+		if (canSendWithoutBlocking(currentSession.get())) {
+			return new AsyncQuery(command, asyncOptions, callback).start();
+		}
+		return submitAsync(new Callable<DalResponse>() {
+			@Override
+			public DalResponse call() throws Exception {
+				return performQuery(command, asyncOptions);
+			}
+		}, callback, asyncOptions.getCancellation());
+	}
+
+	/**
+	 * @return true if a query may be sent by an AsyncQuery; the other features
+	 * 		which apply to queries wait on the calling thread
+	 */
+	private boolean canSendWithoutBlocking(DalSession session) {
+		return session != null
+				&& session.getHttpClient() instanceof DalAsyncHttpClient
+				&& hedgePolicy == null
+				&& requestScheduler == null
+				&& concurrencyLimiter == null
+				&& memoryBudget == null;
+	}
+
+	/**
+	 * A query sent with <code>DalAsyncHttpClient.executeAsync()</code>. No thread waits
+	 * while it is in flight: the response, any retry (scheduled on the timer) and the
+	 * completion of the Future all happen in callbacks. Only logging in again after
+	 * the session has expired, which blocks, is handed to the async executor.
+	 */
+	private class AsyncQuery implements DalAsyncCallback<HttpResponseInfo> {
+		private final String command;
+		private final RequestOptions asyncOptions;
+		private final DalResponseFuture future;
+		private final RetryPolicy policy = retryPolicy;
+
+		private String urls;
+		private ResponseType rtype;
+		private Exchange<HttpResponseInfo> exchange;
+		private RequestOptions options;
+		private ScheduledFuture<?> deadlineTask;
+		private int attempt;
+		private long startMillis;
+		private boolean replayed;
+
+		AsyncQuery(String command, RequestOptions asyncOptions, DalResponseCallback callback) {
+			this.command = command;
+			this.asyncOptions = asyncOptions;
+			this.future = new DalResponseFuture(callback, asyncOptions.getCancellation());
+		}
+
+		Future<DalResponse> start() {
+			try {
+				rtype = responseTypeFor(asyncOptions);
+				urls = buildQueryUrl(command, rtype);
+				checkIfOkToPerform(urls.substring(baseUrl.length()));
+			}
+			catch (IOException | DalResponseException e) {
+				future.fail(e);
+				return future;
+			}
+			if (logIsInfoEnabled()) {
+				logInfo("performing async query: "+urls); //$NON-NLS-1$
+			}
+
+			exchange = createQueryExchange(urls, asyncOptions);
+			options = asyncOptions.withDefaults(defaultRequestOptions);
+			refreshSessionIfDue(exchange.session);
+			if (options.getTotalTimeoutMillis() > 0) {
+				exchange.deadline = System.currentTimeMillis() + options.getTotalTimeoutMillis();
+				deadlineTask = getTimerScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						exchange.deadlineExceeded = true;
+						exchange.cancel();
+					}
+				}, options.getTotalTimeoutMillis(), TimeUnit.MILLISECONDS);
+			}
+			asyncOptions.getCancellation().register(exchange);
+			send();
+			return future;
+		}
+
+		private void send() {
+			++attempt;
+			if (exchange.cancelled) {
+				finish(null, new InterruptedIOException("Request cancelled: "+urls)); //$NON-NLS-1$
+				return;
+			}
+			DalRequest request;
+			try {
+				request = exchange.createRequest();
+			}
+			catch (IOException e) {
+				finish(null, e);
+				return;
+			}
+			int socketTimeout = options.getSocketTimeoutMillis();
+			if (exchange.deadline > 0) {
+				long remaining = Math.max(1, exchange.deadline - System.currentTimeMillis());
+				socketTimeout = (int) (socketTimeout==0 ? remaining : Math.min(socketTimeout, remaining));
+			}
+			if (socketTimeout > 0 || options.getConnectTimeoutMillis() > 0) {
+				request.setTimeouts(options.getConnectTimeoutMillis(), socketTimeout);
+			}
+			if (acceptCompressedResponses) {
+				request.setHeader(DalEntityStream.HEADER_ACCEPT_ENCODING, DalEntityStream.ACCEPT_ENCODING);
+			}
+			exchange.currentRequest = request;
+			if (exchange.cancelled) {
+				// cancel() may have missed the new request
+				request.abort();
+			}
+			startMillis = System.currentTimeMillis();
+			lastRequestMillis = startMillis;
+			((DalAsyncHttpClient) exchange.session.getHttpClient()).executeAsync(request, exchange.createHandler(), this);
+		}
+
+		private boolean canRetry(long delay) {
+			return exchange.deadline <= 0 || System.currentTimeMillis() + delay < exchange.deadline;
+		}
+
+		private void sendAfter(long delay) {
+			if (delay <= 0) {
+				send();
+				return;
+			}
+			getTimerScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					send();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void completed(final HttpResponseInfo result) {
+			Long[] elapsed = new Long[] { System.currentTimeMillis() - startMillis };
+			int statusCode = result.httpStatusCode;
+			releaseReplica(exchange, elapsed, statusCode >= 500);
+			exchange.onResponse(exchange.currentRequest, result);
+			result.elapsedMillis = elapsed[0].longValue();
+
+			if (policy != null) {
+				if (policy.isRetryable(statusCode)) {
+					long delay = policy.computeDelayMillis(attempt);
+					if (canRetry(delay) && policy.acquireRetry(attempt)) {
+						logWarn("Attempt#"+attempt+" got HTTP code "+statusCode+" for "+urls); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						sendAfter(delay);
+						return;
+					}
+					policy.recordFailure();
+				}
+				else {
+					policy.recordCompletion(attempt);
+				}
+			}
+
+			if (! replayed && credentialsProvider != null && isSessionExpired(result) && ! exchange.cancelled) {
+				replayed = true;
+				// Logging in blocks so it is not done on the transport's thread
+				getAsyncExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						DalSession session = relogin(exchange.session);
+						if (session == null) {
+							finish(result, null);
+							return;
+						}
+						logInfo("Session expired, replaying "+urls); //$NON-NLS-1$
+						exchange.session = session;
+						send();
+					}
+				});
+				return;
+			}
+			finish(result, null);
+		}
+
+		@Override
+		public void failed(IOException error) {
+			releaseReplica(exchange, new Long[1], true);
+			if (policy != null && ! exchange.cancelled) {
+				long delay = policy.computeDelayMillis(attempt);
+				if (canRetry(delay) && policy.isRetryable(error) && exchange.canRetryAfter(error) && policy.acquireRetry(attempt)) {
+					logWarn("Attempt#"+attempt+" failed ("+error+") for "+urls); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					sendAfter(delay);
+					return;
+				}
+				policy.recordFailure();
+			}
+			finish(null, error);
+		}
+
+		private void finish(HttpResponseInfo result, IOException error) {
+			if (deadlineTask != null) {
+				deadlineTask.cancel(false);
+			}
+			asyncOptions.getCancellation().unregister(exchange);
+			if (error != null) {
+				future.fail(explainFailure(exchange, options, error));
+				return;
+			}
+			try {
+				future.complete(buildDalResponse(urls, result, rtype));
+			}
+			catch (DalResponseException | RuntimeException e) {
+				future.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Ensure that an async request has a DalCancellation so that cancelling
+	 * its Future aborts the HTTP request.
+	 */
+	static private RequestOptions withCancellation(RequestOptions options) {
+		if (options != null && options.getCancellation() != null) {
+			return options;
+		}
+		RequestOptions result = options==null ? new RequestOptions() : new RequestOptions(options);
+		return result.setCancellation(new DalCancellation());
+	}
+
+	@Override
+	public QueryBuilder prepareQuery(String command) {
+		return prepareGetQuery(command);
+	}
+
+	@Override
+	public QueryBuilder prepareGetQuery(String command) {
+		return new CommandBuilder(command, this);
+	}
+
+	private String buildQueryUrl(String command, ResponseType rtype) throws MalformedURLException {
+		String urls;
+		if (command.startsWith("http:") || command.startsWith("https:")) { //$NON-NLS-1$ //$NON-NLS-2$
+			// Hmmm. This is a hack to support the results of export commands et. al.
+			urls = command;
+		}
+		else {
+			StringBuilder sb = new StringBuilder(baseUrl);
+			sb.append(command);
+			if (! rtype.isXML()) {
+				URL url = new URL(sb.toString());
+				// User may already have appended parameters
+				sb.append((url.getQuery()==null) ? '?' : '&')
+					.append("ctype=").append(rtype.postValue); //$NON-NLS-1$
+			}
+			urls = sb.toString();
+		}
+		return urls;
+	}
+
+	private InfoExchange createGetExchange(final String urls) {
+		return createGetExchange(urls, null);
+	}
+
+	/**
+	 * @return an Exchange for a query which may be sent to a replica
+	 */
+	private InfoExchange createQueryExchange(final String urls, RequestOptions options) {
+		InfoExchange exchange = new InfoExchange(urls, true) {
+			@Override
+			DalRequest createRequest() {
+				return createQueryGet(this, urls);
+			}
+		};
+		exchange.withOptions(options);
+		return exchange;
+	}
+
+	private InfoExchange createGetExchange(final String urls, RequestOptions options) {
+		InfoExchange exchange = new InfoExchange(urls, true) {
+			@Override
+			DalRequest createRequest() {
+				return dalHttpFactory.createHttpGet(urls);
+			}
+		};
+		exchange.withOptions(options);
+		return exchange;
+	}
+
+	static private class HedgeOutcome {
+		final InfoExchange exchange;
+		final Long[] elapsedMillis = new Long[1];
+		/** Set by whichever of the hedge task and the caller gets there first */
+		final AtomicBoolean claimed = new AtomicBoolean();
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile HttpResponseInfo result;
+		volatile IOException error;
+
+		HedgeOutcome(InfoExchange exchange) {
+			this.exchange = exchange;
+		}
+	}
+
+	/**
+	 * Perform the GET on the calling thread and, if it takes longer than the HedgePolicy allows,
+	 * send an identical request from the async executor and use whichever response arrives first.
+	 * Only the hedge is queued on the executor so a caller which is itself an async task
+	 * never waits for work queued behind it.
+	 */
+	private HttpResponseInfo performHedged(final HedgePolicy hedge, final String urls, final RequestOptions options, Long[] elapsedMillis)
+	throws IOException
+	{
+		String template = DalUtil.commandTemplateOf(urls.substring(baseUrl.length()));
+		long startMillis = System.currentTimeMillis();
+
+		long hedgeDelay = hedge.getHedgeDelayMillis(template);
+		if (hedgeDelay < 0) {
+			try {
+				return perform(createQueryExchange(urls, options), elapsedMillis);
+			}
+			finally {
+				hedge.recordQuery(template, System.currentTimeMillis() - startMillis);
+			}
+		}
+
+		final InfoExchange primary = createQueryExchange(urls, options);
+		final HedgeOutcome secondary = new HedgeOutcome(createQueryExchange(urls, options));
+		final Runnable hedgeTask = new Runnable() {
+			@Override
+			public void run() {
+				if (! secondary.claimed.compareAndSet(false, true)) {
+					// The primary finished first
+					return;
+				}
+				try {
+					secondary.result = perform(secondary.exchange, secondary.elapsedMillis);
+					// Don't make the caller wait for the slower one
+					primary.cancel();
+				}
+				catch (IOException e) {
+					secondary.error = e;
+				}
+				catch (RuntimeException e) {
+					secondary.error = new IOException(e);
+				}
+				finally {
+					secondary.done.countDown();
+				}
+			}
+		};
+		ScheduledFuture<?> hedgeTimer = getTimerScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (secondary.claimed.get() || ! hedge.acquireHedge()) {
+					return;
+				}
+				if (logIsDebugEnabled()) {
+					logDebug("Hedging for "+urls); //$NON-NLS-1$
+				}
+				try {
+					getAsyncExecutor().execute(hedgeTask);
+				}
+				catch (RejectedExecutionException e) {
+					logWarn("Unable to hedge "+urls+": "+e); //$NON-NLS-1$ //$NON-NLS-2$
+				}
 			}
+		}, hedgeDelay, TimeUnit.MILLISECONDS);
 
-			if (autoSwitchGroupOnLogin) {
-				DalResponse listGroupResponse = performQuery(OP0_LIST_GROUP);
-				DalResponseRecord record = listGroupResponse.getFirstRecord("SystemGroup"); //$NON-NLS-1$
-				String groupId = record.rowdata.get("SystemGroupId"); //$NON-NLS-1$
+		IOException primaryError = null;
+		try {
+			try {
+				return perform(primary, elapsedMillis);
+			}
+			catch (IOException e) {
+				primaryError = e;
+			}
+			finally {
+				// The primary's own latency, whether it succeeded or not
+				hedge.recordQuery(template, System.currentTimeMillis() - startMillis);
+			}
 
-				String err = switchGroup(groupId);
-				if (err != null) {
-				    throw new DalLoginException(
-				            String.format("switchGroup(%s) failed: %s", groupId, err));
-				}
+			if (secondary.claimed.compareAndSet(false, true)) {
+				// The hedge never started
+				throw primaryError;
+			}
+			// The hedge is running so waiting for it cannot starve the executor
+			try {
+				secondary.done.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for "+urls); //$NON-NLS-1$
 			}
+			if (secondary.error != null) {
+				throw primaryError;
+			}
+			hedge.recordHedgeWin();
+			elapsedMillis[0] = secondary.elapsedMillis[0];
+			return secondary.result;
 		}
 		finally {
-			if (! isLoggedIn()) {
-				logWarn("Login failed for '"+username+"' on "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$
-				if (tmpClient!=null) {
-					try { tmpClient.close(); }
-					catch (IOException ignore) { }
-					tmpClient = null;
-				}
+			hedgeTimer.cancel(false);
+			// Prevent or abort the hedge unless it provided the result
+			if (secondary.claimed.compareAndSet(false, true) || secondary.result == null) {
+				secondary.exchange.cancel();
 			}
 		}
 	}
 
-	/**
-	 * Make sure that users of this code do not do a login or logout using
-	 * the performCommand() variants
-	 *
-	 * @param command
-	 * @throws DalResponseException if the command is a login or logout
-	 */
-	private void checkIfOkToPerform(String command) throws DalResponseException {
+	private DalResponse performQueryInternal(String command, boolean needToCheck, RequestOptions options)
+	throws IOException, DalResponseException {
 
-		// We don't want user's doing this directly.
-		if (command.startsWith(LOGIN_PREFIX)) {
-			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
-			throw new DalResponseException(command+" can't be performed (use client.login(un,pw))");
+		ResponseType rtype = responseTypeFor(options);
+		final String urls = buildQueryUrl(command, rtype);
+
+		if (needToCheck) {
+			checkIfOkToPerform(urls.substring(baseUrl.length()));
 		}
 
-		// We don't want user's doing this directly.
-		if (command.startsWith(OP0_LOGOUT)) {
-			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
-			throw new DalResponseException(command+" can't be performed (use client.logout())");
+		if (logIsInfoEnabled()) {
+			logInfo("performing query: "+urls); //$NON-NLS-1$
 		}
 
-		// We don't want user's doing this without going through switchGroup()
-		if (command.startsWith(SWITCH_GROUP_PREFIX)) {
-			logWarn("invalid attempt to perform '"+command+"'"); //$NON-NLS-1$ //$NON-NLS-2$
-			throw new DalResponseException("Please use DALClient.switchGroup(groupId) instead of '"+command+"'");
+		Long[] elapsedMillis = new Long[1];
+		HttpResponseInfo result;
+		HedgePolicy hedge = hedgePolicy;
+		if (hedge != null && needToCheck) {
+			result = performHedged(hedge, urls, options, elapsedMillis);
+		}
+		else {
+			// Switching group must go to the primary
+			InfoExchange exchange = needToCheck ? createQueryExchange(urls, options) : createGetExchange(urls, options);
+			result = perform(exchange, elapsedMillis);
+		}
+		result.elapsedMillis = elapsedMillis[0].longValue();
+		if (logIsDebugEnabled()) {
+			logDebug("Elapsed ms="+result.elapsedMillis+" for "+urls); //$NON-NLS-1$ //$NON-NLS-2$
 		}
-	}
 
-	@Override
-	public PostBuilder preparePostQuery(String command) {
-		return new PostBuilderImpl(command);
+		return buildDalResponse(urls, result, rtype);
 	}
 
 	@Override
-	public DalResponse performQuery(String command) throws IOException, DalResponseException {
-		return performQueryInternal(command, true);
+	public boolean visitQueryResults(String command, DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException {
+		return visitQueryResults(command, null, visitor, wantedTagNames);
 	}
 
 	@Override
-	public QueryBuilder prepareQuery(String command) {
-		return prepareGetQuery(command);
+	public boolean visitQueryResults(String command, RequestOptions options, DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException {
+
+		ResponseType rtype = responseTypeFor(options);
+		final String urls = buildQueryUrl(command, rtype);
+
+		checkIfOkToPerform(urls.substring(baseUrl.length()));
+
+		if (logIsInfoEnabled()) {
+			logInfo("streaming query: "+urls); //$NON-NLS-1$
+		}
+
+		StreamingResponseHandler handler = visitStreamedResults(urls, true, false, options, visitor, wantedTagNames);
+		if (handler.errorInfo!=null) {
+			// This will throw the appropriate DalResponseHttpException
+			buildDalResponse(urls, handler.errorInfo, rtype);
+		}
+		return handler.visitResult;
 	}
 
+	/**
+	 * How long to keep asking for the file produced by an EXPORT command
+	 * if the server says that it does not (yet) exist.
+	 */
+	static private final long EXPORT_FILE_WAIT_MILLIS = 30000;
+	static private final long EXPORT_FILE_POLL_MILLIS = 1000;
+
+	static private final int HTTP_NOT_FOUND = 404;
+
+	/**
+	 * Performs the EXPORT command and then streams the file through the same
+	 * parsers as <code>visitQueryResults()</code>, so memory use is bounded
+	 * by the size of a record rather than the size of the file.
+	 */
 	@Override
-	public QueryBuilder prepareGetQuery(String command) {
-		return new CommandBuilder(command, this);
-	}
+	public boolean visitExportResults(String command, Map<String,String> postParameters, RequestOptions options,
+			DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException
+	{
+		DalResponse response = performUpdate(command, postParameters, options);
+		String urls = DalUtil.getExportFileUrl(response);
+		if (urls == null) {
+			throw new DalResponseException("No "+DALClient.TAG_OUTPUT_FILE+" URL in the response to "+command); //$NON-NLS-1$
+		}
 
-	private DalResponse performQueryInternal(String command, boolean needToCheck)
-	throws IOException, DalResponseException {
+		if (logIsInfoEnabled()) {
+			logInfo("streaming export file: "+urls); //$NON-NLS-1$
+		}
 
-		String urls;
-		if (command.startsWith("http:")) { //$NON-NLS-1$
-			// Hmmm. This is a hack to support the results of export commands et. al.
-			urls = command;
+		long waitUntil = System.currentTimeMillis() + EXPORT_FILE_WAIT_MILLIS;
+		while (true) {
+			StreamingResponseHandler handler = visitStreamedResults(urls, false, true, options, visitor, wantedTagNames);
+			if (handler.errorInfo==null) {
+				return handler.visitResult;
+			}
+			if (handler.errorInfo.httpStatusCode != HTTP_NOT_FOUND
+					|| System.currentTimeMillis() + EXPORT_FILE_POLL_MILLIS > waitUntil
+					|| (options != null && options.getCancellation() != null && options.getCancellation().isCancelled()))
+			{
+				// This will throw the appropriate DalResponseHttpException
+				buildDalResponse(urls, handler.errorInfo);
+			}
+			logDebug("Waiting for export file: "+urls); //$NON-NLS-1$
+			try {
+				Thread.sleep(EXPORT_FILE_POLL_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for "+urls); //$NON-NLS-1$
+			}
 		}
-		else {
-			StringBuilder sb = new StringBuilder(baseUrl);
-			sb.append(command);
-			if (! responseType.isXML()) {
-				URL url = new URL(sb.toString());
-				// User may already have appended parameters
-				sb.append((url.getQuery()==null) ? '?' : '&')
-					.append("ctype=").append(responseType.postValue); //$NON-NLS-1$
+	}
+
+	/**
+	 * Request the URL and visit the records of the response as it arrives.
+	 * @param urls
+	 * @param query if true the request may be sent to a replica
+	 * @param csvHeadings if true the first line of CSV content provides the keys for the rowdata
+	 * @param options
+	 * @param visitor
+	 * @param wantedTagNames
+	 * @return the handler for the last attempt; its errorInfo is set for an HTTP error
+	 * @throws IOException
+	 * @throws DalResponseException if the response contains a DAL error or is not supported
+	 */
+	private StreamingResponseHandler visitStreamedResults(final String urls, final boolean query, final boolean csvHeadings,
+			RequestOptions options, DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException
+	{
+		final DalResponseRecordVisitor fvisitor = visitor;
+		final List<String> tagNames = wantedTagNames==null ? null : Arrays.asList(wantedTagNames);
+		final StreamingResponseHandler[] lastHandler = new StreamingResponseHandler[1];
+
+		Long[] elapsedMillis = new Long[1];
+		Boolean result = perform(new Exchange<Boolean>(urls, true) {
+			@Override
+			DalRequest createRequest() {
+				return query ? createQueryGet(this, urls) : dalHttpFactory.createHttpGet(urls);
 			}
-			urls = sb.toString();
+
+			@Override
+			DalResponseHandler<Boolean> createHandler() {
+				lastHandler[0] = new StreamingResponseHandler(urls, fvisitor, tagNames, csvHeadings);
+				return lastHandler[0];
+			}
+
+			@Override
+			int getStatusCode(Boolean r) {
+				return lastHandler[0].errorInfo==null ? 200 : lastHandler[0].errorInfo.httpStatusCode;
+			}
+
+			@Override
+			HttpResponseInfo getErrorInfo(Boolean r) {
+				return lastHandler[0].errorInfo;
+			}
+
+			@Override
+			boolean canRetryAfter(IOException error) {
+				// Once the visitor has seen records the request cannot be repeated
+				return lastHandler[0]==null || ! lastHandler[0].parsing;
+			}
+		}.withOptions(options), elapsedMillis);
+		StreamingResponseHandler handler = lastHandler[0];
+		if (logIsDebugEnabled()) {
+			logDebug("Elapsed ms="+elapsedMillis[0]+" for "+urls); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 
-		if (needToCheck) {
-			checkIfOkToPerform(urls.substring(baseUrl.length()));
+		if (handler.errorInfo!=null) {
+			handler.errorInfo.elapsedMillis = elapsedMillis[0].longValue();
+			return handler;
+		}
+		if (handler.error!=null) {
+			logWarn("Error response for '"+urls+"' is "+handler.error.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			throw handler.error;
+		}
+		handler.visitResult = result!=null && result.booleanValue();
+		return handler;
+	}
+
+	/**
+	 * Parses the response entity as it is received. Because DalResponseHandler
+	 * may only throw IOException any DalResponseException is retained for
+	 * the caller to throw, as is the HttpResponseInfo for an HTTP error.
+	 */
+	class StreamingResponseHandler implements DalResponseHandler<Boolean> {
+
+		private final String url;
+		private final DalResponseRecordVisitor visitor;
+		private final List<String> wantedTagNames;
+		private final boolean csvHeadings;
+
+		HttpResponseInfo errorInfo;
+		DalResponseException error;
+		boolean parsing;
+		boolean visitResult;
+
+		StreamingResponseHandler(String url, DalResponseRecordVisitor visitor, List<String> wantedTagNames, boolean csvHeadings) {
+			this.url = url;
+			this.visitor = visitor;
+			this.wantedTagNames = wantedTagNames;
+			this.csvHeadings = csvHeadings;
 		}
 
-		logInfo("performing query: "+urls); //$NON-NLS-1$
+		@Override
+		public Boolean handleResponse(DalCloseableHttpResponse response) throws IOException {
+			int statusCode = response.getStatusCode();
+			if (! DalUtil.isHttpStatusCodeOk(statusCode)) {
+				errorInfo = new HttpResponseInfo();
+				errorInfo.headers = response.getAllHeaders();
+				errorInfo.httpStatusCode = statusCode;
+				errorInfo.httpErrorReason = response.getReasonPhrase();
+				errorInfo.serverResponse = DalUtil.readEntityAsString(response, errorInfo);
+				return Boolean.FALSE;
+			}
 
-		DalRequest request = dalHttpFactory.createHttpGet(urls);
-		Long[] elapsedMillis = new Long[1];
-		HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsedMillis);
-		result.elapsedMillis = elapsedMillis[0].longValue();
-		logDebug("Elapsed ms="+result.elapsedMillis+" for "+urls); //$NON-NLS-1$ //$NON-NLS-2$
+			String contentType = response.getFirstHeaderValue("Content-Type"); //$NON-NLS-1$
+
+			InputStream input = DalEntityStream.open(response);
+			if (contentType==null || input==null) {
+				error = new DalResponseException("Unsupported response: no 'Content-Type' header");
+				return Boolean.FALSE;
+			}
+
+			boolean result = false;
+			parsing = true;
+			try {
+				if (contentTypeIsXML(contentType) || isGeneric(contentType, ".xml")) { //$NON-NLS-1$
+					result = DalStreamParser.visitXml(url, input, wantedTagNames, visitor, false);
+				}
+				else if (contentType.startsWith(MIME_APPLICATION_JSON) || isGeneric(contentType, ".json")) { //$NON-NLS-1$
+					Reader reader = new InputStreamReader(input, DalUtil.getCharset(contentType, "UTF-8")); //$NON-NLS-1$
+					result = DalStreamParser.visitJson(url, reader, wantedTagNames, visitor, false);
+				}
+				else if (contentType.startsWith(MIME_TEXT_X_COMMA_SEPARATED_VALUES)
+						|| contentType.startsWith(MIME_TEXT_CSV)
+						|| isGeneric(contentType, ".csv")) //$NON-NLS-1$
+				{
+					if (wantedTagNames==null || wantedTagNames.isEmpty() || wantedTagNames.contains(CsvDalResponse.TAGNAME_CSVDATA)) {
+						Reader reader = new InputStreamReader(input, DalUtil.getCharset(contentType, "ISO-8859-1")); //$NON-NLS-1$
+						result = DalStreamParser.visitCsv(url, reader, csvHeadings, visitor);
+					}
+				}
+				else {
+					error = new DalResponseException(
+					        "Unsupported response: Content-Type="
+					                + "'" + contentType + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+			catch (DalResponseException e) {
+				error = e;
+			}
+			return Boolean.valueOf(result);
+		}
 
-		return buildDalResponse(urls, result);
+		/**
+		 * Files such as those produced by EXPORT commands may be served with a
+		 * Content-Type that does not identify the format so use the extension.
+		 */
+		private boolean isGeneric(String contentType, String extension) {
+			if (! contentType.startsWith(MIME_TEXT_PLAIN) && ! contentType.startsWith(MIME_APPLICATION_OCTET_STREAM)) {
+				return false;
+			}
+			int q = url.indexOf('?');
+			return (q < 0 ? url : url.substring(0, q)).toLowerCase().endsWith(extension);
+		}
 	}
 
 	private DalResponse buildDalResponse(String url, HttpResponseInfo responseInfo) throws DalResponseException {
+		return buildDalResponse(url, responseInfo, responseType);
+	}
+
+	/**
+	 * @param url
+	 * @param responseInfo
+	 * @param rtype the ResponseType that was asked for, used to parse an error response
+	 * @return a DalResponse
+	 * @throws DalResponseException
+	 */
+	private DalResponse buildDalResponse(String url, HttpResponseInfo responseInfo, ResponseType rtype) throws DalResponseException {
 		if (responseInfo.httpErrorReason!=null) {
 			StringBuilder sb = new StringBuilder("HTTP code "); //$NON-NLS-1$
 			sb.append(responseInfo.httpStatusCode).append(": ").append(responseInfo.httpErrorReason); //$NON-NLS-1$
@@ -512,7 +2477,7 @@ public class DefaultDALClient implements DALClient {
 				dalErrorMessage = responseInfo.serverResponse;
 			}
 			else {
-				if (responseType.isXML()) {
+				if (rtype.isXML()) {
 					if (contentType!=null && ! contentTypeIsXML(contentType)) {
 						// TODO check if httpErrorReason=="Internal Server Error" in which case we may want to transform to something else?
 							System.err.println("Warning: response content type is '"+contentType+"' for XML");
@@ -614,7 +2579,9 @@ public class DefaultDALClient implements DALClient {
 			throw dre;
 		}
 
-		logInfo(dalResponse.getClass().getSimpleName()+" response rcvd for '"+url+"'"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (logIsInfoEnabled()) {
+			logInfo(dalResponse.getClass().getSimpleName()+" response rcvd for '"+url+"'"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 		if (dalResponse instanceof CsvDalResponse && (logIsDebugEnabled())) {
 			dalResponse.visitResults(new DalResponseRecordVisitor() {
 				@Override
@@ -631,31 +2598,314 @@ public class DefaultDALClient implements DALClient {
 			});
 		}
 
-		return dalResponse;
-	}
+		return dalResponse;
+	}
+
+	@Override
+	public String switchGroup(String groupId) throws IOException, DalResponseException {
+
+		DalSession before = currentSession.get();
+		DalResponse response = performQueryInternal(SWITCH_GROUP_PREFIX + groupId, false, null);
+
+		String err = response.getResponseErrorMessage();
+		if (err==null) {
+			DalResponseRecord record = response.getFirstRecord(DALClient.TAG_INFO);
+			if (! record.rowdata.isEmpty()) {
+				// If we got here we must be successful
+				// Note: am assuming the DAL server did the right thing here!
+				String groupName = record.rowdata.get(DALClient.ATTR_GROUP_NAME);
+				boolean inAdminGroup = "TRUE".equalsIgnoreCase(record.rowdata.get(DALClient.ATTR_GADMIN)); //$NON-NLS-1$
+				// Unless the session has since been logged out or replaced
+				DalSession session;
+				while ((session = currentSession.get()) != null && session.isSameLogin(before)) {
+					if (currentSession.compareAndSet(session, session.withGroup(groupId, groupName, inAdminGroup))) {
+						break;
+					}
+				}
+				logInfo("switchGroup("+groupId+"): groupName="+groupName+" inAdminGroup="+inAdminGroup); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		}
+		else {
+			logWarn("switchGroup("+groupId+") error: "+err); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		return err;
+	}
+
+	/** The status with which the server rejects a request whose session has expired */
+	static private final int HTTP_UNAUTHORIZED = 401;
+
+	/**
+	 * The DAL error messages which mean that the session has expired, as opposed
+	 * to the other reasons (such as permissions) for which it returns HTTP 401.
+	 */
+	static private final Pattern SESSION_EXPIRED_MESSAGE = Pattern.compile(
+			"login first|need to log ?in|not logged in|session (has )?(expired|timed out)", Pattern.CASE_INSENSITIVE); //$NON-NLS-1$
+
+	/**
+	 * @param info may be null
+	 * @return true if the response is the server's rejection of an expired session
+	 */
+	static private boolean isSessionExpired(HttpResponseInfo info) {
+		return info != null
+				&& info.httpStatusCode == HTTP_UNAUTHORIZED
+				&& info.serverResponse != null
+				&& SESSION_EXPIRED_MESSAGE.matcher(info.serverResponse).find();
+	}
+
+	/**
+	 * A replaced session is logged out after this long so that requests
+	 * which are still using it can complete.
+	 */
+	static private final long RETIRED_SESSION_LOGOUT_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * Replace the session with a new login in the same group.
+	 * Only one thread logs in; the others wait for it and use its session.
+	 * @param expired the session which the server rejected
+	 * @return the session to use instead or null if it could not be replaced
+	 */
+	private DalSession relogin(DalSession expired) {
+		DalCredentialsProvider provider = credentialsProvider;
+		if (provider == null || expired == null) {
+			return null;
+		}
+		reloginLock.lock();
+		try {
+			DalSession current = currentSession.get();
+			if (current == null) {
+				// Logged out meanwhile
+				return null;
+			}
+			if (! current.isSameLogin(expired)) {
+				// Another thread has already replaced it
+				return current;
+			}
+			PasswordAuthentication credentials = provider.getCredentials(baseUrl, current.getUserName());
+			if (credentials == null) {
+				return null;
+			}
+			DalSession session = createSession(credentials.getUserName(), new String(credentials.getPassword()));
+			try {
+				if (current.getGroupId() != null) {
+					session = switchGroup(session, current.getGroupId());
+				}
+			}
+			catch (IOException | DalException e) {
+				closeQuietly(session);
+				throw e;
+			}
+			if (! currentSession.compareAndSet(current, session)) {
+				// Logged out or switched group meanwhile
+				closeQuietly(session);
+				return null;
+			}
+			retire(current);
+			logInfo("Logged in again as "+session.getUserName()+" on "+baseUrl); //$NON-NLS-1$ //$NON-NLS-2$
+			return session;
+		}
+		catch (IOException | DalException e) {
+			logWarn("Login again failed for "+expired.getUserName()+" on "+baseUrl+": "+e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return null;
+		}
+		finally {
+			reloginLock.unlock();
+		}
+	}
+
+	/**
+	 * Start a background login if the session is older than <code>sessionRefreshMillis</code>.
+	 * @param session
+	 */
+	private void refreshSessionIfDue(final DalSession session) {
+		long refreshMillis = sessionRefreshMillis;
+		if (refreshMillis <= 0 || credentialsProvider == null
+				|| System.currentTimeMillis() - session.getLoginMillis() < refreshMillis
+				|| ! refreshPending.compareAndSet(false, true))
+		{
+			return;
+		}
+		try {
+			getAsyncExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						relogin(session);
+					}
+					finally {
+						refreshPending.set(false);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			refreshPending.set(false);
+			logWarn("Unable to refresh session: "+e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Switch a session which has not yet been installed.
+	 * @param session
+	 * @param groupId
+	 * @return a copy of the session for the group
+	 * @throws IOException
+	 * @throws DalException if the switch failed
+	 */
+	private DalSession switchGroup(DalSession session, String groupId) throws IOException, DalException {
+		String url = buildQueryUrl(SWITCH_GROUP_PREFIX + groupId, responseType);
+		Long[] elapsed = new Long[1];
+		HttpResponseInfo result = perform(createGetExchange(url).withSession(session).withoutReplay(), elapsed);
+		DalResponse response = buildDalResponse(url, result);
+
+		String err = response.getResponseErrorMessage();
+		if (err != null) {
+			throw new DalLoginException(String.format("switchGroup(%s) failed: %s", groupId, err)); //$NON-NLS-1$
+		}
+		DalResponseRecord record = response.getFirstRecord(DALClient.TAG_INFO);
+		String groupName = record.rowdata.get(DALClient.ATTR_GROUP_NAME);
+		boolean inAdminGroup = "TRUE".equalsIgnoreCase(record.rowdata.get(DALClient.ATTR_GADMIN)); //$NON-NLS-1$
+		return session.withGroup(groupId, groupName, inAdminGroup);
+	}
+
+	/**
+	 * Log out and close the session once the requests which are using it have had time
+	 * to complete. A session replaced by a proactive refresh is still live on the server;
+	 * for one which has expired the logout is simply rejected.
+	 * @param session
+	 */
+	private void retire(final DalSession session) {
+		getTimerScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				// The logout request blocks so it is not made on the timer thread
+				try {
+					getAsyncExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							logoutQuietly(session);
+						}
+					});
+				}
+				catch (RejectedExecutionException e) {
+					closeQuietly(session);
+				}
+			}
+		}, RETIRED_SESSION_LOGOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	static private void closeQuietly(DalSession session) {
+		try { session.getHttpClient().close(); }
+		catch (IOException ignore) { }
+	}
+
+	private class PreparedUpdateImpl implements PreparedUpdate {
+
+		private final String command;
+		private final List<String> parameterNames;
+		private final String paramOrder;
+
+		private volatile boolean retrySafe;
+
+		private volatile RequestOptions requestOptions;
+
+		PreparedUpdateImpl(String command, String[] names) {
+			this.command = command;
+			this.parameterNames = Collections.unmodifiableList(Arrays.asList(names.clone()));
+
+			StringBuilder sb = new StringBuilder();
+			for (String name : names) {
+				sb.append(name).append(',');
+			}
+			this.paramOrder = sb.toString();
+		}
+
+		@Override
+		public String getCommand() {
+			return command;
+		}
+
+		@Override
+		public List<String> getParameterNames() {
+			return parameterNames;
+		}
+
+		@Override
+		public String getParamOrder() {
+			return paramOrder;
+		}
+
+		@Override
+		public PreparedUpdate setRetrySafe(boolean b) {
+			this.retrySafe = b;
+			return this;
+		}
+
+		@Override
+		public PreparedUpdate setRequestOptions(RequestOptions options) {
+			this.requestOptions = options==null ? null : new RequestOptions(options).setCancellation(null);
+			return this;
+		}
+
+		@Override
+		public DalResponse execute(String ... values) throws IOException, DalResponseException {
+			return execute(requestOptions, values);
+		}
+
+		private void checkValueCount(String[] values) {
+			if (values.length != parameterNames.size()) {
+				throw new IllegalArgumentException("Expected " + parameterNames.size() //$NON-NLS-1$
+						+ " values for " + command + " but got " + values.length); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+
+		private HttpPostBuilder createBuilder(String url, String[] values, ResponseType rtype) {
+			checkValueCount(values);
+			HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, url, log)
+				.setResponseType(rtype)
+				.setParamOrder(paramOrder);
+			for (int i = 0; i < values.length; ++i) {
+				builder.addParameter(parameterNames.get(i), values[i]);
+			}
+			return builder;
+		}
 
-	@Override
-	public String switchGroup(String groupId) throws IOException, DalResponseException {
+		private DalResponse execute(RequestOptions options, String[] values) throws IOException, DalResponseException {
+
+			checkIfOkToPerform(command);
 
-		DalResponse response = performQueryInternal(SWITCH_GROUP_PREFIX + groupId, false);
+			String url = baseUrl + command;
+			ResponseType rtype = responseTypeFor(options);
 
-		String err = response.getResponseErrorMessage();
-		if (err==null) {
-			DalResponseRecord record = response.getFirstRecord(DALClient.TAG_INFO);
-			if (! record.rowdata.isEmpty()) {
-				// If we got here we must be successful
-				this.groupId = groupId;
-				// Note: am assuming the DAL server did the right thing here!
-				this.groupName = record.rowdata.get(DALClient.ATTR_GROUP_NAME);
-				this.inAdminGroup = "TRUE".equalsIgnoreCase(record.rowdata.get(DALClient.ATTR_GADMIN)); //$NON-NLS-1$
+			final HttpPostBuilder builder = createBuilder(url, values, rtype);
+
+			Long[] elapsed = new Long[1];
+			if (logIsDebugEnabled()) {
+				logDebug("PreparedUpdate.execute: "+url); //$NON-NLS-1$
 			}
-			logInfo("switchGroup("+groupId+"): groupName="+groupName+" inAdminGroup="+inAdminGroup); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-		}
-		else {
-			logWarn("switchGroup("+groupId+") error: "+err); //$NON-NLS-1$ //$NON-NLS-2$
+			HttpResponseInfo result = perform(new InfoExchange(url, retrySafe || isRetrySafe(options)) {
+				@Override
+				DalRequest createRequest() {
+					return builder.buildForUpdate(session.getWriteToken());
+				}
+			}.withOptions(options), elapsed);
+			result.elapsedMillis = elapsed[0].longValue();
+
+			return buildDalResponse(url, result, rtype);
 		}
 
-		return err;
+		@Override
+		public Future<DalResponse> executeAsync(DalResponseCallback callback, String ... values) {
+			final String[] fValues = values.clone();
+			checkValueCount(fValues);
+			final RequestOptions options = withCancellation(requestOptions);
+			return submitAsync(new Callable<DalResponse>() {
+				@Override
+				public DalResponse call() throws Exception {
+					return execute(options, fValues);
+				}
+			}, callback, options.getCancellation());
+		}
 	}
 
 	private class PostBuilderImpl implements UpdateBuilder {
@@ -688,6 +2938,10 @@ public class DefaultDALClient implements DALClient {
 
 		private List<Pair<String,String>> postParameters = new ArrayList<>();
 
+		private boolean retrySafe;
+
+		private RequestOptions requestOptions;
+
 		@Override
 		public PostBuilder visitPostParameters(Closure<Pair<String,String>> visitor) {
 			for (Pair<String,String> nvp : postParameters) {
@@ -717,35 +2971,48 @@ public class DefaultDALClient implements DALClient {
 
 		@Override
 		public DalResponse executeQuery() throws IOException, DalResponseException {
+			return executeQuery(requestOptions);
+		}
+
+		private DalResponse executeQuery(RequestOptions options) throws IOException, DalResponseException {
 
 			checkIfOkToPerform(command);
 
 			String url = baseUrl + command;
+			ResponseType rtype = responseTypeFor(options);
 
-			HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, url, log)
-				.setResponseType(responseType)
+			final HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, url, log)
+				.setResponseType(rtype)
 				.addParameters(postParameters);
 
-			DalRequest request = builder.build();
-
-			if (postParameters == null || postParameters.isEmpty()) {
-				logInfo("PostBuilderImpl.execute: NO parameters : "+url); //$NON-NLS-1$
-			}
-			else {
-				logInfo("PostBuilderImpl.execute: " + postParameters.size() + " parameters : "+url); //$NON-NLS-1$ //$NON-NLS-2$
-				if (logIsDebugEnabled()) {
-					for (Iterator<Pair<String,String>> iterator = postParameters.iterator(); iterator.hasNext(); ) {
-						Pair<String,String> nvp = iterator.next();
-						logDebug("  "+nvp.a+"="+nvp.b); //$NON-NLS-1$ //$NON-NLS-2$
+			if (logIsInfoEnabled()) {
+				if (postParameters == null || postParameters.isEmpty()) {
+					logInfo("PostBuilderImpl.execute: NO parameters : "+url); //$NON-NLS-1$
+				}
+				else {
+					logInfo("PostBuilderImpl.execute: " + postParameters.size() + " parameters : "+url); //$NON-NLS-1$ //$NON-NLS-2$
+					if (logIsDebugEnabled()) {
+						for (Iterator<Pair<String,String>> iterator = postParameters.iterator(); iterator.hasNext(); ) {
+							Pair<String,String> nvp = iterator.next();
+							logDebug("  "+nvp.a+"="+nvp.b); //$NON-NLS-1$ //$NON-NLS-2$
+						}
 					}
 				}
 			}
 			Long[] elapsed = new Long[1];
-			HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsed);
+			// This is a query so it is always safe to repeat
+			HttpResponseInfo result = perform(new InfoExchange(url, true) {
+				@Override
+				DalRequest createRequest() {
+					return builder.build();
+				}
+			}.withOptions(options), elapsed);
 			result.elapsedMillis = elapsed[0].longValue();
-			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+			if (logIsDebugEnabled()) {
+				logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+			}
 
-			return buildDalResponse(url, result);
+			return buildDalResponse(url, result, rtype);
 		}
 
 		@Override
@@ -755,46 +3022,105 @@ public class DefaultDALClient implements DALClient {
 
 		@Override
 		public DalResponse executeUpdate() throws IOException, DalResponseException {
+			return executeUpdate(requestOptions);
+		}
+
+		private DalResponse executeUpdate(RequestOptions options) throws IOException, DalResponseException {
 
 			checkIfOkToPerform(command);
 
 			String url = baseUrl + command;
+			ResponseType rtype = responseTypeFor(options);
 
-			HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, url, log)
-				.setResponseType(responseType)
+			final HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, url, log)
+				.setResponseType(rtype)
 				.addParameters(postParameters);
 
-			DalRequest request;
-
+			if (logIsInfoEnabled()) {
+				if (postParameters == null || postParameters.isEmpty()) {
+					logInfo("PostBuilderImpl.execute: NO parameters : "+url); //$NON-NLS-1$
+				}
+				else {
+					logInfo("PostBuilderImpl.execute: " + postParameters.size()  //$NON-NLS-1$
+					    + " parameters : "+url); //$NON-NLS-1$
+					if (logIsDebugEnabled()) {
+						for (Iterator<Pair<String,String>> iterator = postParameters.iterator(); iterator.hasNext(); ) {
+							Pair<String,String> nvp = iterator.next();
+							logDebug("  "+nvp.a+"="+nvp.b); //$NON-NLS-1$ //$NON-NLS-2$
+						}
+					}
+				}
+			}
+			// The checksum is computed once, not for every attempt
+			final String[] md5 = new String[1];
+			File spool = null;
 			if (upload!=null) {
-				request = builder.buildForUpload(writeToken, upload);
+				md5[0] = computeUploadMD5(upload);
 			}
 			else if (uploadStream!=null) {
-				request = builder.buildForUpload(writeToken, uploadStream);
-			}
-			else {
-				request = builder.buildForUpdate(writeToken);
+				spool = spoolUpload(uploadStream, md5);
 			}
+			final File uploadFile = upload!=null ? upload : spool;
 
-			if (postParameters == null || postParameters.isEmpty()) {
-				logInfo("PostBuilderImpl.execute: NO parameters : "+url); //$NON-NLS-1$
-			}
-			else {
-				logInfo("PostBuilderImpl.execute: " + postParameters.size()  //$NON-NLS-1$
-				    + " parameters : "+url); //$NON-NLS-1$
-				if (logIsDebugEnabled()) {
-					for (Iterator<Pair<String,String>> iterator = postParameters.iterator(); iterator.hasNext(); ) {
-						Pair<String,String> nvp = iterator.next();
-						logDebug("  "+nvp.a+"="+nvp.b); //$NON-NLS-1$ //$NON-NLS-2$
+			Long[] elapsed = new Long[1];
+			HttpResponseInfo result;
+			try {
+				result = perform(new InfoExchange(url, retrySafe || isRetrySafe(options)) {
+					@Override
+					DalRequest createRequest() throws IOException {
+						// Each attempt is signed afresh
+						if (uploadFile!=null) {
+							return builder.buildForUpload(session.getWriteToken(), uploadFile, md5[0]);
+						}
+						return builder.buildForUpdate(session.getWriteToken());
 					}
+				}.withOptions(options), elapsed);
+			}
+			finally {
+				if (spool!=null) {
+					spool.delete();
 				}
 			}
-			Long[] elapsed = new Long[1];
-			HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsed);
 			result.elapsedMillis = elapsed[0].longValue();
-			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+			if (logIsDebugEnabled()) {
+				logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+
+			return buildDalResponse(url, result, rtype);
+		}
+
+		@Override
+		public PostBuilder setRetrySafe(boolean b) {
+			this.retrySafe = b;
+			return this;
+		}
+
+		@Override
+		public PostBuilder setRequestOptions(RequestOptions options) {
+			this.requestOptions = options;
+			return this;
+		}
+
+		@Override
+		public Future<DalResponse> executeQueryAsync(DalResponseCallback callback) {
+			final RequestOptions options = withCancellation(requestOptions);
+			return submitAsync(new Callable<DalResponse>() {
+				@Override
+				public DalResponse call() throws Exception {
+					return executeQuery(options);
+				}
+			}, callback, options.getCancellation());
+		}
 
-			return buildDalResponse(url, result);
+		@Override
+		public Future<DalResponse> executeAsync(DalResponseCallback callback) {
+			final RequestOptions options = withCancellation(requestOptions);
+			return submitAsync(new Callable<DalResponse>() {
+				@Override
+				public DalResponse call() throws Exception {
+					return executeUpdate(options);
+				}
+			}, callback, options.getCancellation());
 		}
 
 		@Override
@@ -808,11 +3134,11 @@ public class DefaultDALClient implements DALClient {
 			String dalCommandUrl = baseUrl + command;
 
 			HttpPostBuilder builder = new HttpPostBuilder(dalHttpFactory, dalCommandUrl) // No logging here !
-				.setResponseType(responseType)
+				.setResponseType(responseTypeFor(requestOptions))
 				.addParameters(postParameters);
 
 			StringBuilder dataForSignature = new StringBuilder("Data for Signature:\n"); //$NON-NLS-1$
-			List<Pair<String,String>> pairs = builder.collectPairsForUpdate(writeToken, dataForSignature);
+			List<Pair<String,String>> pairs = builder.collectPairsForUpdate(getWriteToken(), dataForSignature);
 
 			ps.println("Pairs for Update: "+pairs.size()); //$NON-NLS-1$
 			int count = 0;
@@ -876,6 +3202,381 @@ public class DefaultDALClient implements DALClient {
 		return performUpdate(command, postParameters);
 	}
 
+	/**
+	 * The number of times a download is resumed after the RetryPolicy has given up.
+	 * Each resume must have made progress since the previous one.
+	 */
+	static private final int MAX_DOWNLOAD_RESUMES = 20;
+
+	/**
+	 * Files are not split into parts smaller than this.
+	 */
+	static private final long MIN_DOWNLOAD_PART_SIZE = 1024 * 1024;
+
+	/**
+	 * Download the content at the URL to the file. The content is written through a
+	 * FileChannel using a single 64KB buffer so the size of the file does not matter.
+	 * <p>
+	 * Each attempt is made under the RetryPolicy and, if an attempt fails after some
+	 * content has arrived, the download is resumed from the end of what has been
+	 * written using an HTTP Range header. The ETag or Last-Modified value of the first
+	 * response is sent with it as If-Range so, if the server ignores the Range header
+	 * or the content has changed, the download starts again from the beginning.
+	 * Compressed responses are not asked for so that the Range offsets refer to the file.
+	 * @param url either an absolute URL (e.g. from an EXPORT command) or a command relative to the base URL
+	 * @param file where the content is written
+	 * @param resume if true then keep the bytes already in the file and only ask for the rest
+	 * @param listener may be null
+	 * @param options may be null
+	 * @return a DownloadResult
+	 * @throws IOException
+	 * @throws DalResponseException if the server responds with an HTTP error
+	 * @throws IllegalStateException if not logged in
+	 */
+	@Override
+	public DownloadResult downloadToFile(String url, File file, boolean resume, DownloadListener listener, RequestOptions options)
+	throws IOException, DalResponseException
+	{
+		String urls = getDownloadUrl(url);
+		if (logIsInfoEnabled()) {
+			logInfo("downloading: "+urls+" to "+file.getPath()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		long startMillis = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			FileChannel channel = raf.getChannel();
+			if (! resume) {
+				channel.truncate(0);
+			}
+			long resumedFrom = channel.size();
+			FileDownloadHandler handler = new FileDownloadHandler(file, channel, 0, -1, resumedFrom, listener);
+
+			int requestCount = downloadRange(urls, handler, options);
+
+			long length = handler.getPosition();
+			// In case resume was asked for but the server sent all of it
+			channel.truncate(length);
+
+			DownloadResult result = new DownloadResult(urls, file, length, resumedFrom, requestCount - 1,
+					System.currentTimeMillis() - startMillis);
+			if (logIsDebugEnabled()) {
+				logDebug(result);
+			}
+			return result;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Download the content at the URL to the file using several concurrent
+	 * requests, each for a different byte range. This makes better use of a link
+	 * with a high latency than a single connection can.
+	 * <p>
+	 * The first request is for a single byte. If the server responds with 206
+	 * (Partial Content) the file is preallocated to the size given in the
+	 * Content-Range header and split into parts of at least 1MB which are
+	 * requested on the async executor and written to the file at their offsets.
+	 * If the server ignores the Range header it sends the whole file in response
+	 * to that first request so the download simply continues as a single stream.
+	 * <p>
+	 * Each part is resumed after a failure in the same way as <code>downloadToFile()</code>.
+	 * Every part must have the ETag or Last-Modified value of the first response,
+	 * otherwise the download fails because the content changed while it was in progress.
+	 * If a part cannot be completed the other parts are cancelled.
+	 * The parts share the session's connections so the connection pool and any
+	 * RequestScheduler still limit how many are in flight.
+	 * @param url either an absolute URL (e.g. from an EXPORT command) or a command relative to the base URL
+	 * @param file where the content is written
+	 * @param connections the maximum number of concurrent requests
+	 * @param listener may be null, otherwise it is called from several threads
+	 * @param options may be null
+	 * @return a DownloadResult
+	 * @throws IOException
+	 * @throws DalResponseException if the server responds with an HTTP error
+	 * @throws IllegalStateException if not logged in
+	 */
+	@Override
+	public DownloadResult downloadToFileInParallel(String url, File file, int connections,
+			DownloadListener listener, RequestOptions options)
+	throws IOException, DalResponseException
+	{
+		if (connections <= 1) {
+			return downloadToFile(url, file, false, listener, options);
+		}
+		final String urls = getDownloadUrl(url);
+		if (logIsInfoEnabled()) {
+			logInfo("downloading: "+urls+" to "+file.getPath()+" using up to "+connections+" connections"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		}
+
+		long startMillis = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+
+			FileDownloadHandler probe = new FileDownloadHandler(file, channel, 0, 1, 0, listener);
+			int requestCount = downloadRange(urls, probe, options);
+			// Each handler makes at least one request
+			int handlerCount = 1;
+
+			long total = probe.getTotalBytes();
+			int partCount = 1;
+			if (! probe.isPartial()) {
+				// The server sent the whole file
+				logDebug("Range requests not supported by "+urls); //$NON-NLS-1$
+			}
+			else if (total < 0 || total <= MIN_DOWNLOAD_PART_SIZE) {
+				if (total < 0 || probe.getPosition() < total) {
+					FileDownloadHandler rest = new FileDownloadHandler(file, channel, 0, -1, probe.getPosition(), listener);
+					rest.setValidator(probe.getValidator());
+					requestCount += downloadRange(urls, rest, options);
+					++handlerCount;
+					probe = rest;
+				}
+			}
+			else {
+				partCount = (int) Math.min(connections, (total + MIN_DOWNLOAD_PART_SIZE - 1) / MIN_DOWNLOAD_PART_SIZE);
+				raf.setLength(total);
+				requestCount += downloadParts(urls, file, channel, total, partCount, probe.getPosition(),
+						probe.getValidator(), listener, options);
+				handlerCount += partCount;
+			}
+
+			long length = partCount > 1 ? total : probe.getPosition();
+			DownloadResult result = new DownloadResult(urls, file, length, 0, requestCount - handlerCount,
+					System.currentTimeMillis() - startMillis, partCount);
+			if (logIsDebugEnabled()) {
+				logDebug(result);
+			}
+			return result;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Download the parts concurrently and wait for all of them to finish.
+	 * @return the number of requests made
+	 */
+	private int downloadParts(final String urls, File file, FileChannel channel, long total, int partCount,
+			long firstPosition, String validator, DownloadListener listener, RequestOptions options)
+	throws IOException, DalResponseException
+	{
+		final RequestOptions partOptions = withCancellation(options);
+		AtomicLong done = new AtomicLong(firstPosition);
+
+		List<FileDownloadHandler> handlers = new ArrayList<>(partCount);
+		for (int i = 0; i < partCount; ++i) {
+			long start = total * i / partCount;
+			long end = total * (i + 1) / partCount;
+			long position = i == 0 ? firstPosition : start;
+			FileDownloadHandler handler = new FileDownloadHandler(file, channel, start, end, position,
+					listener == null ? null : new PartProgress(listener, done, position, total));
+			handler.setAcceptWholeFile(false);
+			handler.setValidator(validator);
+			handlers.add(handler);
+		}
+
+		// The parts are taken from a shared queue by this thread and by up to
+		// partCount - 1 helpers on the async executor. Only the parts that have
+		// been taken are waited for, so a busy executor slows the download
+		// instead of blocking it.
+		final ConcurrentLinkedQueue<FileDownloadHandler> queue = new ConcurrentLinkedQueue<>(handlers);
+		final CountDownLatch partsDone = new CountDownLatch(partCount);
+		final AtomicInteger requestCount = new AtomicInteger();
+		final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				FileDownloadHandler handler;
+				while (null != (handler = queue.poll())) {
+					try {
+						if (firstFailure.get() == null) {
+							requestCount.addAndGet(downloadRange(urls, handler, partOptions));
+						}
+					}
+					catch (IOException | DalResponseException | RuntimeException | Error e) {
+						if (firstFailure.compareAndSet(null, e)) {
+							partOptions.getCancellation().cancel();
+						}
+					}
+					finally {
+						partsDone.countDown();
+					}
+				}
+			}
+		};
+
+		List<Future<?>> helpers = new ArrayList<>(partCount - 1);
+		try {
+			for (int i = 1; i < partCount; ++i) {
+				helpers.add(getAsyncExecutor().submit(worker));
+			}
+		}
+		catch (RejectedExecutionException e) {
+			// This thread does the rest
+		}
+
+		worker.run();
+
+		Throwable failure;
+		try {
+			partsDone.await();
+			failure = firstFailure.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			partOptions.getCancellation().cancel();
+			failure = firstFailure.get();
+			if (failure == null) {
+				failure = new InterruptedIOException("Interrupted while downloading "+urls); //$NON-NLS-1$
+			}
+		}
+		finally {
+			// Helpers which have not started have nothing left to do
+			for (Future<?> f : helpers) {
+				f.cancel(false);
+			}
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof DalResponseException) {
+			throw (DalResponseException) failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+		return requestCount.get();
+	}
+
+	/**
+	 * Adds the progress of one part of a parallel download to the total.
+	 */
+	static private class PartProgress implements DownloadListener {
+		private final DownloadListener listener;
+		private final AtomicLong done;
+		private final long totalBytes;
+		// Only used by the thread downloading the part
+		private long position;
+
+		PartProgress(DownloadListener listener, AtomicLong done, long position, long totalBytes) {
+			this.listener = listener;
+			this.done = done;
+			this.position = position;
+			this.totalBytes = totalBytes;
+		}
+
+		@Override
+		public void downloadProgress(File file, long bytesDone, long ignore) {
+			long n = done.addAndGet(bytesDone - position);
+			position = bytesDone;
+			listener.downloadProgress(file, n, totalBytes);
+		}
+	}
+
+	/**
+	 * @param url
+	 * @return the absolute URL
+	 * @throws DalResponseException if the url is for a command that may not be performed directly
+	 * @throws IllegalStateException if not logged in
+	 */
+	private String getDownloadUrl(String url) throws DalResponseException {
+		if (! isLoggedIn()) {
+			throw new IllegalStateException("Not logged in");
+		}
+		String urls = (url.startsWith("http:") || url.startsWith("https:")) ? url : baseUrl + url; //$NON-NLS-1$ //$NON-NLS-2$
+		if (urls.startsWith(baseUrl)) {
+			checkIfOkToPerform(urls.substring(baseUrl.length()));
+		}
+		return urls;
+	}
+
+	/**
+	 * Make the requests for the content wanted by the handler, resuming after failures.
+	 * @param urls
+	 * @param handler
+	 * @param options
+	 * @return the number of requests made
+	 * @throws IOException
+	 * @throws DalResponseException if the server responds with an HTTP error
+	 */
+	private int downloadRange(final String urls, final FileDownloadHandler handler, RequestOptions options)
+	throws IOException, DalResponseException
+	{
+		// Includes the resumes made by the RetryPolicy within each perform()
+		final int[] requestCount = new int[1];
+		int restartCount = 0;
+		Long[] elapsed = new Long[1];
+		while (true) {
+			long before = handler.getPosition();
+			Exchange<Long> exchange = new Exchange<Long>(urls, true) {
+				@Override
+				DalRequest createRequest() {
+					DalRequest request = dalHttpFactory.createHttpGet(urls);
+					++requestCount[0];
+					String range = handler.getRangeHeader();
+					if (range != null) {
+						request.setHeader(FileDownloadHandler.HEADER_RANGE, range);
+						String ifRange = handler.getIfRangeHeader();
+						if (ifRange != null) {
+							request.setHeader(FileDownloadHandler.HEADER_IF_RANGE, ifRange);
+						}
+					}
+					return request;
+				}
+
+				@Override
+				DalResponseHandler<Long> createHandler() {
+					return handler;
+				}
+
+				@Override
+				int getStatusCode(Long result) {
+					return handler.getStatusCode();
+				}
+
+				@Override
+				HttpResponseInfo getErrorInfo(Long result) {
+					return handler.errorInfo;
+				}
+
+				@Override
+				boolean acceptCompressed() {
+					return false;
+				}
+			};
+			try {
+				perform(exchange.withOptions(options), elapsed);
+				break;
+			}
+			catch (IOException e) {
+				if (exchange.cancelled || exchange.deadlineExceeded || handler.getPosition() <= before || ++restartCount > MAX_DOWNLOAD_RESUMES) {
+					throw e;
+				}
+				logWarn("Resuming download at "+handler.getPosition()+" after "+e+" for "+urls); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		}
+
+		if (handler.errorInfo != null) {
+			// This will throw the appropriate DalResponseHttpException
+			buildDalResponse(urls, handler.errorInfo);
+		}
+		return requestCount[0];
+	}
+
 	/**
 	 * Perform an UPDATE command using the Fluent programming style.
 	 * UPDATE commands are those like "add", "delete", etc.
@@ -895,6 +3596,11 @@ public class DefaultDALClient implements DALClient {
 		return new PostBuilderImpl(command);
 	}
 
+	@Override
+	public PreparedUpdate prepareRepeatedUpdate(String command, String ... parameterNames) {
+		return new PreparedUpdateImpl(command, parameterNames);
+	}
+
 	/**
 	 * Perform an UPDATE command with the provided parameters.
 	 * UPDATE commands are those like "add", "delete", etc.
@@ -914,30 +3620,61 @@ public class DefaultDALClient implements DALClient {
 	@Override
 	public DalResponse performUpdate(String command, Map<String,String> postParameters)
 	throws IOException, DalResponseException
+	{
+		return performUpdate(command, postParameters, null);
+	}
+
+	@Override
+	public DalResponse performUpdate(String command, Map<String,String> postParameters, RequestOptions options)
+	throws IOException, DalResponseException
 	{
 		checkIfOkToPerform(command);
 
 		String url = baseUrl + command;
 
-		HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(responseType);
+		ResponseType rtype = responseTypeFor(options);
+		HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(rtype);
 		if (postParameters!=null) {
 			for (Map.Entry<String, String> e: postParameters.entrySet()) {
 				postBuilder.addParameter(e.getKey(), e.getValue());
 			}
 		}
 
-		DalRequest request = postBuilder.buildForUpdate(writeToken);
+		final HttpPostBuilder fPostBuilder = postBuilder;
 
 		Long[] elapsed = new Long[1];
-		logInfo("performUpdate: "+url); //$NON-NLS-1$
-		HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsed);
+		if (logIsInfoEnabled()) {
+			logInfo("performUpdate: "+url); //$NON-NLS-1$
+		}
+		HttpResponseInfo result = perform(new InfoExchange(url, isRetrySafe(options)) {
+			@Override
+			DalRequest createRequest() {
+				return fPostBuilder.buildForUpdate(session.getWriteToken());
+			}
+		}.withOptions(options), elapsed);
 		result.elapsedMillis = elapsed[0].longValue();
-		logDebug("Elapsed ms=" + result.elapsedMillis + " for " + url); //$NON-NLS-1$ //$NON-NLS-2$
+		if (logIsDebugEnabled()) {
+			logDebug("Elapsed ms=" + result.elapsedMillis + " for " + url); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
-		return buildDalResponse(url, result);
+		return buildDalResponse(url, result, rtype);
 		//   returns "ReturnId/@Value
 	}
 
+	@Override
+	public Future<DalResponse> performUpdateAsync(final String command,
+			final Map<String,String> postParameters,
+			DalResponseCallback callback)
+	{
+		final RequestOptions asyncOptions = withCancellation(null);
+		return submitAsync(new Callable<DalResponse>() {
+			@Override
+			public DalResponse call() throws Exception {
+				return performUpdate(command, postParameters, asyncOptions);
+			}
+		}, callback, asyncOptions.getCancellation());
+	}
+
 	// File Upload commands
 
 	/**
@@ -996,20 +3733,33 @@ public class DefaultDALClient implements DALClient {
 
 		String url = baseUrl + command;
 
-		HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(responseType);
+		ResponseType rtype = responseTypeFor(null);
+		final HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(rtype);
 		for (Map.Entry<String, String> e: postParameters.entrySet()) {
 			postBuilder.addParameter(e.getKey(), e.getValue());
 		}
 
-		DalRequest request = postBuilder.buildForUpload(writeToken, upload);
+		// The checksum is computed once, not for every attempt
+		final String md5 = computeUploadMD5(upload);
+		final File uploadFile = upload;
 
-		logInfo("performUpload: "+url); //$NON-NLS-1$
+		if (logIsInfoEnabled()) {
+			logInfo("performUpload: "+url); //$NON-NLS-1$
+		}
 		Long[] elapsed = new Long[1];
-		HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsed);
+		HttpResponseInfo result = perform(new InfoExchange(url, false) {
+			@Override
+			DalRequest createRequest() throws IOException {
+				// Each attempt is signed afresh
+				return postBuilder.buildForUpload(session.getWriteToken(), uploadFile, md5);
+			}
+		}.withSession(requireSession()), elapsed);
 		result.elapsedMillis = elapsed[0].longValue();
-		logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+		if (logIsDebugEnabled()) {
+			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
-		return buildDalResponse(url, result);
+		return buildDalResponse(url, result, rtype);
 		// returns "ReturnIdFile/@xml"
 	}
 
@@ -1044,20 +3794,38 @@ public class DefaultDALClient implements DALClient {
 
 		String url = baseUrl + command;
 
-		HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(responseType);
+		ResponseType rtype = responseTypeFor(null);
+		final HttpPostBuilder postBuilder = new HttpPostBuilder(dalHttpFactory, url, log).setResponseType(rtype);
 		for (Map.Entry<String, String> e: postParameters.entrySet()) {
 			postBuilder.addParameter(e.getKey(), e.getValue());
 		}
 
-		DalRequest request = postBuilder.buildForUpload(writeToken, streamFactory);
+		final String[] md5 = new String[1];
+		final File spool = spoolUpload(streamFactory, md5);
 
-		logInfo("performUpload: "+url); //$NON-NLS-1$
+		if (logIsInfoEnabled()) {
+			logInfo("performUpload: "+url); //$NON-NLS-1$
+		}
 		Long[] elapsed = new Long[1];
-		HttpResponseInfo result = DalUtil.doHttp(httpClient, request, dalHttpFactory.createResponseHandler(), elapsed);
+		HttpResponseInfo result;
+		try {
+			result = perform(new InfoExchange(url, false) {
+				@Override
+				DalRequest createRequest() throws IOException {
+					// Each attempt is signed afresh
+					return postBuilder.buildForUpload(session.getWriteToken(), spool, md5[0]);
+				}
+			}.withSession(requireSession()), elapsed);
+		}
+		finally {
+			spool.delete();
+		}
 		result.elapsedMillis = elapsed[0].longValue();
-		logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+		if (logIsDebugEnabled()) {
+			logDebug("Elapsed ms="+result.elapsedMillis+" for "+url); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
-		return buildDalResponse(url, result);
+		return buildDalResponse(url, result, rtype);
 	}
 
 }
@@ -0,0 +1,41 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.File;
+
+/**
+ * Provide an implementation of this to be told how a download started by
+ * <code>DALClient.downloadToFile()</code> is progressing.
+ * <p>
+ * The method is called on the thread performing the download so
+ * implementations should not block for long periods.
+ * @author brian
+ * @since 5.2.0
+ */
+public interface DownloadListener {
+
+	/**
+	 * Called as the content is written to the file and once more when it is complete.
+	 * When the file is downloaded in parallel this may be called from several threads.
+	 * @param file
+	 * @param bytesDone the number of bytes in the file so far
+	 * @param totalBytes the size of the complete file or -1 if not known
+	 */
+	public void downloadProgress(File file, long bytesDone, long totalBytes);
+}
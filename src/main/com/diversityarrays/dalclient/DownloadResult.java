@@ -0,0 +1,112 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.File;
+
+/**
+ * Describes a completed download from <code>DALClient.downloadToFile()</code>.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DownloadResult {
+
+	private final String url;
+	private final File file;
+	private final long byteCount;
+	private final long resumedFrom;
+	private final int resumeCount;
+	private final long elapsedMillis;
+	private final int connectionCount;
+
+	public DownloadResult(String url, File file, long byteCount, long resumedFrom, int resumeCount, long elapsedMillis) {
+		this(url, file, byteCount, resumedFrom, resumeCount, elapsedMillis, 1);
+	}
+
+	public DownloadResult(String url, File file, long byteCount, long resumedFrom, int resumeCount, long elapsedMillis,
+			int connectionCount)
+	{
+		this.url = url;
+		this.file = file;
+		this.byteCount = byteCount;
+		this.resumedFrom = resumedFrom;
+		this.resumeCount = resumeCount;
+		this.elapsedMillis = elapsedMillis;
+		this.connectionCount = connectionCount;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the size of the downloaded file
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return the number of bytes already in the file when the download started
+	 */
+	public long getResumedFrom() {
+		return resumedFrom;
+	}
+
+	/**
+	 * @return how many times the transfer was interrupted and resumed
+	 */
+	public int getResumeCount() {
+		return resumeCount;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return the number of byte ranges fetched concurrently or 1 for a single stream
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * @return the rate at which the bytes of this download were received
+	 */
+	public double getBytesPerSecond() {
+		long received = byteCount - resumedFrom;
+		return elapsedMillis <= 0 ? received * 1000.0 : received * 1000.0 / elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "DownloadResult[" + url //$NON-NLS-1$
+				+ " -> " + file.getPath() //$NON-NLS-1$
+				+ ", bytes=" + byteCount //$NON-NLS-1$
+				+ ", resumedFrom=" + resumedFrom //$NON-NLS-1$
+				+ ", resumes=" + resumeCount //$NON-NLS-1$
+				+ ", elapsedMillis=" + elapsedMillis //$NON-NLS-1$
+				+ (connectionCount > 1 ? ", connections=" + connectionCount : "") //$NON-NLS-1$ //$NON-NLS-2$
+				+ "]"; //$NON-NLS-1$
+	}
+}
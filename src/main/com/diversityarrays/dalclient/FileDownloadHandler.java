@@ -0,0 +1,324 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalResponseHandler;
+
+/**
+ * Writes the response entity to a FileChannel at the current position
+ * through a single bounded buffer. The same handler is used for every
+ * attempt of a download so that each one can ask for the rest of the file
+ * using an HTTP Range header.
+ * <p>
+ * The strong ETag, or else the Last-Modified date, of the first response is
+ * sent as If-Range with each later request so that the parts of a file that
+ * changed on the server are never joined together.
+ * @author brian
+ * @since 5.2.0
+ */
+class FileDownloadHandler implements DalResponseHandler<Long> {
+
+	static final String HEADER_RANGE = "Range"; //$NON-NLS-1$
+	static final String HEADER_CONTENT_RANGE = "Content-Range"; //$NON-NLS-1$
+	static final String HEADER_CONTENT_LENGTH = "Content-Length"; //$NON-NLS-1$
+	static final String HEADER_IF_RANGE = "If-Range"; //$NON-NLS-1$
+	static final String HEADER_ETAG = "ETag"; //$NON-NLS-1$
+	static final String HEADER_LAST_MODIFIED = "Last-Modified"; //$NON-NLS-1$
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Progress is reported at most once per this many bytes */
+	static private final long PROGRESS_INTERVAL = 1024 * 1024;
+
+	static private final int HTTP_PARTIAL_CONTENT = 206;
+	static private final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final File file;
+	private final FileChannel channel;
+	private final long start;
+	private final DownloadListener listener;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** Becomes -1 if the server sends the whole file instead of the range */
+	private long end;
+	private boolean acceptWholeFile = true;
+	private boolean partial;
+
+	/** The ETag or Last-Modified value that identifies the version being downloaded */
+	private String validator;
+
+	// Only used by the thread performing the download
+	private long position;
+	private long totalBytes = -1;
+	private long lastReported = -1;
+
+	HttpResponseInfo errorInfo;
+
+	/**
+	 * @param file
+	 * @param channel where the content is written
+	 * @param start the offset of the first byte wanted
+	 * @param end the offset after the last byte wanted or -1 for the end of the file
+	 * @param position the offset of the first byte not yet in the file
+	 * @param listener may be null
+	 */
+	FileDownloadHandler(File file, FileChannel channel, long start, long end, long position, DownloadListener listener) {
+		this.file = file;
+		this.channel = channel;
+		this.start = start;
+		this.end = end;
+		this.position = position;
+		this.listener = listener;
+	}
+
+	long getPosition() {
+		return position;
+	}
+
+	long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return true if the last response was 206 Partial Content
+	 */
+	boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * A handler for one part of a file being downloaded in parallel must not
+	 * truncate the file when the server ignores the Range header.
+	 * @param b
+	 */
+	void setAcceptWholeFile(boolean b) {
+		acceptWholeFile = b;
+	}
+
+	/**
+	 * @return the ETag or Last-Modified value of the content received so far or null if none
+	 */
+	String getValidator() {
+		return validator;
+	}
+
+	/**
+	 * Only accept content with this validator, e.g. the one from the
+	 * request that found the size of a file being downloaded in parts.
+	 * @param v may be null
+	 */
+	void setValidator(String v) {
+		validator = v;
+	}
+
+	boolean isComplete() {
+		return end >= 0 ? position >= end : (totalBytes >= 0 && position >= totalBytes);
+	}
+
+	/**
+	 * @return the value for the Range header or null if the whole file is wanted
+	 */
+	String getRangeHeader() {
+		if (position == 0 && end < 0) {
+			return null;
+		}
+		return "bytes=" + position + "-" + (end < 0 ? "" : Long.toString(end - 1)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/**
+	 * @return the value for the If-Range header or null if there is no Range header
+	 * or nothing to compare with
+	 */
+	String getIfRangeHeader() {
+		return getRangeHeader() == null ? null : validator;
+	}
+
+	int getStatusCode() {
+		return errorInfo == null ? 200 : errorInfo.httpStatusCode;
+	}
+
+	@Override
+	public Long handleResponse(DalCloseableHttpResponse response) throws IOException {
+		errorInfo = null;
+		partial = false;
+		int statusCode = response.getStatusCode();
+
+		if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+			// Already have all of it?
+			long total = parseContentRangeTotal(response.getFirstHeaderValue(HEADER_CONTENT_RANGE));
+			if (total >= 0 && total == position && end < 0) {
+				totalBytes = total;
+				reportProgress(true);
+				return Long.valueOf(position);
+			}
+		}
+
+		if (! DalUtil.isHttpStatusCodeOk(statusCode)) {
+			errorInfo = new HttpResponseInfo();
+			errorInfo.headers = response.getAllHeaders();
+			errorInfo.httpStatusCode = statusCode;
+			errorInfo.httpErrorReason = response.getReasonPhrase();
+			errorInfo.serverResponse = DalUtil.readEntityAsString(response, errorInfo);
+			return null;
+		}
+
+		String received = validatorOf(response);
+		if (statusCode == HTTP_PARTIAL_CONTENT) {
+			if (validator != null && received != null && ! validator.equals(received)) {
+				// The server ignored If-Range
+				throw new IOException("Content changed during download of " + file.getPath()); //$NON-NLS-1$
+			}
+			String contentRange = response.getFirstHeaderValue(HEADER_CONTENT_RANGE);
+			long first = parseContentRangeStart(contentRange);
+			if (first != position) {
+				throw new IOException("Expected content from " + position //$NON-NLS-1$
+						+ " but got '" + contentRange + "' for " + file.getPath()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			totalBytes = parseContentRangeTotal(contentRange);
+			partial = true;
+			if (validator == null) {
+				validator = received;
+			}
+		}
+		else {
+			// The server sent all of it
+			if (start > 0 || ! acceptWholeFile) {
+				if (validator != null && getRangeHeader() != null) {
+					throw new IOException("Content changed during download of " + file.getPath()); //$NON-NLS-1$
+				}
+				throw new IOException("Server does not support ranges for " + file.getPath()); //$NON-NLS-1$
+			}
+			// A new version, if If-Range did not match, so start again
+			end = -1;
+			position = 0;
+			channel.truncate(0);
+			validator = received;
+			String contentLength = response.getFirstHeaderValue(HEADER_CONTENT_LENGTH);
+			totalBytes = -1;
+			if (contentLength != null) {
+				try {
+					totalBytes = Long.parseLong(contentLength.trim());
+				}
+				catch (NumberFormatException ignore) {
+				}
+			}
+		}
+
+		InputStream content = response.getEntityContent();
+		if (content != null) {
+			ReadableByteChannel source = Channels.newChannel(content);
+			try {
+				while (true) {
+					buffer.clear();
+					if (end >= 0 && end - position < buffer.capacity()) {
+						buffer.limit((int) (end - position));
+					}
+					if (buffer.remaining() == 0 || source.read(buffer) < 0) {
+						break;
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					reportProgress(false);
+				}
+			}
+			finally {
+				source.close();
+			}
+		}
+
+		long expected = end >= 0 ? end : totalBytes;
+		if (expected >= 0 && position < expected) {
+			throw new IOException("Connection closed after " + position + " of " + expected //$NON-NLS-1$ //$NON-NLS-2$
+					+ " bytes for " + file.getPath()); //$NON-NLS-1$
+		}
+		reportProgress(true);
+		return Long.valueOf(position);
+	}
+
+	private void reportProgress(boolean force) {
+		if (listener != null && (force || position - lastReported >= PROGRESS_INTERVAL)) {
+			lastReported = position;
+			listener.downloadProgress(file, position, totalBytes);
+		}
+	}
+
+	/**
+	 * A weak ETag may not be used with If-Range.
+	 * @return the strong ETag, else the Last-Modified value, else null
+	 */
+	static String validatorOf(DalCloseableHttpResponse response) {
+		String etag = response.getFirstHeaderValue(HEADER_ETAG);
+		if (etag != null && ! etag.startsWith("W/")) { //$NON-NLS-1$
+			return etag;
+		}
+		return response.getFirstHeaderValue(HEADER_LAST_MODIFIED);
+	}
+
+	/**
+	 * @param contentRange e.g. "bytes 100-199/1000"
+	 * @return the offset of the first byte or -1
+	 */
+	static long parseContentRangeStart(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int space = contentRange.indexOf(' ');
+		int dash = contentRange.indexOf('-', space + 1);
+		if (space < 0 || dash < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param contentRange e.g. "bytes 100-199/1000" or "bytes * /1000"
+	 * @return the size of the complete file or -1 if not known
+	 */
+	static long parseContentRangeTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		if (slash < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		}
+		catch (NumberFormatException e) {
+			// "*"
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls the hedging of queries by DefaultDALClient. When a query has not been
+ * answered within the chosen percentile of the recent response times for its command
+ * template, a second identical request is sent. Whichever response arrives first is
+ * used and the other request is aborted.
+ * <p>
+ * The extra load is limited by a budget: each query adds <code>budgetRatio</code>
+ * tokens (default 0.05, i.e. at most about 5% extra requests), up to <code>maxBudget</code>,
+ * and each hedge uses one token.
+ * <p>
+ * Only queries are hedged; update and upload commands never are.
+ * @author brian
+ * @since 5.2.0
+ */
+public class HedgePolicy {
+
+	static public final double DEFAULT_PERCENTILE = 95;
+	static public final int DEFAULT_MIN_SAMPLES = 20;
+	static public final long DEFAULT_MIN_DELAY_MILLIS = 10;
+	static public final double DEFAULT_BUDGET_RATIO = 0.05;
+	static public final double DEFAULT_MAX_BUDGET = 5;
+
+	private final LatencyTracker latencyTracker;
+
+	private double percentile = DEFAULT_PERCENTILE;
+	private int minSamples = DEFAULT_MIN_SAMPLES;
+	private long minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+
+	private double budgetRatio = DEFAULT_BUDGET_RATIO;
+	private double maxBudget = DEFAULT_MAX_BUDGET;
+	private double budget = 0;
+
+	private final AtomicLong queryCount = new AtomicLong();
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	private final AtomicLong budgetDeniedCount = new AtomicLong();
+
+	public HedgePolicy() {
+		this(new LatencyTracker());
+	}
+
+	public HedgePolicy(LatencyTracker latencyTracker) {
+		this.latencyTracker = latencyTracker;
+	}
+
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+
+	/**
+	 * @param percentile of the recent response times after which a hedge is sent
+	 * @return this HedgePolicy
+	 */
+	public HedgePolicy setPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be in (0, 100]: " + percentile); //$NON-NLS-1$
+		}
+		this.percentile = percentile;
+		return this;
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * @param n the number of response times needed for a command template before it is hedged
+	 * @return this HedgePolicy
+	 */
+	public HedgePolicy setMinSamples(int n) {
+		this.minSamples = Math.max(1, n);
+		return this;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+
+	public HedgePolicy setMinDelayMillis(long millis) {
+		this.minDelayMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getMinDelayMillis() {
+		return minDelayMillis;
+	}
+
+	/**
+	 * @param ratio the number of tokens added for each query
+	 * @param max the maximum number of tokens
+	 * @return this HedgePolicy
+	 */
+	synchronized public HedgePolicy setBudget(double ratio, double max) {
+		this.budgetRatio = Math.max(0, ratio);
+		this.maxBudget = Math.max(0, max);
+		this.budget = Math.min(budget, maxBudget);
+		return this;
+	}
+
+	synchronized public double getAvailableBudget() {
+		return budget;
+	}
+
+	/**
+	 * Return how long to wait for the first attempt before hedging.
+	 * @param template the command template
+	 * @return milliseconds or -1 if the template should not be hedged yet
+	 */
+	public long getHedgeDelayMillis(String template) {
+		long p = latencyTracker.getPercentile(template, percentile, minSamples);
+		return p < 0 ? -1 : Math.max(minDelayMillis, p);
+	}
+
+	void recordQuery(String template, long elapsedMillis) {
+		queryCount.incrementAndGet();
+		synchronized (this) {
+			budget = Math.min(maxBudget, budget + budgetRatio);
+		}
+		if (elapsedMillis >= 0) {
+			latencyTracker.record(template, elapsedMillis);
+		}
+	}
+
+	boolean acquireHedge() {
+		synchronized (this) {
+			if (budget < 1) {
+				budgetDeniedCount.incrementAndGet();
+				return false;
+			}
+			budget -= 1;
+		}
+		hedgeCount.incrementAndGet();
+		return true;
+	}
+
+	void recordHedgeWin() {
+		hedgeWinCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of queries performed under this policy
+	 */
+	public long getQueryCount() {
+		return queryCount.get();
+	}
+
+	/**
+	 * @return the number of hedge requests sent
+	 */
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	/**
+	 * @return the number of hedge requests whose response was used
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	/**
+	 * @return the number of hedges not sent because the budget was empty
+	 */
+	public long getBudgetDeniedCount() {
+		return budgetDeniedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HedgePolicy[percentile=" + percentile //$NON-NLS-1$
+				+ ", queries=" + getQueryCount() //$NON-NLS-1$
+				+ ", hedges=" + getHedgeCount() //$NON-NLS-1$
+				+ ", hedgeWins=" + getHedgeWinCount() //$NON-NLS-1$
+				+ ", budgetDenied=" + getBudgetDeniedCount() //$NON-NLS-1$
+				+ ", budget=" + getAvailableBudget() //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -18,8 +18,8 @@
 package com.diversityarrays.dalclient;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -57,6 +57,7 @@ public class HttpPostBuilder {
 	private ResponseType responseType = ResponseType.XML;
 	private List<Pair<String,String>> collectedPairs = new ArrayList<>();
 	private Charset charset = ISO_8859_1;
+	private String paramOrder;
 	private final Log log;
 
 	public HttpPostBuilder(DalHttpFactory dalHttpFactory, String dalCommandUrl) {
@@ -80,6 +81,51 @@ public class HttpPostBuilder {
 		return this;
 	}
 
+	/**
+	 * Use this value for <code>param_order</code> instead of building it from the
+	 * parameter names. The caller must add the parameters in this order.
+	 * @param paramOrder the comma-terminated parameter names
+	 * @return this HttpPostBuilder
+	 */
+	HttpPostBuilder setParamOrder(String paramOrder) {
+		this.paramOrder = paramOrder;
+		return this;
+	}
+
+	/**
+	 * Return the value for <code>param_order</code>.
+	 * @return the comma-terminated names of the parameters
+	 * @since 5.2.0
+	 */
+	public String getParamOrder() {
+		if (paramOrder != null) {
+			return paramOrder;
+		}
+		StringBuilder namesInOrder = new StringBuilder();
+		for (Pair<String,String> pair : collectedPairs) {
+			namesInOrder.append(pair.a).append(',');
+		}
+		return namesInOrder.toString();
+	}
+
+	/**
+	 * Concatenate the data covered by the signature; only needed for debugging
+	 * as RequestSigner computes the signature without building this String.
+	 */
+	private String getDataForSignature(String rand_num, String md5) {
+		StringBuilder dataForSignature = new StringBuilder(dalCommandUrl);
+		dataForSignature.append(rand_num);
+		for (Pair<String,String> pair : collectedPairs) {
+			if (pair.b != null) {
+				dataForSignature.append(pair.b);
+			}
+		}
+		if (md5 != null) {
+			dataForSignature.append(md5);
+		}
+		return dataForSignature.toString();
+	}
+
 	/**
 	 * Set the ResponseType to be used by DAL in responding to this operation.
 	 * @param responseType
@@ -123,11 +169,14 @@ public class HttpPostBuilder {
 
 		// Only need to add the ctype parameter if not XML because XML
 		// is the DAL server's default response format.
+		List<Pair<String,String>> forPost = collectedPairs;
 		if (! responseType.isXML()) {
-			collectedPairs.add(new Pair<>("ctype", responseType.postValue)); //$NON-NLS-1$
+			// Copy so that build() may be called more than once
+			forPost = new ArrayList<>(collectedPairs);
+			forPost.add(new Pair<>("ctype", responseType.postValue)); //$NON-NLS-1$
 		}
 
-		DalRequest result = dalHttpFactory.createHttpPost(dalCommandUrl, collectedPairs, UTF_8);
+		DalRequest result = dalHttpFactory.createHttpPost(dalCommandUrl, forPost, UTF_8);
 
 		return result;
 	}
@@ -151,34 +200,21 @@ public class HttpPostBuilder {
 	 * @return a List of Pair&lt;String,String&gt;
 	 */
 	public List<Pair<String,String>> collectPairsForUpdate(String writeKey, StringBuilder returnDataForSignature) {
-		String rand_num = DalUtil.createRandomNumberString();
-
-		StringBuilder dataForSignature = new StringBuilder(dalCommandUrl);
-		StringBuilder namesInOrder = new StringBuilder();
+		String rand_num = RequestSigner.createRandomNumberString();
 
-		dataForSignature.append(rand_num);
-		for (Pair<String,String> pair : collectedPairs) {
-			String value = pair.b;
-			if (value==null) {
-				// When last tested, null values are not handled correctly so make them "empty"
-				// (for a start, the signature string gets befuddled with 'null')
-				value = ""; //$NON-NLS-1$
-			}
-			dataForSignature.append(value);
-			namesInOrder.append(pair.a).append(',');
-		}
-
-		String forSignature = dataForSignature.toString();
+		// When last tested, null values are not handled correctly so they are signed as "empty"
+		// (for a start, the signature string gets befuddled with 'null')
+		String signature = RequestSigner.sign(writeKey, dalCommandUrl, rand_num, collectedPairs, null);
 		if (returnDataForSignature!=null) {
-			returnDataForSignature.append(forSignature);
+			returnDataForSignature.append(getDataForSignature(rand_num, null));
 		}
-		String signature = DalUtil.computeHmacSHA1(writeKey, forSignature);
 
-		List<Pair<String,String>> forPost = new ArrayList<>(collectedPairs);
+		List<Pair<String,String>> forPost = new ArrayList<>(collectedPairs.size() + 5);
+		forPost.addAll(collectedPairs);
 
 		forPost.add(new Pair<>("rand_num", rand_num)); //$NON-NLS-1$
 		forPost.add(new Pair<>("url", dalCommandUrl)); //$NON-NLS-1$
-		forPost.add(new Pair<>("param_order", namesInOrder.toString())); //$NON-NLS-1$
+		forPost.add(new Pair<>("param_order", getParamOrder())); //$NON-NLS-1$
 		forPost.add(new Pair<>("signature", signature)); //$NON-NLS-1$
 
 		if (! responseType.isXML()) {
@@ -206,27 +242,39 @@ public class HttpPostBuilder {
 	public DalRequest buildForUpload(String writeKey, File fileForUpload)
 	throws FileNotFoundException
 	{
-		String rand_num = DalUtil.createRandomNumberString();
-
-		StringBuilder dataForSignature = new StringBuilder(dalCommandUrl);
-		dataForSignature.append(rand_num);
-
-		String md5 = DalUtil.computeMD5checksum(new FileInputStream(fileForUpload));
-
-
-		StringBuilder namesInOrderBuilder = new StringBuilder();
-		for (Pair<String,String> pair : collectedPairs) {
-			dataForSignature.append(pair.b);
-			namesInOrderBuilder.append(pair.a).append(',');
+		if (! fileForUpload.isFile()) {
+			throw new FileNotFoundException(fileForUpload.getPath());
+		}
+		String md5;
+		try {
+			md5 = DalUtil.computeMD5checksum(fileForUpload);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		dataForSignature.append(md5);
+		return buildForUpload(writeKey, fileForUpload, md5);
+	}
 
-		String namesInOrder = namesInOrderBuilder.toString();
-		String signature = DalUtil.computeHmacSHA1(writeKey, dataForSignature.toString());
+	/**
+	 * Create an HttpPost instance for uploading a file whose MD5 checksum
+	 * is already known (for example from a ChecksumCache).
+	 * @param writeKey
+	 * @param fileForUpload
+	 * @param md5 the MD5 checksum of the file as hexadecimal characters
+	 * @return a DalRequest instance
+	 * @since 5.2.0
+	 */
+	public DalRequest buildForUpload(String writeKey, File fileForUpload, String md5)
+	{
+		String rand_num = RequestSigner.createRandomNumberString();
+
+		String namesInOrder = getParamOrder();
+		String signature = RequestSigner.sign(writeKey, dalCommandUrl, rand_num, collectedPairs, md5);
 
 		if (log!=null && log.isDebugEnabled()) {
 			log.debug(this.getClass().getName() + ".buildForUpload("+writeKey+" , File=" + fileForUpload.getPath() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-			log.debug("  dataForSignature="+dataForSignature); //$NON-NLS-1$
+			log.debug("  dataForSignature="+getDataForSignature(rand_num, md5)); //$NON-NLS-1$
 			log.debug("  param_order="+namesInOrder); //$NON-NLS-1$
 			log.debug("  signature="+signature); //$NON-NLS-1$
 			log.debug("  fileSize="+fileForUpload.length()); //$NON-NLS-1$
@@ -239,32 +287,26 @@ public class HttpPostBuilder {
 	/**
 	 * Create an HttpPost instance for uploading an InputStream using the other supplied
 	 * parameters, ResponseType etc.
+	 * <p>
+	 * Note that <code>factory.create()</code> is called twice: once to compute the
+	 * checksum and again to send the content. DefaultDALClient instead uses
+	 * <code>DalUtil.spoolAndComputeMD5checksum()</code> so that the content is
+	 * only produced once.
 	 * @param writeKey
 	 * @param factory Factory&lt;InputStream&gt;
 	 * @return an DalRequest instance
 	 */
 	public DalRequest buildForUpload(String writeKey, Factory<InputStream> factory)
 	{
-		String rand_num = DalUtil.createRandomNumberString();
+		String rand_num = RequestSigner.createRandomNumberString();
 		String md5 = DalUtil.computeMD5checksum(factory.create());
 
-		StringBuilder dataForSignature = new StringBuilder(dalCommandUrl);
-		dataForSignature.append(rand_num);
-
-
-		StringBuilder namesInOrderBuilder = new StringBuilder();
-		for (Pair<String,String> pair : collectedPairs) {
-			dataForSignature.append(pair.b);
-			namesInOrderBuilder.append(pair.a).append(',');
-		}
-		dataForSignature.append(md5);
-		String namesInOrder = namesInOrderBuilder.toString();
-
-		String signature = DalUtil.computeHmacSHA1(writeKey, dataForSignature.toString());
+		String namesInOrder = getParamOrder();
+		String signature = RequestSigner.sign(writeKey, dalCommandUrl, rand_num, collectedPairs, md5);
 
 		if (log!=null && log.isDebugEnabled()) {
 			log.debug(this.getClass().getName() + ".buildForUpload("+writeKey+" , InputStream )"); //$NON-NLS-1$ //$NON-NLS-2$
-			log.debug("  dataForSignature="+dataForSignature); //$NON-NLS-1$
+			log.debug("  dataForSignature="+getDataForSignature(rand_num, md5)); //$NON-NLS-1$
 			log.debug("  param_order="+namesInOrder); //$NON-NLS-1$
 			log.debug("  signature="+signature); //$NON-NLS-1$
 		}
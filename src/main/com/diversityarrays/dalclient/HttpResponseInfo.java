@@ -45,4 +45,32 @@ public class HttpResponseInfo {
 	 * The number of milliseconds it took for the server to respond.
 	 */
 	public long elapsedMillis; // number of milliseconds the request took
+	/**
+	 * The number of bytes of the response entity received from the server.
+	 * This is less than <code>uncompressedByteCount</code> if the server
+	 * compressed the response.
+	 * @since 5.2.0
+	 */
+	public long compressedByteCount;
+	/**
+	 * The number of bytes of the response entity after decompression.
+	 * @since 5.2.0
+	 */
+	public long uncompressedByteCount;
+	/**
+	 * The number of bytes of the file sent by an upload command.
+	 * @since 5.2.0
+	 */
+	public long uploadByteCount;
+	/**
+	 * The rate at which the file of an upload command was sent or -1 if not known.
+	 * @since 5.2.0
+	 */
+	public double uploadBytesPerSecond = -1;
+	/**
+	 * True if the response did not fit in the client's MemoryBudget as it arrived
+	 * and was diverted to a temporary file before being read.
+	 * @since 5.2.0
+	 */
+	public boolean spilled;
 }
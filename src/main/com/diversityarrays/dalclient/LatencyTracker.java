@@ -0,0 +1,124 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the most recent response times for each DAL command template
+ * (see <code>DalUtil.commandTemplateOf()</code>) so that percentiles of
+ * the current latency can be estimated.
+ * @author brian
+ * @since 5.2.0
+ */
+public class LatencyTracker {
+
+	static public final int DEFAULT_WINDOW_SIZE = 128;
+
+	static private class Window {
+		private final long[] samples;
+		private int count;
+		private int next;
+
+		Window(int size) {
+			samples = new long[size];
+		}
+
+		synchronized void add(long millis) {
+			samples[next] = millis;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				++count;
+			}
+		}
+
+		synchronized long[] snapshot() {
+			return Arrays.copyOf(samples, count);
+		}
+	}
+
+	private final int windowSize;
+	private final ConcurrentMap<String,Window> windowByTemplate = new ConcurrentHashMap<>();
+
+	public LatencyTracker() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize the number of recent samples kept for each command template
+	 */
+	public LatencyTracker(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize must be >= 1: " + windowSize); //$NON-NLS-1$
+		}
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Record the response time for a command.
+	 * @param template the command template
+	 * @param millis
+	 */
+	public void record(String template, long millis) {
+		Window w = windowByTemplate.get(template);
+		if (w == null) {
+			Window tmp = new Window(windowSize);
+			w = windowByTemplate.putIfAbsent(template, tmp);
+			if (w == null) {
+				w = tmp;
+			}
+		}
+		w.add(millis);
+	}
+
+	/**
+	 * @param template
+	 * @return the number of samples currently held for the template
+	 */
+	public int getSampleCount(String template) {
+		Window w = windowByTemplate.get(template);
+		return w == null ? 0 : w.snapshot().length;
+	}
+
+	/**
+	 * Return the estimated percentile of the recent response times for the template.
+	 * @param template
+	 * @param percentile in the range (0, 100]
+	 * @param minSamples the minimum number of samples required for an estimate
+	 * @return the latency in milliseconds or -1 if there are too few samples
+	 */
+	public long getPercentile(String template, double percentile, int minSamples) {
+		Window w = windowByTemplate.get(template);
+		if (w == null) {
+			return -1;
+		}
+		long[] values = w.snapshot();
+		if (values.length == 0 || values.length < minSamples) {
+			return -1;
+		}
+		Arrays.sort(values);
+		int index = (int) Math.ceil(percentile / 100.0 * values.length) - 1;
+		return values[Math.max(0, Math.min(values.length - 1, index))];
+	}
+
+	public void clear() {
+		windowByTemplate.clear();
+	}
+}
@@ -20,6 +20,80 @@ package com.diversityarrays.dalclient;
 /**
  * Versions:
  * <dl>
+ * <dt>5.2.0</dt>
+ * <dd>
+ * <ul>
+ *   <li>Add <code>DalConnectionPool</code> so that the clients created by a
+ *   <code>DalHttpFactoryImpl</code> can share keep-alive connections. Add the
+ *   <code>DefaultDALClient(baseUrl, dalHttpFactory)</code> constructor.</li>
+ *   <li>Add <code>performQueryAsync</code>, <code>performUpdateAsync</code> and the
+ *   <code>executeAsync</code> methods of QueryBuilder and PostBuilder.
+ *   <b>Incompatible change:</b> these are new abstract methods of the DALClient, QueryBuilder and
+ *   PostBuilder interfaces so classes outside this library which implement them must add them.
+ *   With a transport which implements <code>DalAsyncHttpClient</code> (JdkDalHttpFactory)
+ *   <code>performQueryAsync</code> keeps no thread waiting; otherwise requests run on a bounded pool
+ *   (<code>DefaultDALClient.ASYNC_THREADS_PROPERTY</code>).</li>
+ *   <li>Add <code>com.diversityarrays.dalclient.httpjdk.JdkDalHttpFactory</code> which
+ *   uses <code>java.net.http</code> (Java 11+) and negotiates HTTP/2.</li>
+ *   <li>Add <code>DALClient.visitQueryResults</code> and <code>QueryBuilder.visitResults</code>
+ *   which parse the response while it is being received (see <code>DalStreamParser</code>).</li>
+ *   <li>Request gzip/deflate compressed responses and decode them while reading.
+ *   HttpResponseInfo now has <code>compressedByteCount</code> and <code>uncompressedByteCount</code>.</li>
+ *   <li>Add <code>RetryPolicy</code> (exponential backoff with full jitter and a retry budget),
+ *   <code>PostBuilder.setRetrySafe()</code> and <code>RequestOptions.setRetrySafe()</code>.
+ *   Requests are only retried once <code>DefaultDALClient.setRetryPolicy()</code> has been called.</li>
+ *   <li>Add <code>HedgePolicy</code> to hedge slow queries, <code>LatencyTracker</code>,
+ *   <code>DalUtil.commandTemplateOf()</code> and <code>DalRequest.abort()</code>.</li>
+ *   <li>Add <code>ConcurrencyLimiter</code>, an AIMD limit on the requests in flight to each DAL server.</li>
+ *   <li>Logins share <code>DalUtil.getSharedTrustingSSLContext()</code> so TLS sessions are resumed.
+ *   Add <code>setSSLContext</code>, <code>setPrewarmConnections</code> and <code>setKeepWarmIntervalMillis</code>
+ *   to DefaultDALClient.</li>
+ *   <li>Add <code>RequestOptions</code> (connect, socket and total timeouts) and <code>DalCancellation</code>
+ *   for per-request deadlines and cancellation; cancelling an async Future now aborts its HTTP request.</li>
+ *   <li>Add <code>ReplicaSelector</code> to route GET queries across read replicas by latency
+ *   (EWMA or power-of-two-choices) with background health checks; see <code>DefaultDALClient.setReplicaSelector()</code>.</li>
+ *   <li>Add <code>RequestScheduler</code> with <code>RequestPriority</code> classes, per-class concurrency limits
+ *   and optional shortest-expected-job-first ordering; set the priority with <code>RequestOptions.setPriority()</code>.</li>
+ *   <li>File uploads are sent from memory-mapped regions of the file (<code>DalFileUpload</code>);
+ *   HttpResponseInfo now has <code>uploadByteCount</code> and <code>uploadBytesPerSecond</code>.</li>
+ *   <li>Upload checksums are computed in a single bulk pass and only once per upload, not once per attempt.
+ *   Stream uploads are spooled to a temporary file while the checksum is computed.
+ *   <code>DefaultDALClient.setChecksumCache()</code> uses a ChecksumCache to avoid re-reading unchanged files.</li>
+ *   <li>New RequestSigner keeps a per-thread Mac for the current write token and a shared SecureRandom,
+ *   and signs requests without concatenating the signed data.
+ *   <code>DALClient.prepareRepeatedUpdate()</code> returns a PreparedUpdate with a fixed <code>param_order</code>.</li>
+ *   <li>Fewer allocations per request: <code>Pair</code> builds its name lazily, responses convert their headers
+ *   at most once and offer <code>getFirstHeaderValue()</code>, cookies are only copied when asked for
+ *   and log messages are only built when they will be logged.</li>
+ *   <li><code>DefaultDALClient.setMemoryBudget()</code> limits the response bytes held in memory while in flight.
+ *   New requests wait while the MemoryBudget is exhausted and responses that do not fit are spilled
+ *   to a temporary file; responses larger than <code>maxResponseBytes</code> (by default half of the budget,
+ *   since a response is held both as bytes and as a String) are refused with a
+ *   DalMemoryBudgetException. The budget reports its current and peak usage.</li>
+ *   <li>Virtual thread mode (<code>DefaultDALClient.VIRTUAL_THREADS_PROPERTY</code>, Java 21+): async requests
+ *   run on virtual threads and the java.net.http implementation is the default.
+ *   <code>DefaultDALClient.createVirtualThreadExecutor()</code> is available for <code>setAsyncExecutor()</code>.</li>
+ *   <li><code>DALClient.downloadToFile()</code> streams a URL (e.g. from an EXPORT command) to a file
+ *   through a FileChannel, reporting progress to a DownloadListener and resuming with an HTTP Range
+ *   request when the connection fails part way through.</li>
+ *   <li><code>DALClient.downloadToFileInParallel()</code> fetches a large file as several concurrent byte
+ *   ranges written into a preallocated file, falling back to a single stream when the server
+ *   does not support Range requests.</li>
+ *   <li><code>DALClient.visitExportResults()</code> performs an EXPORT command and stream-parses the
+ *   <code>OutputFile</code> it produces as XML, JSON or CSV while it downloads, waiting for the file
+ *   if it is not yet available.</li>
+ *   <li><code>DefaultDALClient</code> may be shared by many threads: the login state is an immutable
+ *   <code>DalSession</code> replaced atomically by login, switchGroup and logout, and
+ *   <code>RequestOptions.setResponseType()</code> chooses XML or JSON per request.</li>
+ *   <li><code>DalSessionPool</code> leases several logged-in sessions to worker threads,
+ *   validating them on borrow and replacing expired ones in the background.</li>
+ *   <li>With a <code>DalCredentialsProvider</code> a request which finds its session expired
+ *   logs in again (once for all concurrent callers), switches group and is replayed;
+ *   <code>setSessionRefreshMillis()</code> logs in again in the background before expiry.</li>
+ *   <li><code>DalGroupSessionCache</code> keeps a session per group (least recently used evicted)
+ *   so requests for different groups run in parallel without <code>switchGroup()</code>.</li>
+ * </ul>
+ * </dd>
  * <dt>5.1.0</dt>
  * <dd>
  * <ul>
@@ -0,0 +1,344 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of bytes of response content held in memory while
+ * responses are being received, so that many concurrent large queries
+ * cannot exhaust the heap.
+ * <ul>
+ * <li>A new request waits until some of the budget is free before it is sent.</li>
+ * <li>Each block of a response is counted twice against the budget as it is received,
+ * once for its bytes and once for the String that will be made from them.
+ * If the budget is exhausted the response is diverted to a temporary spill file
+ * instead so that the connection is never stalled and no reader waits on another.</li>
+ * <li>A spilled response is then read back into memory once there is room for both
+ * its bytes and the String made from them.</li>
+ * <li>A response larger than <code>maxResponseBytes</code> fails at once with a
+ * DalMemoryBudgetException. Since both paths count a response twice this is at most
+ * half of the budget, so whether a response fits does not depend on the load.</li>
+ * </ul>
+ * Bytes are released when the response has been converted to its String, so the
+ * budget covers responses in flight rather than the DalResponses kept by the caller.
+ * Use <code>visitQueryResults()</code> to process very large responses without
+ * holding them in memory at all.
+ * <p>
+ * Set the budget using <code>DefaultDALClient.setMemoryBudget()</code>; one budget
+ * may be shared by several clients.
+ * @author brian
+ * @since 5.2.0
+ */
+public class MemoryBudget {
+
+	static public final long DEFAULT_MAX_WAIT_MILLIS = 60000;
+
+	private final String name;
+	private final long maxBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition spaceAvailable = lock.newCondition();
+
+	// All guarded by lock
+	private long maxResponseBytes;
+	private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+	private long usedBytes;
+	private long peakBytes;
+	private int waiting;
+
+	private final AtomicLong spillCount = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param name used in messages
+	 * @param maxBytes the number of bytes of response content that may be held at once
+	 */
+	public MemoryBudget(String name, long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be > 0: " + maxBytes); //$NON-NLS-1$
+		}
+		this.name = name;
+		this.maxBytes = maxBytes;
+		this.maxResponseBytes = Math.max(1, maxBytes / 2);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Responses larger than this are refused. The default, and the largest
+	 * allowed, is half of the budget because a response is held both as bytes
+	 * and as the String made from them.
+	 * @param bytes
+	 * @return this MemoryBudget
+	 */
+	public MemoryBudget setMaxResponseBytes(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be > 0: " + bytes); //$NON-NLS-1$
+		}
+		if (bytes > Math.max(1, maxBytes / 2)) {
+			throw new IllegalArgumentException("bytes must be <= half of maxBytes (" //$NON-NLS-1$
+					+ maxBytes + "): " + bytes); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			this.maxResponseBytes = bytes;
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public long getMaxResponseBytes() {
+		lock.lock();
+		try {
+			return maxResponseBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param millis how long to wait for space before failing; zero to fail fast
+	 * @return this MemoryBudget
+	 */
+	public MemoryBudget setMaxWaitMillis(long millis) {
+		lock.lock();
+		try {
+			this.maxWaitMillis = Math.max(0, millis);
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Wait until the budget is not exhausted before sending a request.
+	 * @param deadline the time by which the request must complete or zero if none
+	 * @throws DalMemoryBudgetException if no space became free in time
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void awaitAdmission(long deadline) throws DalMemoryBudgetException, InterruptedIOException {
+		lock.lock();
+		try {
+			awaitSpace(1, deadline);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reserve <code>bytes</code> if that does not exceed the budget.
+	 * Every successful call must be followed by a call to <code>release()</code>.
+	 * @param bytes
+	 * @return false if the budget does not have room
+	 */
+	public boolean tryReserve(long bytes) {
+		lock.lock();
+		try {
+			if (usedBytes + bytes > maxBytes) {
+				return false;
+			}
+			add(bytes);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until there is room for <code>bytes</code> and reserve them.
+	 * The caller must not already hold any of the budget.
+	 * Every successful call must be followed by a call to <code>release()</code>.
+	 * @param bytes
+	 * @param deadline the time by which the request must complete or zero if none
+	 * @throws DalMemoryBudgetException if <code>bytes</code> is more than the whole budget
+	 * 		or no space became free in time
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void reserve(long bytes, long deadline) throws DalMemoryBudgetException, InterruptedIOException {
+		if (bytes > maxBytes) {
+			rejectedCount.incrementAndGet();
+			throw new DalMemoryBudgetException(
+					"Memory budget for " + name + " is only " + maxBytes + " bytes: " + bytes + " requested", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+					maxBytes);
+		}
+		lock.lock();
+		try {
+			awaitSpace(bytes, deadline);
+			add(bytes);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Caller must hold lock
+	private void awaitSpace(long bytes, long deadline) throws DalMemoryBudgetException, InterruptedIOException {
+		long waitMillis = maxWaitMillis;
+		if (deadline > 0) {
+			waitMillis = Math.min(waitMillis, deadline - System.currentTimeMillis());
+		}
+		long remainingNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		++waiting;
+		try {
+			while (usedBytes + bytes > maxBytes) {
+				if (remainingNanos <= 0) {
+					rejectedCount.incrementAndGet();
+					throw new DalMemoryBudgetException(
+							"Memory budget exhausted for " + name + ": " + usedBytes + " of " + maxBytes + " bytes in use", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+							maxBytes);
+				}
+				remainingNanos = spaceAvailable.awaitNanos(remainingNanos);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + name); //$NON-NLS-1$
+		}
+		finally {
+			--waiting;
+		}
+	}
+
+	// Caller must hold lock
+	private void add(long bytes) {
+		usedBytes += bytes;
+		if (usedBytes > peakBytes) {
+			peakBytes = usedBytes;
+		}
+	}
+
+	/**
+	 * Return bytes obtained by <code>tryReserve()</code> or <code>reserve()</code>.
+	 * @param bytes
+	 */
+	public void release(long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			usedBytes -= bytes;
+			spaceAvailable.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record that a response was refused because it is larger than <code>maxResponseBytes</code>.
+	 */
+	void recordRejected() {
+		rejectedCount.incrementAndGet();
+	}
+
+	/**
+	 * Record that a response was diverted to a spill file.
+	 * @param bytes the size of the response
+	 */
+	void recordSpill(long bytes) {
+		spillCount.incrementAndGet();
+		spilledBytes.addAndGet(bytes);
+	}
+
+	public long getUsedBytes() {
+		lock.lock();
+		try {
+			return usedBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the largest number of bytes in use at once since creation or <code>resetPeakBytes()</code>
+	 */
+	public long getPeakBytes() {
+		lock.lock();
+		try {
+			return peakBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void resetPeakBytes() {
+		lock.lock();
+		try {
+			peakBytes = usedBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting() {
+		lock.lock();
+		try {
+			return waiting;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSpillCount() {
+		return spillCount.get();
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryBudget[" + name //$NON-NLS-1$
+				+ ", max=" + maxBytes //$NON-NLS-1$
+				+ ", used=" + getUsedBytes() //$NON-NLS-1$
+				+ ", peak=" + getPeakBytes() //$NON-NLS-1$
+				+ ", waiting=" + getWaiting() //$NON-NLS-1$
+				+ ", spills=" + getSpillCount() //$NON-NLS-1$
+				+ ", spilledBytes=" + getSpilledBytes() //$NON-NLS-1$
+				+ ", rejected=" + getRejectedCount() //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
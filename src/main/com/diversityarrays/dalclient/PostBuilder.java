@@ -20,6 +20,7 @@ package com.diversityarrays.dalclient;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections15.Closure;
 
@@ -63,6 +64,41 @@ public interface PostBuilder {
 	 * @throws DalResponseException
 	 */
 	DalResponse executeUpdate() throws IOException, DalResponseException;
+
+	/**
+	 * Declare whether the update command may safely be performed more than once.
+	 * If true then, when the request fails with a transient error, the client's
+	 * RetryPolicy may repeat it with a new <code>rand_num</code> and signature.
+	 * The default is false. <code>executeQuery()</code> is always eligible for retry.
+	 * @param b
+	 * @return this PostBuilder
+	 * @since 5.2.0
+	 */
+	PostBuilder setRetrySafe(boolean b);
+
+	/**
+	 * Set the timeouts and cancellation handle used when the command is executed.
+	 * @param options may be null
+	 * @return this PostBuilder
+	 * @since 5.2.0
+	 */
+	PostBuilder setRequestOptions(RequestOptions options);
+
+	/**
+	 * Perform a DAL query using POST without blocking the calling thread.
+	 * @param callback may be null
+	 * @return a Future for the DalResponse
+	 * @since 5.2.0
+	 */
+	Future<DalResponse> executeQueryAsync(DalResponseCallback callback);
+
+	/**
+	 * Perform a DAL update command using POST without blocking the calling thread.
+	 * @param callback may be null
+	 * @return a Future for the DalResponse
+	 * @since 5.2.0
+	 */
+	Future<DalResponse> executeAsync(DalResponseCallback callback);
 	
 	// For debugging
 	PostBuilder printOn(PrintStream ps);
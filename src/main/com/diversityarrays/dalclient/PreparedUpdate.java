@@ -0,0 +1,78 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * An UPDATE command which is performed repeatedly with the same parameter names.
+ * The <code>param_order</code> is built once and each execution only supplies
+ * the parameter values, in the same order as the names.
+ * Obtain one from <code>DALClient.prepareRepeatedUpdate(...)</code>; it may be
+ * used by several threads at once.
+ * @author brian
+ * @since 5.2.0
+ */
+public interface PreparedUpdate {
+
+	String getCommand();
+
+	List<String> getParameterNames();
+
+	/**
+	 * @return the value sent as <code>param_order</code>
+	 */
+	String getParamOrder();
+
+	/**
+	 * Declare whether the command may safely be performed more than once.
+	 * See <code>PostBuilder.setRetrySafe()</code>.
+	 * @param b
+	 * @return this PreparedUpdate
+	 */
+	PreparedUpdate setRetrySafe(boolean b);
+
+	/**
+	 * Set the timeouts used for each execution.
+	 * Any cancellation handle in the options is ignored.
+	 * @param options may be null
+	 * @return this PreparedUpdate
+	 */
+	PreparedUpdate setRequestOptions(RequestOptions options);
+
+	/**
+	 * Perform the command with these parameter values.
+	 * @param values one for each of the parameter names
+	 * @return DalResponse
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws IllegalArgumentException if the number of values is wrong
+	 */
+	DalResponse execute(String ... values) throws IOException, DalResponseException;
+
+	/**
+	 * Perform the command with these parameter values without blocking the calling thread.
+	 * @param callback may be null
+	 * @param values one for each of the parameter names
+	 * @return a Future for the DalResponse
+	 * @throws IllegalArgumentException if the number of values is wrong
+	 */
+	Future<DalResponse> executeAsync(DalResponseCallback callback, String ... values);
+}
@@ -19,6 +19,7 @@ package com.diversityarrays.dalclient;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 public interface QueryBuilder {
 
@@ -92,4 +93,37 @@ public interface QueryBuilder {
 	 */
 	public DalResponse execute() throws IOException, DalResponseException, DalMissingParameterException;
 
+	/**
+	 * Set the timeouts and cancellation handle used when the query is executed.
+	 * @param options may be null
+	 * @return this QueryBuilder
+	 * @since 5.2.0
+	 */
+	public QueryBuilder setRequestOptions(RequestOptions options);
+
+	/**
+	 * Execute the query using the originally supplied DAL client without blocking
+	 * the calling thread.
+	 * @param callback may be null
+	 * @return a Future for the response from DAL
+	 * @throws DalMissingParameterException
+	 * @since 5.2.0
+	 */
+	public Future<DalResponse> executeAsync(DalResponseCallback callback) throws DalMissingParameterException;
+
+	/**
+	 * Execute the query using the originally supplied DAL client and visit
+	 * the result records while the response is being received.
+	 * @param visitor
+	 * @param wantedTagNames
+	 * @return true unless the visitor ever returned false
+	 * @throws IOException
+	 * @throws DalResponseException
+	 * @throws DalMissingParameterException
+	 * @since 5.2.0
+	 * @see DALClient#visitQueryResults(String, DalResponseRecordVisitor, String...)
+	 */
+	public boolean visitResults(DalResponseRecordVisitor visitor, String ... wantedTagNames)
+	throws IOException, DalResponseException, DalMissingParameterException;
+
 }
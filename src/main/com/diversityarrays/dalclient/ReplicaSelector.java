@@ -0,0 +1,350 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses which of a number of DAL servers (typically read replicas of the primary)
+ * receives each query sent by DefaultDALClient (see <code>setReplicaSelector()</code>).
+ * <p>
+ * Each replica has an exponentially weighted moving average (EWMA) of its response
+ * times; its score is that average multiplied by one more than its number of requests
+ * in flight. The Strategy decides how the score is used:
+ * <ul>
+ * <li><b>LEAST_LATENCY</b> always chooses the replica with the lowest score.</li>
+ * <li><b>POWER_OF_TWO_CHOICES</b> chooses the better of two replicas picked at random,
+ * which avoids all clients stampeding to the same replica.</li>
+ * </ul>
+ * A replica which fails <code>maxConsecutiveFailures</code> requests (or a health check)
+ * is not chosen again until a health check succeeds or <code>quarantineMillis</code> has passed.
+ * If no replica is available the query is sent to the primary.
+ * <p>
+ * Only queries are routed to replicas; login, logout, switch group and all
+ * update commands are always sent to the primary.
+ * @author brian
+ * @since 5.2.0
+ */
+public class ReplicaSelector {
+
+	public enum Strategy {
+		LEAST_LATENCY,
+		POWER_OF_TWO_CHOICES
+	}
+
+	static public final double DEFAULT_EWMA_WEIGHT = 0.3;
+	static public final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 2;
+	static public final long DEFAULT_QUARANTINE_MILLIS = 30000;
+	static public final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 10000;
+
+	/**
+	 * The state kept for each replica.
+	 */
+	static class Replica {
+		final String baseUrl;
+		final String host;
+
+		private double ewmaMillis = -1;
+		private int consecutiveFailures;
+		private long quarantinedUntil;
+
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicLong requestCount = new AtomicLong();
+		final AtomicLong failureCount = new AtomicLong();
+
+		Replica(String baseUrl) {
+			this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+			try {
+				this.host = new URL(this.baseUrl).getHost();
+			}
+			catch (MalformedURLException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		synchronized double getScore() {
+			// An unmeasured replica is tried first so that it gets measured
+			return ewmaMillis < 0 ? 0 : ewmaMillis * (inFlight.get() + 1);
+		}
+
+		synchronized boolean isAvailable(long now) {
+			return quarantinedUntil <= now;
+		}
+
+		synchronized void recordLatency(long millis, double weight) {
+			ewmaMillis = ewmaMillis < 0 ? millis : (weight * millis) + ((1 - weight) * ewmaMillis);
+		}
+	}
+
+	private final Strategy strategy;
+	private final List<Replica> replicas;
+	private final Random random = new Random();
+
+	private double ewmaWeight = DEFAULT_EWMA_WEIGHT;
+	private int maxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+	private long quarantineMillis = DEFAULT_QUARANTINE_MILLIS;
+	private long healthCheckIntervalMillis = DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS;
+
+	private final AtomicLong primaryFallbackCount = new AtomicLong();
+
+	/**
+	 * @param strategy
+	 * @param replicaBaseUrls the servers which may receive queries; include the
+	 * primary's base URL if it should receive its share
+	 */
+	public ReplicaSelector(Strategy strategy, List<String> replicaBaseUrls) {
+		if (replicaBaseUrls.isEmpty()) {
+			throw new IllegalArgumentException("No replica base URLs"); //$NON-NLS-1$
+		}
+		this.strategy = strategy;
+		List<Replica> list = new ArrayList<>(replicaBaseUrls.size());
+		for (String url : replicaBaseUrls) {
+			list.add(new Replica(url));
+		}
+		this.replicas = Collections.unmodifiableList(list);
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public List<String> getReplicaBaseUrls() {
+		List<String> result = new ArrayList<>(replicas.size());
+		for (Replica r : replicas) {
+			result.add(r.baseUrl);
+		}
+		return result;
+	}
+
+	List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * @param weight given to each new response time in (0, 1]
+	 * @return this ReplicaSelector
+	 */
+	public ReplicaSelector setEwmaWeight(double weight) {
+		if (weight <= 0 || weight > 1) {
+			throw new IllegalArgumentException("weight must be in (0, 1]: " + weight); //$NON-NLS-1$
+		}
+		this.ewmaWeight = weight;
+		return this;
+	}
+
+	public double getEwmaWeight() {
+		return ewmaWeight;
+	}
+
+	public ReplicaSelector setMaxConsecutiveFailures(int n) {
+		this.maxConsecutiveFailures = Math.max(1, n);
+		return this;
+	}
+
+	public int getMaxConsecutiveFailures() {
+		return maxConsecutiveFailures;
+	}
+
+	public ReplicaSelector setQuarantineMillis(long millis) {
+		this.quarantineMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getQuarantineMillis() {
+		return quarantineMillis;
+	}
+
+	/**
+	 * While the DefaultDALClient is logged in, each replica is sent a
+	 * <code>get/version</code> request at this interval.
+	 * @param millis zero to disable the health checks
+	 * @return this ReplicaSelector
+	 */
+	public ReplicaSelector setHealthCheckIntervalMillis(long millis) {
+		this.healthCheckIntervalMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getHealthCheckIntervalMillis() {
+		return healthCheckIntervalMillis;
+	}
+
+	/**
+	 * Choose the replica for the next query and count it as in flight;
+	 * the caller must then call <code>release()</code>.
+	 * @return null if no replica is available
+	 */
+	Replica acquire() {
+		long now = System.currentTimeMillis();
+		List<Replica> available = new ArrayList<>(replicas.size());
+		for (Replica r : replicas) {
+			if (r.isAvailable(now)) {
+				available.add(r);
+			}
+		}
+		Replica result = null;
+		if (available.size() == 1) {
+			result = available.get(0);
+		}
+		else if (! available.isEmpty()) {
+			switch (strategy) {
+			case POWER_OF_TWO_CHOICES:
+				int n = available.size();
+				int i = random.nextInt(n);
+				int j = random.nextInt(n - 1);
+				if (j >= i) {
+					++j;
+				}
+				Replica a = available.get(i);
+				Replica b = available.get(j);
+				result = a.getScore() <= b.getScore() ? a : b;
+				break;
+			case LEAST_LATENCY:
+			default:
+				double best = Double.MAX_VALUE;
+				for (Replica r : available) {
+					double score = r.getScore();
+					if (score < best) {
+						best = score;
+						result = r;
+					}
+				}
+				break;
+			}
+		}
+
+		if (result == null) {
+			primaryFallbackCount.incrementAndGet();
+		}
+		else {
+			result.inFlight.incrementAndGet();
+			result.requestCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * @param replica as returned by <code>acquire()</code>
+	 * @param elapsedMillis or -1 if not known
+	 * @param failed true if the request failed or the replica reported an error
+	 */
+	void release(Replica replica, long elapsedMillis, boolean failed) {
+		replica.inFlight.decrementAndGet();
+		record(replica, elapsedMillis, failed);
+	}
+
+	/**
+	 * Release a replica whose request was cancelled without recording an outcome.
+	 */
+	void abandon(Replica replica) {
+		replica.inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Record the outcome of a health check or query.
+	 */
+	void record(Replica replica, long elapsedMillis, boolean failed) {
+		if (failed) {
+			replica.failureCount.incrementAndGet();
+			synchronized (replica) {
+				if (++replica.consecutiveFailures >= maxConsecutiveFailures) {
+					replica.quarantinedUntil = System.currentTimeMillis() + quarantineMillis;
+				}
+			}
+		}
+		else {
+			synchronized (replica) {
+				replica.consecutiveFailures = 0;
+				replica.quarantinedUntil = 0;
+			}
+			if (elapsedMillis >= 0) {
+				replica.recordLatency(elapsedMillis, ewmaWeight);
+			}
+		}
+	}
+
+	private Replica findReplica(String baseUrl) {
+		for (Replica r : replicas) {
+			if (r.baseUrl.equals(baseUrl) || r.baseUrl.equals(baseUrl + "/")) { //$NON-NLS-1$
+				return r;
+			}
+		}
+		throw new IllegalArgumentException("Unknown replica: " + baseUrl); //$NON-NLS-1$
+	}
+
+	/**
+	 * @param baseUrl
+	 * @return the average response time or -1 if not yet measured
+	 */
+	public double getEwmaMillis(String baseUrl) {
+		Replica r = findReplica(baseUrl);
+		synchronized (r) {
+			return r.ewmaMillis;
+		}
+	}
+
+	public boolean isAvailable(String baseUrl) {
+		return findReplica(baseUrl).isAvailable(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param baseUrl
+	 * @return the number of queries sent to the replica
+	 */
+	public long getRequestCount(String baseUrl) {
+		return findReplica(baseUrl).requestCount.get();
+	}
+
+	/**
+	 * @param baseUrl
+	 * @return the number of failed queries and health checks for the replica
+	 */
+	public long getFailureCount(String baseUrl) {
+		return findReplica(baseUrl).failureCount.get();
+	}
+
+	/**
+	 * @return the number of queries sent to the primary because no replica was available
+	 */
+	public long getPrimaryFallbackCount() {
+		return primaryFallbackCount.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ReplicaSelector[").append(strategy); //$NON-NLS-1$
+		long now = System.currentTimeMillis();
+		for (Replica r : replicas) {
+			sb.append(", ").append(r.baseUrl) //$NON-NLS-1$
+				.append("{ewma=").append(getEwmaMillis(r.baseUrl)) //$NON-NLS-1$
+				.append(", inFlight=").append(r.inFlight.get()) //$NON-NLS-1$
+				.append(", requests=").append(r.requestCount.get()) //$NON-NLS-1$
+				.append(", failures=").append(r.failureCount.get()) //$NON-NLS-1$
+				.append(r.isAvailable(now) ? "" : ", QUARANTINED") //$NON-NLS-1$ //$NON-NLS-2$
+				.append('}');
+		}
+		return sb.append(", primaryFallbacks=").append(getPrimaryFallbackCount()).append(']').toString(); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+/**
+ * Options which apply to individual requests. A value of zero for a timeout
+ * means that the client's default (see <code>DefaultDALClient.setDefaultRequestOptions()</code>)
+ * applies; if that is also zero then there is no limit.
+ * <ul>
+ * <li><b>connectTimeoutMillis</b> limits the time taken to establish a connection.</li>
+ * <li><b>socketTimeoutMillis</b> limits the time to wait for data from the server.</li>
+ * <li><b>totalTimeoutMillis</b> is the deadline for the whole operation, including
+ * any retries; when it passes the request is aborted and a SocketTimeoutException thrown.</li>
+ * <li><b>priority</b> is used by the client's RequestScheduler, if any; null means NORMAL.</li>
+ * <li><b>responseType</b> is the ResponseType asked for by this request; null means the client's.</li>
+ * <li><b>retrySafe</b> says that an update or upload may be repeated under the client's
+ * RetryPolicy. Queries are always retry-safe. It is not taken from the client's defaults,
+ * so each update must ask for it.</li>
+ * </ul>
+ * With <code>JdkDalHttpFactory</code> the connect timeout is a property of the
+ * HttpClient so only the socket and total timeouts apply per request.
+ * @author brian
+ * @since 5.2.0
+ */
+public class RequestOptions {
+
+	private int connectTimeoutMillis;
+	private int socketTimeoutMillis;
+	private long totalTimeoutMillis;
+	private DalCancellation cancellation;
+	private RequestPriority priority;
+	private ResponseType responseType;
+	private boolean retrySafe;
+
+	public RequestOptions() {
+	}
+
+	public RequestOptions(RequestOptions other) {
+		this.connectTimeoutMillis = other.connectTimeoutMillis;
+		this.socketTimeoutMillis = other.socketTimeoutMillis;
+		this.totalTimeoutMillis = other.totalTimeoutMillis;
+		this.cancellation = other.cancellation;
+		this.priority = other.priority;
+		this.responseType = other.responseType;
+		this.retrySafe = other.retrySafe;
+	}
+
+	public RequestOptions setConnectTimeoutMillis(int millis) {
+		this.connectTimeoutMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public RequestOptions setSocketTimeoutMillis(int millis) {
+		this.socketTimeoutMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public int getSocketTimeoutMillis() {
+		return socketTimeoutMillis;
+	}
+
+	public RequestOptions setTotalTimeoutMillis(long millis) {
+		this.totalTimeoutMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getTotalTimeoutMillis() {
+		return totalTimeoutMillis;
+	}
+
+	/**
+	 * @param cancellation the handle which may be used to cancel the request; may be null
+	 * @return this RequestOptions
+	 */
+	public RequestOptions setCancellation(DalCancellation cancellation) {
+		this.cancellation = cancellation;
+		return this;
+	}
+
+	public DalCancellation getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * @param priority may be null for the default
+	 * @return this RequestOptions
+	 */
+	public RequestOptions setPriority(RequestPriority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	public RequestPriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Use this instead of <code>DALClient.setResponseType()</code> when the client
+	 * is shared by threads which want different types of response.
+	 * @param responseType may be null for the client's
+	 * @return this RequestOptions
+	 * @throws IllegalArgumentException if the ResponseType can't be requested
+	 */
+	public RequestOptions setResponseType(ResponseType responseType) {
+		if (responseType != null && responseType.postValue == null) {
+			throw new IllegalArgumentException("Unsupported for setResponseType:" + responseType); //$NON-NLS-1$
+		}
+		this.responseType = responseType;
+		return this;
+	}
+
+	public ResponseType getResponseType() {
+		return responseType;
+	}
+
+	/**
+	 * Only set this for updates which have the same effect if the server receives
+	 * them more than once (e.g. setting a field to a value) as a failed attempt may
+	 * have been applied before the connection was lost.
+	 * @param b true if an update made with these options may be repeated
+	 * @return this RequestOptions
+	 */
+	public RequestOptions setRetrySafe(boolean b) {
+		this.retrySafe = b;
+		return this;
+	}
+
+	public boolean isRetrySafe() {
+		return retrySafe;
+	}
+
+	/**
+	 * Return a RequestOptions with the values of this one and, for those not set, the
+	 * values from <code>defaults</code>.
+	 * @param defaults may be null
+	 * @return a new RequestOptions
+	 */
+	public RequestOptions withDefaults(RequestOptions defaults) {
+		RequestOptions result = new RequestOptions(this);
+		if (defaults != null) {
+			if (result.connectTimeoutMillis == 0) {
+				result.connectTimeoutMillis = defaults.connectTimeoutMillis;
+			}
+			if (result.socketTimeoutMillis == 0) {
+				result.socketTimeoutMillis = defaults.socketTimeoutMillis;
+			}
+			if (result.totalTimeoutMillis == 0) {
+				result.totalTimeoutMillis = defaults.totalTimeoutMillis;
+			}
+			if (result.priority == null) {
+				result.priority = defaults.priority;
+			}
+			if (result.responseType == null) {
+				result.responseType = defaults.responseType;
+			}
+		}
+		return result;
+	}
+}
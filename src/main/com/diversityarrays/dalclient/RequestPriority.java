@@ -0,0 +1,40 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+/**
+ * The priority classes used by RequestScheduler, highest first.
+ * @author brian
+ * @since 5.2.0
+ */
+public enum RequestPriority {
+	/**
+	 * Requests a user is waiting for, such as <code>get/genus/{id}</code>.
+	 */
+	INTERACTIVE,
+	/**
+	 * The default for requests which do not specify a priority.
+	 */
+	NORMAL,
+	/**
+	 * Bulk work, such as paging through <code>list/genotypealias/_nperpage/page/_num</code>,
+	 * which should only use the capacity the other classes leave spare.
+	 */
+	BATCH,
+	;
+}
@@ -0,0 +1,398 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders the requests sent by one or more DefaultDALClients
+ * (see <code>DefaultDALClient.setRequestScheduler()</code>).
+ * At most <code>maxConcurrent</code> requests are in flight and each
+ * RequestPriority class has its own limit within that.
+ * When a request finishes the next one is taken from the highest priority
+ * class which has requests waiting and is below its own limit.
+ * <p>
+ * By default the BATCH class may only use half of <code>maxConcurrent</code>
+ * so that there is always room for INTERACTIVE requests.
+ * <p>
+ * Within a class requests are sent in the order they arrived unless
+ * <i>shortest-expected-job-first</i> is enabled, in which case the request whose
+ * command template has the lowest median response time goes first.
+ * Templates with fewer than <code>minSamples</code> response times are treated
+ * as short so that they are soon measured.
+ * @author brian
+ * @since 5.2.0
+ */
+public class RequestScheduler {
+
+	static public final long DEFAULT_MAX_WAIT_MILLIS = 60000;
+	static public final int DEFAULT_MIN_SAMPLES = 5;
+
+	static private class Waiter implements Comparable<Waiter> {
+		final long expectedMillis;
+		final long sequence;
+		boolean granted;
+
+		Waiter(long expectedMillis, long sequence) {
+			this.expectedMillis = expectedMillis;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Waiter o) {
+			if (expectedMillis != o.expectedMillis) {
+				return expectedMillis < o.expectedMillis ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+
+	private final String name;
+
+	private final LatencyTracker latencyTracker = new LatencyTracker();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition granted = lock.newCondition();
+
+	// All guarded by lock
+	private int maxConcurrent;
+	private final Map<RequestPriority,Integer> limitByPriority = new EnumMap<>(RequestPriority.class);
+	private final Map<RequestPriority,Integer> inFlightByPriority = new EnumMap<>(RequestPriority.class);
+	private final Map<RequestPriority,PriorityQueue<Waiter>> queueByPriority = new EnumMap<>(RequestPriority.class);
+	private int inFlight;
+	private long sequence;
+	private boolean shortestJobFirst;
+	private int minSamples = DEFAULT_MIN_SAMPLES;
+	private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+
+	private final Map<RequestPriority,AtomicLong> grantedCountByPriority = new EnumMap<>(RequestPriority.class);
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param name used in messages
+	 * @param maxConcurrent the maximum number of requests in flight
+	 */
+	public RequestScheduler(String name, int maxConcurrent) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be >= 1: " + maxConcurrent); //$NON-NLS-1$
+		}
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		for (RequestPriority p : RequestPriority.values()) {
+			limitByPriority.put(p, maxConcurrent);
+			inFlightByPriority.put(p, 0);
+			queueByPriority.put(p, new PriorityQueue<Waiter>());
+			grantedCountByPriority.put(p, new AtomicLong());
+		}
+		limitByPriority.put(RequestPriority.BATCH, Math.max(1, maxConcurrent / 2));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public RequestScheduler setMaxConcurrent(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be >= 1: " + max); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			this.maxConcurrent = max;
+			dispatch();
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public int getMaxConcurrent() {
+		lock.lock();
+		try {
+			return maxConcurrent;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority
+	 * @param max the maximum number of requests of this class in flight
+	 * @return this RequestScheduler
+	 */
+	public RequestScheduler setLimit(RequestPriority priority, int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be >= 1: " + max); //$NON-NLS-1$
+		}
+		lock.lock();
+		try {
+			limitByPriority.put(priority, max);
+			dispatch();
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public int getLimit(RequestPriority priority) {
+		lock.lock();
+		try {
+			return limitByPriority.get(priority);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Order the requests within each class by the median response time
+	 * of their command template.
+	 * @param b
+	 * @return this RequestScheduler
+	 */
+	public RequestScheduler setShortestJobFirst(boolean b) {
+		lock.lock();
+		try {
+			this.shortestJobFirst = b;
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public boolean isShortestJobFirst() {
+		lock.lock();
+		try {
+			return shortestJobFirst;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param n the number of response times needed before a template's median is used
+	 * @return this RequestScheduler
+	 */
+	public RequestScheduler setMinSamples(int n) {
+		lock.lock();
+		try {
+			this.minSamples = Math.max(1, n);
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @param millis how long a request may wait to be sent; zero to fail fast
+	 * @return this RequestScheduler
+	 */
+	public RequestScheduler setMaxWaitMillis(long millis) {
+		lock.lock();
+		try {
+			this.maxWaitMillis = Math.max(0, millis);
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return the response times recorded for each command template
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+
+	/**
+	 * Wait until the request may be sent. Every successful call must be
+	 * followed by a call to <code>release()</code>.
+	 * @param priority
+	 * @param template the command template (see <code>DalUtil.commandTemplateOf()</code>)
+	 * @param deadline if greater than zero, the time after which to stop waiting
+	 * @throws DalConcurrencyLimitException if the request could not be sent in time
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(RequestPriority priority, String template, long deadline)
+	throws DalConcurrencyLimitException, InterruptedIOException
+	{
+		lock.lock();
+		try {
+			long expected = 0;
+			if (shortestJobFirst) {
+				expected = Math.max(0, latencyTracker.getPercentile(template, 50, minSamples));
+			}
+			Waiter waiter = new Waiter(expected, ++sequence);
+			PriorityQueue<Waiter> queue = queueByPriority.get(priority);
+			queue.add(waiter);
+			dispatch();
+
+			long waitMillis = maxWaitMillis;
+			if (deadline > 0) {
+				waitMillis = Math.min(waitMillis, deadline - System.currentTimeMillis());
+			}
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			try {
+				while (! waiter.granted) {
+					if (remainingNanos <= 0) {
+						queue.remove(waiter);
+						rejectedCount.incrementAndGet();
+						throw new DalConcurrencyLimitException(
+								"Timed out waiting to send " + priority + " request for " + name, //$NON-NLS-1$ //$NON-NLS-2$
+								maxConcurrent);
+					}
+					remainingNanos = granted.awaitNanos(remainingNanos);
+				}
+			}
+			catch (InterruptedException e) {
+				if (waiter.granted) {
+					releaseSlot(priority);
+				}
+				else {
+					queue.remove(waiter);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + name); //$NON-NLS-1$
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the slot obtained by <code>acquire()</code>.
+	 * @param priority as passed to <code>acquire()</code>
+	 * @param template as passed to <code>acquire()</code>
+	 * @param elapsedMillis the response time or -1 if not known
+	 */
+	public void release(RequestPriority priority, String template, long elapsedMillis) {
+		if (elapsedMillis >= 0) {
+			latencyTracker.record(template, elapsedMillis);
+		}
+		lock.lock();
+		try {
+			releaseSlot(priority);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Caller must hold lock
+	private void releaseSlot(RequestPriority priority) {
+		--inFlight;
+		inFlightByPriority.put(priority, inFlightByPriority.get(priority) - 1);
+		dispatch();
+	}
+
+	// Caller must hold lock
+	private void dispatch() {
+		boolean any = false;
+		for (RequestPriority p : RequestPriority.values()) {
+			PriorityQueue<Waiter> queue = queueByPriority.get(p);
+			int classInFlight = inFlightByPriority.get(p);
+			int classLimit = limitByPriority.get(p);
+			while (inFlight < maxConcurrent && classInFlight < classLimit && ! queue.isEmpty()) {
+				queue.poll().granted = true;
+				++inFlight;
+				++classInFlight;
+				grantedCountByPriority.get(p).incrementAndGet();
+				any = true;
+			}
+			inFlightByPriority.put(p, classInFlight);
+		}
+		if (any) {
+			granted.signalAll();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight(RequestPriority priority) {
+		lock.lock();
+		try {
+			return inFlightByPriority.get(priority);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting(RequestPriority priority) {
+		lock.lock();
+		try {
+			return queueByPriority.get(priority).size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority
+	 * @return the number of requests of this class which have been sent
+	 */
+	public long getGrantedCount(RequestPriority priority) {
+		return grantedCountByPriority.get(priority).get();
+	}
+
+	/**
+	 * @return the number of requests refused because they waited too long
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("RequestScheduler[").append(name) //$NON-NLS-1$
+				.append(", maxConcurrent=").append(getMaxConcurrent()) //$NON-NLS-1$
+				.append(", inFlight=").append(getInFlight()); //$NON-NLS-1$
+		for (RequestPriority p : RequestPriority.values()) {
+			sb.append(", ").append(p) //$NON-NLS-1$
+				.append("{limit=").append(getLimit(p)) //$NON-NLS-1$
+				.append(", inFlight=").append(getInFlight(p)) //$NON-NLS-1$
+				.append(", waiting=").append(getWaiting(p)) //$NON-NLS-1$
+				.append(", granted=").append(getGrantedCount(p)) //$NON-NLS-1$
+				.append('}');
+		}
+		return sb.append(", rejected=").append(getRejectedCount()).append(']').toString(); //$NON-NLS-1$
+	}
+}
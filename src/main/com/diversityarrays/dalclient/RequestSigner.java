@@ -0,0 +1,188 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.diversityarrays.dalclient.util.Pair;
+
+/**
+ * Computes the HMAC-SHA1 signatures and random numbers used to sign
+ * DAL update and upload requests.
+ * <p>
+ * Each thread keeps its own Mac, initialised with the key it last used,
+ * so signing many requests with the same write token does not repeat the
+ * provider lookup or the key setup. The data to be signed is encoded into a
+ * reusable buffer and fed to the Mac piece by piece rather than first being
+ * concatenated into a String.
+ * All threads share a single SecureRandom.
+ * @author brian
+ * @since 5.2.0
+ */
+public class RequestSigner {
+
+	private static final String ALGORITHM_HMAC_SHA1 = "HmacSHA1"; //$NON-NLS-1$
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	static private final SecureRandom RANDOM = new SecureRandom();
+
+	static private final ThreadLocal<Engine> ENGINE = new ThreadLocal<Engine>() {
+		@Override
+		protected Engine initialValue() {
+			return new Engine();
+		}
+	};
+
+	static private class Engine {
+		private final Mac mac;
+		private String key;
+		private String charsetName;
+		private Charset charset;
+		private CharsetEncoder encoder;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+		private final byte[] rawHmac;
+		private final char[] hex;
+
+		Engine() {
+			try {
+				mac = Mac.getInstance(ALGORITHM_HMAC_SHA1);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException(e);
+			}
+			rawHmac = new byte[mac.getMacLength()];
+			hex = new char[rawHmac.length * 2];
+		}
+
+		void start(String signingKey) {
+			String name = DalUtil.cryptCharsetName;
+			if (! name.equals(charsetName)) {
+				charset = Charset.forName(name);
+				encoder = charset.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				charsetName = name;
+				key = null;
+			}
+			if (signingKey.equals(key)) {
+				mac.reset();
+			}
+			else {
+				key = null;
+				try {
+					mac.init(new SecretKeySpec(signingKey.getBytes(charset), ALGORITHM_HMAC_SHA1));
+				} catch (GeneralSecurityException e) {
+					throw new RuntimeException(e);
+				}
+				key = signingKey;
+			}
+		}
+
+		void update(String s) {
+			if (s == null || s.isEmpty()) {
+				return;
+			}
+			CharBuffer in = CharBuffer.wrap(s);
+			encoder.reset();
+			CoderResult cr;
+			do {
+				buffer.clear();
+				cr = encoder.encode(in, buffer, true);
+				if (! cr.isOverflow()) {
+					encoder.flush(buffer);
+				}
+				buffer.flip();
+				mac.update(buffer);
+			} while (cr.isOverflow());
+		}
+
+		String finish() {
+			try {
+				mac.doFinal(rawHmac, 0);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException(e);
+			}
+			int j = 0;
+			for (byte b : rawHmac) {
+				hex[j++] = HEX_DIGITS[(b >> 4) & 0xf];
+				hex[j++] = HEX_DIGITS[b & 0xf];
+			}
+			return new String(hex);
+		}
+	}
+
+	/**
+	 * Generate a positive 64-bit random number.
+	 * @return the number as a String
+	 */
+	static public String createRandomNumberString() {
+		return Long.toString(RANDOM.nextLong() & Long.MAX_VALUE);
+	}
+
+	/**
+	 * Calculate an RFC 2104 compliant HMAC signature.
+	 * @param key is the signing key
+	 * @param data is the data to be signed
+	 * @return the hex-encoded signature as a String
+	 */
+	static public String computeHmacSHA1(String key, String data) {
+		Engine engine = ENGINE.get();
+		engine.start(key);
+		engine.update(data);
+		return engine.finish();
+	}
+
+	/**
+	 * Compute the signature of an update or upload request: the HMAC of the command url,
+	 * the random number, each of the parameter values (a null value being treated as
+	 * empty) and, for an upload, the MD5 checksum of the content.
+	 * @param writeKey the token provided by DAL on a successful login
+	 * @param dalCommandUrl
+	 * @param randNum
+	 * @param pairs the parameters in the order given by <code>param_order</code>
+	 * @param md5 null unless this is an upload
+	 * @return the hex-encoded signature as a String
+	 */
+	static public String sign(String writeKey, String dalCommandUrl, String randNum,
+			List<Pair<String,String>> pairs, String md5)
+	{
+		Engine engine = ENGINE.get();
+		engine.start(writeKey);
+		engine.update(dalCommandUrl);
+		engine.update(randNum);
+		for (Pair<String,String> pair : pairs) {
+			engine.update(pair.b);
+		}
+		engine.update(md5);
+		return engine.finish();
+	}
+
+	private RequestSigner() {
+	}
+}
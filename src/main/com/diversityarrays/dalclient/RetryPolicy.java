@@ -0,0 +1,320 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether DefaultDALClient should repeat a request that failed with one of
+ * the retryable HTTP status codes (by default 502, 503 and 504) or with one of the
+ * retryable IOExceptions (by default <code>DEFAULT_RETRYABLE_EXCEPTIONS</code>).
+ * <p>
+ * The delay before attempt <i>n+1</i> is chosen uniformly from
+ * <code>[0, min(maxDelayMillis, baseDelayMillis * 2<sup>n-1</sup>)]</code>
+ * ("full jitter") so that many clients do not retry in step.
+ * <p>
+ * Retries are also limited by a token bucket: each retry uses one token and each
+ * request which succeeds on its first attempt adds <code>budgetRatio</code> tokens,
+ * up to <code>maxBudget</code>. When the server is failing for everyone the
+ * bucket empties and the client stops adding retry traffic.
+ * <p>
+ * Only requests that are safe to repeat are ever offered for retry: queries and
+ * update or upload commands for which <code>PostBuilder.setRetrySafe(true)</code> was called.
+ * Subclasses may override <code>isRetryable()</code> and <code>computeDelayMillis()</code>.
+ * @author brian
+ * @since 5.2.0
+ */
+public class RetryPolicy {
+
+	static public final int DEFAULT_MAX_ATTEMPTS = 3;
+	static public final long DEFAULT_BASE_DELAY_MILLIS = 200;
+	static public final long DEFAULT_MAX_DELAY_MILLIS = 10000;
+	static public final double DEFAULT_BUDGET_RATIO = 0.1;
+	static public final double DEFAULT_MAX_BUDGET = 10;
+
+	/**
+	 * The class names of the IOExceptions that indicate a transient communication
+	 * problem: timeouts, refused or reset connections and connections closed before
+	 * a response arrived. Subclasses of these are also retryable.
+	 * Names are used because the transport libraries may not be present.
+	 * Errors such as UnknownHostException, SSLException (including a failed handshake),
+	 * a plain InterruptedIOException (the thread was interrupted) and
+	 * DalMemoryBudgetException are not retryable.
+	 */
+	static public final String[] DEFAULT_RETRYABLE_EXCEPTIONS = {
+		"java.net.SocketTimeoutException", //$NON-NLS-1$
+		"java.net.SocketException", // includes ConnectException and NoRouteToHostException //$NON-NLS-1$
+		"java.io.EOFException", //$NON-NLS-1$
+		"java.net.http.HttpTimeoutException", //$NON-NLS-1$
+		"org.apache.http.NoHttpResponseException", //$NON-NLS-1$
+		"org.apache.http.conn.ConnectTimeoutException", //$NON-NLS-1$
+		"ch.boye.httpclientandroidlib.NoHttpResponseException", //$NON-NLS-1$
+		"ch.boye.httpclientandroidlib.conn.ConnectTimeoutException", //$NON-NLS-1$
+	};
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private int[] retryableStatusCodes = { 502, 503, 504 };
+	private String[] retryableExceptions = DEFAULT_RETRYABLE_EXCEPTIONS.clone();
+
+	private double budgetRatio = DEFAULT_BUDGET_RATIO;
+	private double maxBudget = DEFAULT_MAX_BUDGET;
+	private double budget = DEFAULT_MAX_BUDGET;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong recoveredCount = new AtomicLong();
+	private final AtomicLong attemptsExhaustedCount = new AtomicLong();
+	private final AtomicLong budgetExhaustedCount = new AtomicLong();
+
+	public RetryPolicy() {
+	}
+
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		setMaxAttempts(maxAttempts);
+		setBaseDelayMillis(baseDelayMillis);
+		setMaxDelayMillis(maxDelayMillis);
+	}
+
+	/**
+	 * @param n the total number of attempts including the first; 1 disables retry
+	 * @return this RetryPolicy
+	 */
+	public RetryPolicy setMaxAttempts(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("maxAttempts must be >= 1: " + n); //$NON-NLS-1$
+		}
+		this.maxAttempts = n;
+		return this;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public RetryPolicy setBaseDelayMillis(long millis) {
+		this.baseDelayMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	public RetryPolicy setMaxDelayMillis(long millis) {
+		this.maxDelayMillis = Math.max(0, millis);
+		return this;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public RetryPolicy setRetryableStatusCodes(int ... codes) {
+		this.retryableStatusCodes = codes == null ? new int[0] : codes.clone();
+		return this;
+	}
+
+	public int[] getRetryableStatusCodes() {
+		return retryableStatusCodes.clone();
+	}
+
+	/**
+	 * @param classNames the fully qualified names of the IOException classes
+	 * (and their subclasses) for which a request may be repeated
+	 * @return this RetryPolicy
+	 */
+	public RetryPolicy setRetryableExceptions(String ... classNames) {
+		this.retryableExceptions = classNames == null ? new String[0] : classNames.clone();
+		return this;
+	}
+
+	public String[] getRetryableExceptions() {
+		return retryableExceptions.clone();
+	}
+
+	/**
+	 * Set the size of the retry budget.
+	 * @param ratio the number of tokens added for each first-time success
+	 * @param max the maximum number of tokens (this is also the initial number)
+	 * @return this RetryPolicy
+	 */
+	synchronized public RetryPolicy setBudget(double ratio, double max) {
+		this.budgetRatio = Math.max(0, ratio);
+		this.maxBudget = Math.max(0, max);
+		this.budget = this.maxBudget;
+		return this;
+	}
+
+	synchronized public double getAvailableBudget() {
+		return budget;
+	}
+
+	/**
+	 * Return true if the HTTP status code indicates a transient server problem.
+	 * @param httpStatusCode
+	 * @return true or false
+	 */
+	public boolean isRetryable(int httpStatusCode) {
+		for (int code : retryableStatusCodes) {
+			if (code == httpStatusCode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return true if the exception is an instance of one of the retryable exceptions.
+	 * A plain IOException is retryable if its cause is (the <code>java.net.http</code>
+	 * client wraps some of its errors in this way).
+	 * @param error
+	 * @return true or false
+	 */
+	public boolean isRetryable(IOException error) {
+		Throwable t = error;
+		while (t != null) {
+			for (Class<?> c = t.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+				for (String name : retryableExceptions) {
+					if (name.equals(c.getName())) {
+						return true;
+					}
+				}
+			}
+			if (t.getClass() != IOException.class || t.getCause() == t) {
+				break;
+			}
+			t = t.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Return the number of milliseconds to wait before making another attempt.
+	 * @param attempt the number of attempts already made (1 or more)
+	 * @return the delay in milliseconds
+	 */
+	public long computeDelayMillis(int attempt) {
+		long cap = baseDelayMillis;
+		for (int i = 1; i < attempt && cap < maxDelayMillis; ++i) {
+			cap *= 2;
+		}
+		cap = Math.min(cap, maxDelayMillis);
+		return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Called by DefaultDALClient when an attempt has failed with a retryable
+	 * error to find out if another attempt may be made.
+	 * @param attempt the number of attempts already made
+	 * @return true if a retry is permitted, in which case one token has been used
+	 */
+	boolean acquireRetry(int attempt) {
+		if (attempt >= maxAttempts) {
+			attemptsExhaustedCount.incrementAndGet();
+			return false;
+		}
+		synchronized (this) {
+			if (budget < 1) {
+				budgetExhaustedCount.incrementAndGet();
+				return false;
+			}
+			budget -= 1;
+		}
+		retryCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Called by DefaultDALClient when a request has completed without a retryable error.
+	 * @param attempts the number of attempts that were made
+	 */
+	void recordCompletion(int attempts) {
+		requestCount.incrementAndGet();
+		if (attempts > 1) {
+			recoveredCount.incrementAndGet();
+		}
+		else {
+			synchronized (this) {
+				budget = Math.min(maxBudget, budget + budgetRatio);
+			}
+		}
+	}
+
+	/**
+	 * Called by DefaultDALClient when a request has failed without being retried further.
+	 */
+	void recordFailure() {
+		requestCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of requests performed under this policy
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the number of additional attempts made
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * @return the number of requests that succeeded after at least one retry
+	 */
+	public long getRecoveredCount() {
+		return recoveredCount.get();
+	}
+
+	/**
+	 * @return the number of requests that failed after <code>maxAttempts</code> attempts
+	 */
+	public long getAttemptsExhaustedCount() {
+		return attemptsExhaustedCount.get();
+	}
+
+	/**
+	 * @return the number of retries that were refused because the budget was empty
+	 */
+	public long getBudgetExhaustedCount() {
+		return budgetExhaustedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy[maxAttempts=" + maxAttempts //$NON-NLS-1$
+				+ ", baseDelayMillis=" + baseDelayMillis //$NON-NLS-1$
+				+ ", maxDelayMillis=" + maxDelayMillis //$NON-NLS-1$
+				+ ", retryableStatusCodes=" + Arrays.toString(retryableStatusCodes) //$NON-NLS-1$
+				+ ", retryableExceptions=" + Arrays.toString(retryableExceptions) //$NON-NLS-1$
+				+ ", requests=" + getRequestCount() //$NON-NLS-1$
+				+ ", retries=" + getRetryCount() //$NON-NLS-1$
+				+ ", recovered=" + getRecoveredCount() //$NON-NLS-1$
+				+ ", attemptsExhausted=" + getAttemptsExhaustedCount() //$NON-NLS-1$
+				+ ", budgetExhausted=" + getBudgetExhaustedCount() //$NON-NLS-1$
+				+ ", budget=" + getAvailableBudget() //$NON-NLS-1$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.http;
+
+/**
+ * Optionally implemented by a DalCloseableHttpClient whose transport can send
+ * a request without a thread waiting for the response, so that one thread may
+ * keep many requests in flight. DefaultDALClient uses it for the
+ * <code>performQueryAsync()</code> methods when it is available.
+ * @author brian
+ * @since 5.2.0
+ */
+public interface DalAsyncHttpClient {
+
+	/**
+	 * Send the request and return at once. When the whole response has been received
+	 * the handler is called with it and then the callback is called with the result,
+	 * both on a thread belonging to the transport. <code>DalRequest.abort()</code>
+	 * cancels the request, in which case the callback receives an IOException.
+	 * @param request
+	 * @param handler
+	 * @param callback
+	 */
+	public <T> void executeAsync(DalRequest request, DalResponseHandler<T> handler, DalAsyncCallback<T> callback);
+}
@@ -19,6 +19,7 @@ package com.diversityarrays.dalclient.http;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Provides a thin wrapper around implementations of CloseableHttpResponse.
@@ -27,12 +28,37 @@ import java.io.IOException;
  */
 public interface DalCloseableHttpResponse extends Closeable {
 
+	/**
+	 * The implementations build the array once and return the same array on each call
+	 * so it must not be modified.
+	 * @return the headers of the response
+	 */
 	public DalHeader[] getAllHeaders();
 
+	/**
+	 * Return the value of the first header with this name without building
+	 * the array of all of the headers.
+	 * @param name compared without regard to case
+	 * @return null if there is no such header
+	 * @since 5.2.0
+	 */
+	public String getFirstHeaderValue(String name);
+
 	public int getStatusCode();
 
 	public String getReasonPhrase();
 
 	public String getEntityAsString() throws IOException;
 
+	/**
+	 * Return the response entity as a stream so that it may be consumed
+	 * while it is still arriving. The stream is only valid until the response
+	 * is closed. Use <code>java.nio.channels.Channels.newChannel()</code>
+	 * if a ReadableByteChannel is preferred.
+	 * @return InputStream or null if there is no entity
+	 * @throws IOException
+	 * @since 5.2.0
+	 */
+	public InputStream getEntityContent() throws IOException;
+
 }
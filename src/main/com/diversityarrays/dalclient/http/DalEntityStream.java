@@ -0,0 +1,202 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Provides the decoded content of a response entity, undoing any <code>gzip</code>
+ * or <code>deflate</code> Content-Encoding while the data is read, and counts
+ * the bytes received on the wire as well as those delivered to the reader.
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalEntityStream extends FilterInputStream {
+
+	/**
+	 * The value for the Accept-Encoding request header for the encodings
+	 * which can be decoded.
+	 */
+	static public final String ACCEPT_ENCODING = "gzip, deflate"; //$NON-NLS-1$
+
+	static public final String HEADER_ACCEPT_ENCODING = "Accept-Encoding"; //$NON-NLS-1$
+
+	static public final String HEADER_CONTENT_ENCODING = "Content-Encoding"; //$NON-NLS-1$
+
+	/**
+	 * Return the decoded entity content of the response.
+	 * @param response
+	 * @return null if the response has no entity
+	 * @throws IOException
+	 */
+	static public DalEntityStream open(DalCloseableHttpResponse response) throws IOException {
+		InputStream content = response.getEntityContent();
+		if (content == null) {
+			return null;
+		}
+		String contentEncoding = response.getFirstHeaderValue(HEADER_CONTENT_ENCODING);
+		if (contentEncoding != null) {
+			contentEncoding = contentEncoding.trim().toLowerCase();
+		}
+		return new DalEntityStream(content, contentEncoding);
+	}
+
+	static private class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0) {
+				++count;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int result = super.read(b, off, len);
+			if (result > 0) {
+				count += result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			count += result;
+			return result;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private final CountingInputStream encoded;
+	private final String contentEncoding;
+	private long uncompressedByteCount;
+
+	private DalEntityStream(InputStream content, String contentEncoding) throws IOException {
+		this(new CountingInputStream(content), contentEncoding);
+	}
+
+	private DalEntityStream(CountingInputStream encoded, String contentEncoding) throws IOException {
+		super(decoderFor(encoded, contentEncoding));
+		this.encoded = encoded;
+		this.contentEncoding = contentEncoding;
+	}
+
+	static private InputStream decoderFor(InputStream encoded, String contentEncoding) throws IOException {
+		if (contentEncoding == null || contentEncoding.isEmpty() || "identity".equals(contentEncoding)) { //$NON-NLS-1$
+			return encoded;
+		}
+		// An empty entity (e.g. from a 204) has nothing to decode.
+		PushbackInputStream pushback = new PushbackInputStream(encoded, 2);
+		int b0 = pushback.read();
+		int b1 = b0 < 0 ? -1 : pushback.read();
+		if (b1 >= 0) {
+			pushback.unread(b1);
+		}
+		if (b0 < 0) {
+			return pushback;
+		}
+		pushback.unread(b0);
+
+		if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) { //$NON-NLS-1$ //$NON-NLS-2$
+			return new GZIPInputStream(pushback, 8192);
+		}
+		if ("deflate".equals(contentEncoding)) { //$NON-NLS-1$
+			// RFC 7230 says zlib format but some servers send raw deflate data.
+			boolean zlibWrapped = b1 >= 0
+					&& (b0 & 0x0f) == 8
+					&& ((b0 << 8) | b1) % 31 == 0;
+			return new InflaterInputStream(pushback, new Inflater(! zlibWrapped), 8192) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inf.end();
+				}
+			};
+		}
+		throw new IOException("Unsupported Content-Encoding: " + contentEncoding); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return the Content-Encoding of the response or null
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * @return the number of bytes read from the connection so far
+	 */
+	public long getCompressedByteCount() {
+		return encoded.count;
+	}
+
+	/**
+	 * @return the number of decoded bytes read from this stream so far
+	 */
+	public long getUncompressedByteCount() {
+		return uncompressedByteCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int result = super.read();
+		if (result >= 0) {
+			++uncompressedByteCount;
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int result = super.read(b, off, len);
+		if (result > 0) {
+			uncompressedByteCount += result;
+		}
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long result = super.skip(n);
+		uncompressedByteCount += result;
+		return result;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
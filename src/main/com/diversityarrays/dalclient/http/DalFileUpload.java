@@ -0,0 +1,167 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * The content of a file being uploaded by a DalRequest. The file is read
+ * through a FileChannel in memory-mapped regions of <code>MAP_SIZE</code> bytes
+ * so that the heap used does not depend on the size of the file.
+ * The bytes sent and the time taken are recorded so that the upload
+ * throughput can be reported (see <code>HttpResponseInfo.uploadBytesPerSecond</code>).
+ * @author brian
+ * @since 5.2.0
+ */
+public class DalFileUpload {
+
+	/**
+	 * The size of each memory-mapped region of the file.
+	 */
+	static public final int MAP_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The size of the buffer used to copy to an OutputStream and of
+	 * the slices published by <code>nextSlice()</code>.
+	 */
+	static public final int CHUNK_SIZE = 64 * 1024;
+
+	private final File file;
+	private final long length;
+
+	private volatile long bytesSent;
+	private volatile long startNanos;
+	private volatile long endNanos;
+
+	public DalFileUpload(File file) {
+		this.file = file;
+		this.length = file.length();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the length of the file when this was created
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Copy the file to <code>out</code> from memory-mapped regions
+	 * using a single buffer of <code>CHUNK_SIZE</code> bytes.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		try (FileInputStream fis = new FileInputStream(file)) {
+			FileChannel channel = fis.getChannel();
+			byte[] chunk = new byte[CHUNK_SIZE];
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				MappedByteBuffer region = map(channel, position, size);
+				while (region.hasRemaining()) {
+					int len = Math.min(chunk.length, region.remaining());
+					region.get(chunk, 0, len);
+					out.write(chunk, 0, len);
+					addBytesSent(len);
+				}
+				position += region.capacity();
+			}
+		}
+		finished();
+	}
+
+	/**
+	 * Map the next region of the file.
+	 * @param channel open on the file
+	 * @param position of the region
+	 * @param size of the file
+	 * @return a read-only MappedByteBuffer
+	 * @throws IOException
+	 */
+	static public MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		return channel.map(MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+	}
+
+	/**
+	 * Return the next slice of up to <code>CHUNK_SIZE</code> bytes of the region
+	 * without copying and advance the region's position past it.
+	 * @param region
+	 * @return a ByteBuffer sharing the content of the region
+	 */
+	static public ByteBuffer nextSlice(ByteBuffer region) {
+		int len = Math.min(CHUNK_SIZE, region.remaining());
+		ByteBuffer slice = region.slice();
+		slice.limit(len);
+		region.position(region.position() + len);
+		return slice;
+	}
+
+	/**
+	 * Record that bytes of the file have been sent.
+	 * @param n
+	 */
+	public void addBytesSent(long n) {
+		if (startNanos == 0) {
+			startNanos = System.nanoTime();
+		}
+		bytesSent += n;
+	}
+
+	/**
+	 * Record that the whole file has been sent.
+	 */
+	public void finished() {
+		endNanos = System.nanoTime();
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return the nanoseconds from sending the first byte of the file to the last or -1 if not finished
+	 */
+	public long getElapsedNanos() {
+		long start = startNanos;
+		long end = endNanos;
+		return (start == 0 || end == 0) ? -1 : end - start;
+	}
+
+	/**
+	 * @return the upload throughput or -1 if not known
+	 */
+	public double getBytesPerSecond() {
+		long nanos = getElapsedNanos();
+		if (nanos < 0) {
+			return -1;
+		}
+		return bytesSent * 1e9 / Math.max(1, nanos);
+	}
+}
@@ -30,4 +30,33 @@ public interface DalRequest {
 
 	public DalHeader[] getAllHeaders();
 
+	/**
+	 * Set the value of a request header, replacing any existing value.
+	 * @param name
+	 * @param value
+	 * @since 5.2.0
+	 */
+	public void setHeader(String name, String value);
+
+	/**
+	 * Abandon the request. If it is being executed or its response is being
+	 * read then the thread doing that receives an IOException.
+	 * @since 5.2.0
+	 */
+	public void abort();
+
+	/**
+	 * Set the timeouts for this request.
+	 * @param connectTimeoutMillis zero for the default
+	 * @param socketTimeoutMillis zero for the default
+	 * @since 5.2.0
+	 */
+	public void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis);
+
+	/**
+	 * @return the file being uploaded by this request or null if it is not a file upload
+	 * @since 5.2.0
+	 */
+	public DalFileUpload getFileUpload();
+
 }
@@ -68,16 +68,21 @@ public class Pair<A,B> {
 	
 	public final A a;
 	public final B b;
-	private final String name;
+	private String name;
+	// If true then name is built when first needed
+	private final boolean defaultName;
 	
 	public Pair(A a, B b) {
-		this(a, b, "(" + a+" , "+b+")");
+		this.a = a;
+		this.b = b;
+		this.defaultName = true;
 	}
 	
 	public Pair(A a, B b, String name) {
 		this.a = a;
 		this.b = b;
 		this.name = name;
+		this.defaultName = false;
 	}
 	
 	@Override
@@ -103,6 +108,9 @@ public class Pair<A,B> {
 	
 	@Override
 	public String toString() {
+		if (defaultName && name == null) {
+			name = "(" + a+" , "+b+")";
+		}
 		return name;
 	}
 	
@@ -43,8 +43,9 @@ public class StringInputStream extends InputStream {
         reader.close();
     }
     
+    // StringReader does its own locking so there is no need to hold a monitor here
     @Override
-    public synchronized void mark(int readlimit) {
+    public void mark(int readlimit) {
         try {
     	reader.mark(readlimit);
         } catch (IOException e) {
@@ -53,7 +54,7 @@ public class StringInputStream extends InputStream {
     }
     
     @Override
-    public synchronized void reset() throws IOException {
+    public void reset() throws IOException {
         reader.reset();
     }
     
@@ -0,0 +1,151 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.lang.management.ManagementFactory;
+
+import javax.net.ssl.SSLContext;
+
+import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalHttpFactory;
+
+/**
+ * Measures how many bytes the calling thread allocates for each query
+ * sent by <code>DefaultDALClient</code> to a logged-in
+ * <code>StandInDalServer</code> over an already open connection.
+ * <p>
+ * The same GET is also sent directly through the transport, as a baseline:
+ * a <code>DalCloseableHttpClient</code> from the same kind of
+ * <code>DalHttpFactory</code> executes it and reads the body as a String.
+ * The difference between the two is what <code>DefaultDALClient</code>
+ * itself allocates for each query. That is the figure to compare between
+ * versions of the library, since the transport's share does not change.
+ * It may be slightly negative because <code>DefaultDALClient</code> reads
+ * the body more cheaply than <code>getEntityAsString()</code> does.
+ * To compare with an earlier version, put its classes ahead of this build's
+ * on the classpath; this class only uses API which that version also has.
+ * <p>
+ * Each round sends the same number of queries so the spread between rounds
+ * shows how much of a difference is noise. The figures are only comparable
+ * between runs on the same JVM and transport.
+ * <p>
+ * Only allocations on the calling thread are counted. The Apache transport
+ * does all of its work there; the <code>java.net.http</code> transport does
+ * part of its work on its own threads, which this does not see.
+ * <p>
+ * Usage: <code>AllocationBenchmark [queriesPerRound [rounds]]</code>
+ * @author brian
+ * @since 5.2.0
+ */
+public class AllocationBenchmark {
+
+	private static final String COMMAND = "list/genus"; //$NON-NLS-1$
+
+	public static void main(String[] args) throws Exception {
+
+		int nQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int nRounds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (! (threadBean instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("This JVM cannot report per-thread allocation"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (! allocBean.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM cannot report per-thread allocation"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		allocBean.setThreadAllocatedMemoryEnabled(true);
+
+		StandInDalServer server = new StandInDalServer(4);
+		DefaultDALClient client = new DefaultDALClient(server.getBaseUrl());
+		DalHttpFactory factory = createTransport();
+		DalCloseableHttpClient transport = factory.createCloseableHttpClient(SSLContext.getDefault());
+		String url = server.getBaseUrl() + COMMAND;
+		try {
+			client.login("user", "password"); //$NON-NLS-1$ //$NON-NLS-2$
+
+			// Warm up the JIT and open the connections.
+			runQueries(client, nQueries);
+			runRequests(factory, transport, url, nQueries);
+
+			long threadId = Thread.currentThread().getId();
+			System.out.println("Transport: " + factory.getClass().getName()); //$NON-NLS-1$
+			System.out.println("bytes/query\tclient\ttransport\tclient only"); //$NON-NLS-1$
+			for (int round = 1; round <= nRounds; ++round) {
+				long before = allocBean.getThreadAllocatedBytes(threadId);
+				runQueries(client, nQueries);
+				long clientBytes = (allocBean.getThreadAllocatedBytes(threadId) - before) / nQueries;
+
+				before = allocBean.getThreadAllocatedBytes(threadId);
+				runRequests(factory, transport, url, nQueries);
+				long transportBytes = (allocBean.getThreadAllocatedBytes(threadId) - before) / nQueries;
+
+				System.out.println("round " + round //$NON-NLS-1$
+						+ "\t" + clientBytes //$NON-NLS-1$
+						+ "\t" + transportBytes //$NON-NLS-1$
+						+ "\t\t" + (clientBytes - transportBytes)); //$NON-NLS-1$
+			}
+		}
+		finally {
+			transport.close();
+			client.logout();
+			server.stop();
+		}
+	}
+
+	/**
+	 * @return the DalHttpFactory that <code>DefaultDALClient</code> uses by default
+	 */
+	private static DalHttpFactory createTransport() throws ReflectiveOperationException {
+		String className = System.getProperty(DefaultDALClient.class.getName() + ".HTTP_FACTORY_CLASS_NAME", //$NON-NLS-1$
+				"com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl"); //$NON-NLS-1$
+		return (DalHttpFactory) Class.forName(className).newInstance();
+	}
+
+	private static void runQueries(DALClient client, int count) throws Exception {
+		for (int i = 0; i < count; ++i) {
+			DalResponse response = client.performQuery(COMMAND);
+			// Checking the status does not parse the body, so only the
+			// request and response plumbing is measured.
+			int status = response.getHttpResponseInfo().httpStatusCode;
+			if (status != 200) {
+				throw new IllegalStateException("HTTP status " + status); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private static void runRequests(DalHttpFactory factory, DalCloseableHttpClient transport, String url, int count)
+	throws Exception
+	{
+		for (int i = 0; i < count; ++i) {
+			DalCloseableHttpResponse response = transport.execute(factory.createHttpGet(url));
+			try {
+				int status = response.getStatusCode();
+				if (status != 200 || response.getEntityAsString() == null) {
+					throw new IllegalStateException("HTTP status " + status); //$NON-NLS-1$
+				}
+			}
+			finally {
+				response.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks <code>DefaultDALClient.downloadToFileInParallel()</code> against a
+ * local <code>StandInDalServer</code>:
+ * <ul>
+ *   <li>a server which supports ranges is sent concurrent range requests</li>
+ *   <li>a server which does not gets a single request for the whole file</li>
+ *   <li>the download completes even when the async executor is busy</li>
+ *   <li>the download fails rather than join parts of a file that changed while it was in progress</li>
+ * </ul>
+ * Exits with status 1 if a check fails.
+ * @author brian
+ * @since 5.2.0
+ */
+public class ParallelDownloadTest {
+
+	private static final int FILE_SIZE = 8 * 1024 * 1024;
+	private static final int CONNECTIONS = 4;
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+
+		byte[] content = new byte[FILE_SIZE];
+		new Random(1).nextBytes(content);
+
+		final StandInDalServer server = new StandInDalServer(2 * CONNECTIONS);
+		server.setChunkDelayMillis(2);
+		String url = server.addFile("export.bin", content); //$NON-NLS-1$
+
+		File file = File.createTempFile("ParallelDownloadTest", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+
+		DefaultDALClient client = new DefaultDALClient(server.getBaseUrl());
+		try {
+			client.login("user", "password"); //$NON-NLS-1$ //$NON-NLS-2$
+
+			// 1. Concurrent ranges
+			server.resetMaxActive();
+			DownloadResult result = client.downloadToFileInParallel(url, file, CONNECTIONS, null, null);
+			System.out.println(result);
+			check("ranges: parts", result.getConnectionCount() == CONNECTIONS); //$NON-NLS-1$
+			check("ranges: content", sameContent(file, content)); //$NON-NLS-1$
+			check("ranges: concurrent", server.getMaxActive() > 1); //$NON-NLS-1$
+
+			// 2. No range support
+			server.setRangeSupported(false);
+			int rangesBefore = server.getRangeRequestCount();
+			result = client.downloadToFileInParallel(url, file, CONNECTIONS, null, null);
+			System.out.println(result);
+			check("no ranges: single stream", result.getConnectionCount() == 1); //$NON-NLS-1$
+			check("no ranges: no partial responses", server.getRangeRequestCount() == rangesBefore); //$NON-NLS-1$
+			check("no ranges: content", sameContent(file, content)); //$NON-NLS-1$
+			server.setRangeSupported(true);
+
+			// 3. The only async thread is busy for the whole download
+			ExecutorService busy = Executors.newSingleThreadExecutor();
+			final CountDownLatch release = new CountDownLatch(1);
+			busy.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			client.setAsyncExecutor(busy);
+			try {
+				result = client.downloadToFileInParallel(url, file, CONNECTIONS, null, null);
+				System.out.println(result);
+				check("busy executor: parts", result.getConnectionCount() == CONNECTIONS); //$NON-NLS-1$
+				check("busy executor: content", sameContent(file, content)); //$NON-NLS-1$
+
+				// 4. The file is replaced half way through; with the executor
+				// still busy the later parts are requested after the change
+				final byte[] changed = content.clone();
+				changed[0] ^= 1;
+				final AtomicBoolean replaced = new AtomicBoolean();
+				DownloadListener replacer = new DownloadListener() {
+					@Override
+					public void downloadProgress(File f, long bytesDone, long totalBytes) {
+						if (totalBytes > 0 && bytesDone >= totalBytes / 2 && replaced.compareAndSet(false, true)) {
+							server.addFile("export.bin", changed); //$NON-NLS-1$
+						}
+					}
+				};
+				IOException error = null;
+				try {
+					client.downloadToFileInParallel(url, file, CONNECTIONS, replacer, null);
+				}
+				catch (IOException e) {
+					error = e;
+				}
+				System.out.println("changed file: " + error); //$NON-NLS-1$
+				check("changed file: replaced", replaced.get()); //$NON-NLS-1$
+				check("changed file: download failed", error != null && error.getMessage().contains("changed")); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			finally {
+				release.countDown();
+				busy.shutdown();
+			}
+		}
+		finally {
+			client.logout();
+			server.stop();
+		}
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what); //$NON-NLS-1$ //$NON-NLS-2$
+		if (! ok) {
+			++failures;
+		}
+	}
+
+	private static boolean sameContent(File file, byte[] expected) throws IOException {
+		if (file.length() != expected.length) {
+			return false;
+		}
+		byte[] actual = new byte[expected.length];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			int n;
+			while (offset < actual.length && -1 != (n = in.read(actual, offset, actual.length - offset))) {
+				offset += n;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return Arrays.equals(actual, expected);
+	}
+}
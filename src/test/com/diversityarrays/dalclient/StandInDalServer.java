@@ -0,0 +1,310 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal local stand-in for a KDDart-DAL server, used by the benchmarks
+ * in this directory.
+ * <p>
+ * Any path under <code>/dal/login/</code> logs in: the response sets a session
+ * cookie and returns a <code>User</code> and <code>WriteToken</code>.
+ * Every other path under <code>/dal/</code> returns a single XML
+ * <code>Item</code> record, after an optional delay that stands in for
+ * server latency.
+ * <p>
+ * Files added with <code>addFile()</code> are served from <code>/files/</code>
+ * with an ETag that changes each time the file is added, and honour single
+ * <code>Range: bytes=start-end</code> requests unless range support is turned
+ * off or an <code>If-Range</code> header does not match the ETag.
+ * @author brian
+ * @since 5.2.0
+ */
+public class StandInDalServer {
+
+	private static final String SESSION_COOKIE = "KDDArT_DOWNLOAD_SESS"; //$NON-NLS-1$
+
+	static {
+		// Without this, Nagle's algorithm adds ~40ms to every small response.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) { //$NON-NLS-1$
+			System.setProperty("sun.net.httpserver.nodelay", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private final AtomicInteger logins = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	private final AtomicInteger rangeRequests = new AtomicInteger();
+	private final Map<String,ServedFile> files = new ConcurrentHashMap<>();
+	private final AtomicInteger fileVersions = new AtomicInteger();
+
+	/** The content of a file and the ETag of that version */
+	private static class ServedFile {
+		final byte[] content;
+		final String etag;
+
+		ServedFile(byte[] content, String etag) {
+			this.content = content;
+			this.etag = etag;
+		}
+	}
+
+	private volatile long responseDelayMillis;
+	private volatile boolean rangeSupported = true;
+	private volatile long chunkDelayMillis;
+
+	/**
+	 * Start a server on an ephemeral port of the loopback interface.
+	 * @param nThreads how many requests the server handles at once
+	 * @throws IOException if the server cannot be started
+	 */
+	public StandInDalServer(int nThreads) throws IOException {
+		this(Executors.newFixedThreadPool(nThreads));
+	}
+
+	/**
+	 * Start a server on an ephemeral port of the loopback interface.
+	 * @param executor runs the requests and is shut down by <code>stop()</code>
+	 * @throws IOException if the server cannot be started
+	 */
+	public StandInDalServer(ExecutorService executor) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		this.executor = executor;
+		server.setExecutor(executor);
+		server.createContext("/dal/", new HttpHandler() { //$NON-NLS-1$
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleDal(exchange);
+			}
+		});
+		server.createContext("/files/", new HttpHandler() { //$NON-NLS-1$
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleFile(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return the URL to give to <code>DefaultDALClient</code>
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/dal/"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Add or replace a file.
+	 * @param name the file is served as <code>getBaseUrl() + "../files/" + name</code>
+	 * @param content
+	 * @return the absolute URL of the file
+	 */
+	public String addFile(String name, byte[] content) {
+		files.put(name, new ServedFile(content, "\"v" + fileVersions.incrementAndGet() + "\"")); //$NON-NLS-1$ //$NON-NLS-2$
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/files/" + name; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @param supported false to ignore <code>Range</code> headers and always send the whole file
+	 */
+	public void setRangeSupported(boolean supported) {
+		rangeSupported = supported;
+	}
+
+	/**
+	 * @param millis how long to wait after sending each 64KB of a file,
+	 * to stand in for a slow link
+	 */
+	public void setChunkDelayMillis(long millis) {
+		chunkDelayMillis = millis;
+	}
+
+	/**
+	 * @return how many file requests were answered with part of the file
+	 */
+	public int getRangeRequestCount() {
+		return rangeRequests.get();
+	}
+
+	/**
+	 * @param millis how long to wait before answering each query
+	 */
+	public void setResponseDelayMillis(long millis) {
+		responseDelayMillis = millis;
+	}
+
+	public int getLoginCount() {
+		return logins.get();
+	}
+
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the most requests the server has handled at the same time
+	 * since the last call to <code>resetMaxActive()</code>
+	 */
+	public int getMaxActive() {
+		return maxActive.get();
+	}
+
+	public void resetMaxActive() {
+		maxActive.set(0);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handleDal(HttpExchange exchange) throws IOException {
+		int nActive = active.incrementAndGet();
+		try {
+			int max;
+			while (nActive > (max = maxActive.get()) && ! maxActive.compareAndSet(max, nActive)) {
+			}
+			drain(exchange.getRequestBody());
+
+			String path = exchange.getRequestURI().getPath().substring("/dal/".length()); //$NON-NLS-1$
+			if (path.startsWith("login/")) { //$NON-NLS-1$
+				int userId = logins.incrementAndGet();
+				exchange.getResponseHeaders().add("Set-Cookie", //$NON-NLS-1$
+						SESSION_COOKIE + "=S" + userId + "; Path=/"); //$NON-NLS-1$ //$NON-NLS-2$
+				sendXml(exchange, "<DATA><User UserId=\"" + userId + "\"/>" //$NON-NLS-1$ //$NON-NLS-2$
+						+ "<WriteToken Value=\"T" + userId + "\"/></DATA>"); //$NON-NLS-1$ //$NON-NLS-2$
+				return;
+			}
+
+			requests.incrementAndGet();
+			long delay = responseDelayMillis;
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			sendXml(exchange, "<DATA><Item Path=\"" + path + "\"/></DATA>"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private void handleFile(HttpExchange exchange) throws IOException {
+		int nActive = active.incrementAndGet();
+		try {
+			int max;
+			while (nActive > (max = maxActive.get()) && ! maxActive.compareAndSet(max, nActive)) {
+			}
+			drain(exchange.getRequestBody());
+
+			String name = exchange.getRequestURI().getPath().substring("/files/".length()); //$NON-NLS-1$
+			ServedFile served = files.get(name);
+			if (served == null) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			byte[] content = served.content;
+			String etag = served.etag;
+			exchange.getResponseHeaders().add("ETag", etag); //$NON-NLS-1$
+
+			int start = 0;
+			int end = content.length;
+			String range = exchange.getRequestHeaders().getFirst("Range"); //$NON-NLS-1$
+			String ifRange = exchange.getRequestHeaders().getFirst("If-Range"); //$NON-NLS-1$
+			if (range != null && rangeSupported && range.startsWith("bytes=") //$NON-NLS-1$
+					&& (ifRange == null || ifRange.equals(etag))) {
+				String spec = range.substring("bytes=".length()); //$NON-NLS-1$
+				int dash = spec.indexOf('-');
+				start = Integer.parseInt(spec.substring(0, dash));
+				if (dash < spec.length() - 1) {
+					end = Math.min(content.length, Integer.parseInt(spec.substring(dash + 1)) + 1);
+				}
+				exchange.getResponseHeaders().add("Content-Range", //$NON-NLS-1$
+						"bytes " + start + "-" + (end - 1) + "/" + content.length); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				rangeRequests.incrementAndGet();
+				exchange.sendResponseHeaders(206, end - start);
+			}
+			else {
+				exchange.sendResponseHeaders(200, content.length);
+			}
+
+			OutputStream out = exchange.getResponseBody();
+			try {
+				for (int offset = start; offset < end; offset += 64 * 1024) {
+					out.write(content, offset, Math.min(64 * 1024, end - offset));
+					out.flush();
+					long delay = chunkDelayMillis;
+					if (delay > 0) {
+						Thread.sleep(delay);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+		byte[] body = xml.getBytes("UTF-8"); //$NON-NLS-1$
+		exchange.getResponseHeaders().add("Content-Type", "text/xml"); //$NON-NLS-1$ //$NON-NLS-2$
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buf = new byte[1024];
+		while (in.read(buf) >= 0) {
+		}
+	}
+}
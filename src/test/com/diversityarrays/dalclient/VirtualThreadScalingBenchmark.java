@@ -0,0 +1,137 @@
+/*
+ * dalclient library - provides utilities to assist in using KDDart-DAL servers
+ * Copyright (C) 2015,2016,2017 Diversity Arrays Technology
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.diversityarrays.dalclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs 1, 10, 100, 1000 and 10000 concurrent threads which share one
+ * <code>DefaultDALClient</code> and query a local <code>StandInDalServer</code>
+ * that takes a fixed time to answer each query.
+ * <p>
+ * Each thread is a virtual thread when the runtime supports them (Java 21+)
+ * and the client runs in <code>DefaultDALClient.VIRTUAL_THREADS</code> mode.
+ * On older runtimes it falls back to one platform thread per task.
+ * If the blocking path does not pin carrier threads, the time for each
+ * level stays close to the server latency and the throughput grows with
+ * the number of threads.
+ * <p>
+ * The client uses the <code>java.net.http</code> transport unless
+ * <code>HTTP_FACTORY_CLASS_NAME</code> says otherwise, so the dalclient-jdkhttp
+ * classes must be on the class path.
+ * <p>
+ * Usage: <code>VirtualThreadScalingBenchmark [maxThreads [queriesPerThread [latencyMillis]]]</code>
+ * @author brian
+ * @since 5.2.0
+ */
+public class VirtualThreadScalingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int queriesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+		// Must be set before the first DefaultDALClient is created.
+		if (System.getProperty(DefaultDALClient.VIRTUAL_THREADS_PROPERTY) == null) {
+			System.setProperty(DefaultDALClient.VIRTUAL_THREADS_PROPERTY, "true"); //$NON-NLS-1$
+		}
+		// The transport that VIRTUAL_THREADS mode chooses, also used on older
+		// runtimes so that the results can be compared.
+		String factoryProperty = DefaultDALClient.class.getName() + ".HTTP_FACTORY_CLASS_NAME"; //$NON-NLS-1$
+		if (System.getProperty(factoryProperty) == null) {
+			System.setProperty(factoryProperty, "com.diversityarrays.dalclient.httpjdk.JdkDalHttpFactory"); //$NON-NLS-1$
+		}
+
+		boolean virtual = DefaultDALClient.isVirtualThreadMode();
+		System.out.println(virtual
+				? "Using virtual threads" //$NON-NLS-1$
+				: "Virtual threads not available: using one platform thread per task"); //$NON-NLS-1$
+
+		StandInDalServer server = new StandInDalServer(newThreadPerTaskExecutor());
+		server.setResponseDelayMillis(latencyMillis);
+
+		DefaultDALClient client = new DefaultDALClient(server.getBaseUrl());
+		try {
+			client.login("user", "password"); //$NON-NLS-1$ //$NON-NLS-2$
+
+			// Warm up
+			runLevel(client, Math.min(100, maxThreads), 1);
+
+			System.out.println("threads\tqueries\tmillis\tqueries/s\tserverMaxActive"); //$NON-NLS-1$
+			for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 10) {
+				server.resetMaxActive();
+				long start = System.nanoTime();
+				int nQueries = runLevel(client, nThreads, queriesPerThread);
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				System.out.println(nThreads + "\t" + nQueries + "\t" + millis //$NON-NLS-1$ //$NON-NLS-2$
+						+ "\t" + (nQueries * 1000L / Math.max(1, millis)) //$NON-NLS-1$
+						+ "\t" + server.getMaxActive()); //$NON-NLS-1$
+			}
+		}
+		finally {
+			client.logout();
+			server.stop();
+		}
+		// The JDK HttpClient's selector thread is not a daemon
+		System.exit(0);
+	}
+
+	private static ExecutorService newThreadPerTaskExecutor() {
+		ExecutorService executor = DefaultDALClient.createVirtualThreadExecutor();
+		return executor != null ? executor : Executors.newCachedThreadPool();
+	}
+
+	private static int runLevel(final DALClient client, int nThreads, final int queriesPerThread)
+	throws Exception
+	{
+		ExecutorService executor = newThreadPerTaskExecutor();
+		try {
+			List<Future<Integer>> futures = new ArrayList<>(nThreads);
+			for (int i = 0; i < nThreads; ++i) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						for (int q = 0; q < queriesPerThread; ++q) {
+							DalResponse response = client.performQuery("list/genus"); //$NON-NLS-1$
+							int status = response.getHttpResponseInfo().httpStatusCode;
+							if (status != 200) {
+								throw new IllegalStateException("HTTP status " + status); //$NON-NLS-1$
+							}
+						}
+						return queriesPerThread;
+					}
+				}));
+			}
+			int total = 0;
+			for (Future<Integer> future : futures) {
+				total += future.get();
+			}
+			return total;
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}